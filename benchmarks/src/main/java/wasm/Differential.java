@@ -0,0 +1,123 @@
+package wasm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles the example programs, synthesized ones and fuzzed ones at levels 0 and 1 and
+// runs both modules in the Interpreter, checking they print the same values, leave the same
+// framebuffer and trap alike. Level 0 is a direct translation of the program, so any
+// difference is the optimizer's doing.
+//
+// At both levels an IncrementalCompiler is then taken from each program through sources that
+// fail to compile and back to valid ones, which have to run like their full compiles.
+//
+// gradle :benchmarks:differential [-Pprograms=<synthesized programs, 200 unless given, and 10
+// times as many fuzzed ones>]
+public final class Differential {
+
+    private Differential() {
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        Map<String, String> programs = new LinkedHashMap<>(Programs.EXAMPLES);
+        // synthesize seeds its generator with the size, so every size is a different program
+        for (int statements = 10; statements < 10 + count; statements++) {
+            programs.put("synthetic-" + statements, Programs.synthesize(statements));
+        }
+        for (int seed = 0; seed < 10 * count; seed++) {
+            programs.put("fuzz-" + seed, Programs.fuzz(seed));
+        }
+        Compiler unoptimized = new Compiler(new Compiler.Options().optimizationLevel(0));
+        Compiler optimized = new Compiler(new Compiler.Options().optimizationLevel(1));
+        int failures = 0;
+        for (Map.Entry<String, String> program : programs.entrySet()) {
+            Run expected = run(unoptimized.compile(program.getValue()));
+            Run actual = run(optimized.compile(program.getValue()));
+            String difference = expected.difference(actual, "-O0", "-O1");
+            if (difference != null) {
+                failures++;
+                System.out.println(program.getKey() + ": " + difference);
+            }
+            for (Compiler compiler : new Compiler[] {unoptimized, optimized}) {
+                difference = edits(compiler, program.getValue());
+                if (difference != null) {
+                    failures++;
+                    System.out.println(program.getKey() + " edited at -O" + compiler.optimizationLevel() + ": "
+                            + difference);
+                }
+            }
+        }
+        System.out.println(programs.size() + " programs, " + failures + " differing");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Compiles the program incrementally, then a stray endif and an off-canvas setpixel after
+    // it, then valid edits. Returns how an edit ran unlike its full compile, or what failed to
+    // be rejected, null when nothing did.
+    private static String edits(Compiler compiler, String source) {
+        IncrementalCompiler incremental = new IncrementalCompiler(compiler);
+        incremental.compile(source);
+        for (String invalid : new String[] {source + "\nendif", source + "\nsetpixel 100000 0 1"}) {
+            try {
+                incremental.compile(invalid);
+                return "accepted " + invalid.substring(source.length() + 1);
+            } catch (IllegalArgumentException | IllegalStateException expected) {
+                // rejected, as it should be
+            }
+        }
+        for (String valid : new String[] {source + "\nprint 7", "var zz = 5\n" + source + "\nprint 7"}) {
+            String difference = run(compiler.compile(valid)).difference(run(incremental.compile(valid)),
+                    "a full compile", "an incremental one");
+            if (difference != null) {
+                return difference;
+            }
+        }
+        return null;
+    }
+
+    private static Run run(byte[] module) {
+        Run run = new Run();
+        Interpreter interpreter = new Interpreter(module);
+        run.memory = ByteBuffer.allocate(interpreter.memoryPages() * Interpreter.PAGE_SIZE);
+        try {
+            // NaNs print alike whatever their payload
+            interpreter.run(run.memory, value -> run.printed.add(Float.floatToIntBits(value)));
+        } catch (Interpreter.Trap trap) {
+            run.trapped = true;
+        }
+        return run;
+    }
+
+    // what a module did when run
+    private static class Run {
+        final List<Integer> printed = new ArrayList<>();
+        ByteBuffer memory;
+        boolean trapped;
+
+        // describes how other differs from this run, null when it does not
+        String difference(Run other, String name, String otherName) {
+            if (trapped != other.trapped) {
+                return (trapped ? name : otherName) + " trapped and " + (trapped ? otherName : name) + " did not";
+            }
+            for (int i = 0; i < Math.min(printed.size(), other.printed.size()); i++) {
+                if (!printed.get(i).equals(other.printed.get(i))) {
+                    return "print " + i + " gave " + Float.intBitsToFloat(printed.get(i)) + " from " + name
+                            + " and " + Float.intBitsToFloat(other.printed.get(i)) + " from " + otherName;
+                }
+            }
+            if (printed.size() != other.printed.size()) {
+                return printed.size() + " prints from " + name + " and " + other.printed.size() + " from " + otherName;
+            }
+            if (!memory.equals(other.memory)) {
+                return "the framebuffers differ";
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package wasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Running parsed programs in the Evaluator, and compiling them for it, next to InterpreterBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+
+    @Param({"fractal", "synthetic-1000"})
+    public String program;
+
+    @Param({"0", "1"})
+    public int level;
+
+    private List<Parser.StatementNode> statements;
+    private Evaluator evaluator;
+    private byte[] framebuffer;
+
+    @Setup
+    public void setup() {
+        statements = Parser.parse(new Tokenizer().tokenize(Programs.source(program)));
+        if (level > 0) {
+            statements = Optimizer.optimize(statements);
+        }
+        evaluator = Evaluator.compile(statements);
+        framebuffer = new byte[Interpreter.PAGE_SIZE];
+    }
+
+    @Benchmark
+    public byte[] run(Blackhole blackhole) {
+        evaluator.run(framebuffer, blackhole::consume);
+        return framebuffer;
+    }
+
+    @Benchmark
+    public Evaluator compile() {
+        return Evaluator.compile(statements);
+    }
+}
@@ -0,0 +1,58 @@
+package wasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// A one character edit halfway through the program, recompiled incrementally and in full
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncrementalBenchmark {
+
+    @Param({"fractal", "synthetic-1000", "synthetic-100000"})
+    public String program;
+
+    private String[] versions;
+    private int version;
+    private IncrementalCompiler incremental;
+
+    @Setup
+    public void setup() {
+        String source = Programs.source(program);
+        int digit = source.length() / 2;
+        while (!Character.isDigit(source.charAt(digit))) {
+            digit++;
+        }
+        char replacement = source.charAt(digit) == '7' ? '8' : '7';
+        versions = new String[] {source,
+                source.substring(0, digit) + replacement + source.substring(digit + 1)};
+        incremental = new IncrementalCompiler();
+        incremental.compile(source);
+    }
+
+    @Benchmark
+    public byte[] incremental() {
+        version ^= 1;
+        return incremental.compile(versions[version]);
+    }
+
+    @Benchmark
+    public byte[] full() {
+        version ^= 1;
+        return new Compiler().compile(versions[version]);
+    }
+}
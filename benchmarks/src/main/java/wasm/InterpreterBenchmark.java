@@ -0,0 +1,66 @@
+package wasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// Running compiled modules in the Interpreter, and decoding them for it. runParallel renders
+// the rows of a module exporting run_range on the common pool, the others run serially.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+    @Param({"fractal", "synthetic-1000"})
+    public String program;
+
+    @Param({"0", "1"})
+    public int level;
+
+    private byte[] module;
+    private Interpreter interpreter;
+    private Interpreter rangeInterpreter;
+    private ByteBuffer memory;
+
+    @Setup
+    public void setup() {
+        module = new Compiler(new Compiler.Options().optimizationLevel(level)).compile(Programs.source(program));
+        interpreter = new Interpreter(module);
+        rangeInterpreter = new Interpreter(new Compiler(new Compiler.Options().optimizationLevel(level).runRange(true))
+                .compile(Programs.source(program)));
+        memory = ByteBuffer.allocate(interpreter.memoryPages() * Interpreter.PAGE_SIZE);
+    }
+
+    @Benchmark
+    public ByteBuffer run(Blackhole blackhole) {
+        interpreter.run(memory, blackhole::consume);
+        return memory;
+    }
+
+    @Benchmark
+    public ByteBuffer runParallel(Blackhole blackhole) {
+        rangeInterpreter.run(memory, blackhole::consume, ForkJoinPool.commonPool());
+        return memory;
+    }
+
+    @Benchmark
+    public Interpreter decode() {
+        return new Interpreter(module);
+    }
+}
@@ -0,0 +1,56 @@
+package wasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Running programs compiled to JVM classes, and compiling and loading them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JvmCompilerBenchmark {
+
+    @Param({"fractal", "synthetic-1000"})
+    public String program;
+
+    @Param({"0", "1"})
+    public int level;
+
+    private String source;
+    private JvmCompiler compiler;
+    private JvmCompiler.Program compiled;
+    private byte[] framebuffer;
+
+    @Setup
+    public void setup() {
+        source = Programs.source(program);
+        compiler = new JvmCompiler(new Compiler.Options().optimizationLevel(level));
+        compiled = compiler.compile(source);
+        framebuffer = new byte[Interpreter.PAGE_SIZE];
+    }
+
+    @Benchmark
+    public byte[] run(Blackhole blackhole) {
+        compiled.run(blackhole::consume, framebuffer);
+        return framebuffer;
+    }
+
+    @Benchmark
+    public JvmCompiler.Program compile() {
+        return compiler.compile(source);
+    }
+}
@@ -0,0 +1,120 @@
+package wasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Encodes and decodes a batch of values, either small ones such as local indices and
+// branch depths, or values spread over the whole int range
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Leb128Benchmark {
+
+    private static final int BATCH = 1024;
+
+    @Param({"small", "wide"})
+    public String values;
+
+    private int[] input;
+    private byte[] unsigned;
+    private byte[] signed;
+    private byte[] scratch;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        input = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            input[i] = values.equals("small") ? random.nextInt(128) : random.nextInt() >> random.nextInt(32);
+        }
+        scratch = new byte[BATCH * 5];
+        unsigned = new byte[BATCH * 5];
+        signed = new byte[BATCH * 5];
+        int u = 0;
+        int s = 0;
+        for (int value : input) {
+            u = Leb128.writeUnsignedLeb128(unsigned, u, value);
+            s = Leb128.writeSignedLeb128(signed, s, value);
+        }
+    }
+
+    @Benchmark
+    public int writeUnsigned() {
+        int position = 0;
+        for (int value : input) {
+            position = Leb128.writeUnsignedLeb128(scratch, position, value);
+        }
+        return position;
+    }
+
+    @Benchmark
+    public int writeSigned() {
+        int position = 0;
+        for (int value : input) {
+            position = Leb128.writeSignedLeb128(scratch, position, value);
+        }
+        return position;
+    }
+
+    @Benchmark
+    public void writeUnsignedArrays(Blackhole blackhole) {
+        for (int value : input) {
+            blackhole.consume(Leb128.writeUnsignedLeb128(value));
+        }
+    }
+
+    @Benchmark
+    public int unsignedSize() {
+        int total = 0;
+        for (int value : input) {
+            total += Leb128.unsignedLeb128Size(value);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int signedSize() {
+        int total = 0;
+        for (int value : input) {
+            total += Leb128.signedLeb128Size(value);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int readUnsigned() {
+        ByteBuffer in = ByteBuffer.wrap(unsigned);
+        int sum = 0;
+        for (int i = 0; i < BATCH; i++) {
+            sum += Leb128.readUnsignedLeb128(in);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int readSigned() {
+        ByteBuffer in = ByteBuffer.wrap(signed);
+        int sum = 0;
+        for (int i = 0; i < BATCH; i++) {
+            sum += Leb128.readSignedLeb128(in);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,85 @@
+package wasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Throughput of each phase of the pipeline, and of the whole of it, per input program
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"fractal", "print", "binary", "variable", "assignment", "while", "setpixel", "if", "else",
+            "synthetic-1000", "synthetic-100000"})
+    public String program;
+
+    private String source;
+    private List<Tokenizer.Token> tokens;
+    private List<Parser.StatementNode> ast;
+    private Ast compactAst;
+
+    @Setup
+    public void setup() {
+        source = Programs.source(program);
+        tokens = new Tokenizer().tokenize(source);
+        ast = Parser.parse(tokens);
+        compactAst = Parser.parseAst(tokens.iterator());
+    }
+
+    @Benchmark
+    public List<Tokenizer.Token> tokenize() {
+        return new Tokenizer().tokenize(source);
+    }
+
+    @Benchmark
+    public List<Parser.StatementNode> parse() {
+        return Parser.parse(tokens);
+    }
+
+    @Benchmark
+    public Ast parseAst() {
+        return Parser.parseAst(tokens.iterator());
+    }
+
+    @Benchmark
+    public List<Parser.StatementNode> optimize() {
+        return Optimizer.optimize(ast);
+    }
+
+    @Benchmark
+    public int emitStatements() {
+        WasmWriter out = new WasmWriter();
+        new Compiler().emitStatements(new Compiler.Context(), ast, out);
+        return out.position();
+    }
+
+    @Benchmark
+    public byte[] build() {
+        return new Compiler().build(ast);
+    }
+
+    @Benchmark
+    public byte[] buildAst() {
+        return new Compiler(new Compiler.Options().optimizationLevel(0)).build(compactAst);
+    }
+
+    @Benchmark
+    public byte[] compile() {
+        return new Compiler().compile(source);
+    }
+}
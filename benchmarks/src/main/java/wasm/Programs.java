@@ -0,0 +1,193 @@
+package wasm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+// Benchmark inputs, the built-in fractal, the small programs the compiler was developed
+// against and synthesized programs of any size, named "synthetic-<statements>"
+public final class Programs {
+
+    public static final Map<String, String> EXAMPLES = new LinkedHashMap<>();
+    static {
+        EXAMPLES.put("fractal", Compiler.FRACTAL);
+        EXAMPLES.put("print", "print 8");
+        EXAMPLES.put("binary", "print ( 2 + 4 )");
+        EXAMPLES.put("variable", "var f = 22 print f");
+        EXAMPLES.put("assignment", "var f = 3 f = ( f + -1 ) print f");
+        EXAMPLES.put("while", "var f = 0 while ( f < 5 ) f = ( f + 1 ) print f endwhile");
+        EXAMPLES.put("setpixel", "setpixel 1 2 240");
+        EXAMPLES.put("if", "if ( 5 > 3 ) print 2 else print 3 endif");
+        EXAMPLES.put("else", "if ( 5 < 3 ) print 2 else print 3 endif");
+    }
+
+    private static final String SYNTHETIC = "synthetic-";
+
+    private Programs() {
+    }
+
+    public static String source(String name) {
+        if (name.startsWith(SYNTHETIC)) {
+            return synthesize(Integer.parseInt(name.substring(SYNTHETIC.length())));
+        }
+        String source = EXAMPLES.get(name);
+        if (source == null) {
+            throw new IllegalArgumentException("Unknown program " + name);
+        }
+        return source;
+    }
+
+    // the counter of every loop, outside the names variable gives
+    private static final String COUNTER = "i";
+
+    // identifiers are letters only, so variables are named in base 26 behind a prefix
+    // that no keyword starts with
+    private static String variable(int index) {
+        StringBuilder name = new StringBuilder("n");
+        do {
+            name.append((char) ('a' + index % 26));
+            index /= 26;
+        } while (index > 0);
+        return name.toString();
+    }
+
+    private static String expression(Random random, int declared, int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            return random.nextBoolean() ? variable(random.nextInt(declared)) : Integer.toString(random.nextInt(100));
+        }
+        String[] operators = {"+", "-", "*", "/"};
+        return "( " + expression(random, declared, depth - 1) + " " + operators[random.nextInt(operators.length)]
+                + " " + expression(random, declared, depth - 1) + " )";
+    }
+
+    /**
+     * Generates a deterministic, terminating program of roughly {@code statements}
+     * statements, mixing declarations, arithmetic, bounded loops, branches and setpixel.
+     */
+    public static String synthesize(int statements) {
+        Random random = new Random(statements);
+        StringBuilder source = new StringBuilder();
+        int variables = Math.max(1, Math.min(statements / 4, 500));
+        for (int i = 0; i < variables; i++) {
+            source.append("var ").append(variable(i)).append(" = ").append(i).append('\n');
+        }
+        // loops count with a variable of their own, which nothing else assigns, so each runs
+        // exactly 10 times
+        source.append("var ").append(COUNTER).append(" = 0\n");
+        for (int emitted = variables + 1; emitted < statements; ) {
+            String target = variable(random.nextInt(variables));
+            switch (random.nextInt(4)) {
+                case 0:
+                    source.append(target).append(" = ").append(expression(random, variables, 3)).append('\n');
+                    emitted++;
+                    break;
+                case 1:
+                    source.append(COUNTER).append(" = 0\n")
+                            .append("while ( ").append(COUNTER).append(" < 10 )\n")
+                            .append("  ").append(target).append(" = ").append(expression(random, variables, 2)).append('\n')
+                            .append("  ").append(COUNTER).append(" = ( ").append(COUNTER).append(" + 1 )\n")
+                            .append("endwhile\n");
+                    emitted += 4;
+                    break;
+                case 2:
+                    source.append("if ( ").append(target).append(" > ").append(random.nextInt(100)).append(" )\n")
+                            .append("  print ").append(target).append('\n')
+                            .append("else\n")
+                            .append("  print ").append(expression(random, variables, 2)).append('\n')
+                            .append("endif\n");
+                    emitted += 3;
+                    break;
+                default:
+                    source.append("setpixel ").append(random.nextInt(100)).append(' ').append(random.nextInt(100))
+                            .append(' ').append(target).append('\n');
+                    emitted++;
+                    break;
+            }
+        }
+        return source.toString();
+    }
+
+    /**
+     * Generates a small random program, the same one for the same seed, made of the shapes
+     * the optimizer rewrites: loops nested in loops and branches, conditions testing the
+     * values loops carry around, && of arbitrary values, self assignments and divisions that
+     * make infinities and NaN. Unlike synthesize it may trap, when && or a condition
+     * truncates a NaN. Every loop counts a variable of its own nesting depth, which nothing
+     * else assigns, so each runs at most 4 times.
+     */
+    public static String fuzz(long seed) {
+        Random random = new Random(seed);
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < FUZZ_VARIABLES; i++) {
+            source.append("var ").append(variable(i)).append(" = ").append(random.nextInt(7) - 2).append('\n');
+        }
+        fuzzStatements(random, source, 0, 8);
+        return source.toString();
+    }
+
+    private static final int FUZZ_VARIABLES = 4;
+    private static final int FUZZ_DEPTH = 3;
+
+    private static void fuzzStatements(Random random, StringBuilder source, int depth, int count) {
+        for (int i = 0; i < count; i++) {
+            String target = variable(random.nextInt(FUZZ_VARIABLES));
+            switch (random.nextInt(depth < FUZZ_DEPTH ? 8 : 5)) {
+                case 0:
+                case 1:
+                    source.append(target).append(" = ").append(fuzzExpression(random, 2)).append('\n');
+                    break;
+                case 2:
+                    source.append(target).append(" = ").append(random.nextInt(4) == 0 ? target
+                            : variable(random.nextInt(FUZZ_VARIABLES))).append('\n');
+                    break;
+                case 3:
+                    source.append("print ").append(fuzzExpression(random, 2)).append('\n');
+                    break;
+                case 4:
+                    source.append("setpixel ").append(random.nextInt(100)).append(' ').append(random.nextInt(100))
+                            .append(' ').append(fuzzExpression(random, 1)).append('\n');
+                    break;
+                case 5:
+                case 6: {
+                    String counter = "c" + (char) ('a' + depth);
+                    String test = random.nextBoolean() ? "( " + counter + " < " + (1 + random.nextInt(4)) + " )"
+                            : "( ( " + counter + " * " + counter + " ) < " + (1 + random.nextInt(10)) + " )";
+                    if (random.nextInt(3) == 0) {
+                        test = "( " + test + " && " + fuzzExpression(random, 1) + " )";
+                    }
+                    source.append("var ").append(counter).append(" = 0\n")
+                            .append("while ").append(test).append('\n');
+                    fuzzStatements(random, source, depth + 1, 1 + random.nextInt(4));
+                    source.append(counter).append(" = ( ").append(counter).append(" + 1 )\n")
+                            .append("endwhile\n");
+                    break;
+                }
+                default:
+                    source.append("if ").append(fuzzExpression(random, 2)).append('\n');
+                    fuzzStatements(random, source, depth + 1, random.nextInt(3));
+                    if (random.nextBoolean()) {
+                        source.append("else\n");
+                        fuzzStatements(random, source, depth + 1, 1 + random.nextInt(2));
+                    }
+                    source.append("endif\n");
+                    break;
+            }
+        }
+    }
+
+    private static String fuzzExpression(Random random, int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    return Integer.toString(random.nextInt(21) - 4);
+                case 1:
+                    return random.nextBoolean() ? "0.5" : "16";
+                default:
+                    return variable(random.nextInt(FUZZ_VARIABLES));
+            }
+        }
+        String[] operators = {"+", "-", "*", "/", "<", ">", "==", "&&"};
+        return "( " + fuzzExpression(random, depth - 1) + " " + operators[random.nextInt(operators.length)]
+                + " " + fuzzExpression(random, depth - 1) + " )";
+    }
+}
@@ -0,0 +1,146 @@
+package wasm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A parsed program kept in parallel primitive arrays instead of one object per node. A node
+// is an index, its kind is a byte and its children are indices of other nodes. The
+// statements of a list are chained through next, ending in NONE.
+//
+//   number       first is the index of its value in the literals
+//   identifier   first is the variable
+//   binary       first and second are the operands, third the operator's index in
+//                Tokenizer.operators
+//   print        first is the value printed
+//   declaration  first is the variable, second the value
+//   assignment   first is the variable, second the value
+//   whileLoop    first is the condition, second the first statement of the body
+//   ifElse       first is the condition, second and third the first statements of the
+//                consequent and the alternate
+//   setpixel     first, second and third are x, y and the color
+//
+// Literals are parsed once, into a float array, and variables are numbered in the order
+// they first appear. Parser.parseAst builds one, for compiles at level 0 without run_range
+// only: the Optimizer, the TypeInference and finding the loop of run_range all work on
+// Parser.StatementNode trees.
+public class Ast {
+
+    public enum Kind {
+        number, identifier, binary, print, declaration, assignment, whileLoop, ifElse, setpixel
+    }
+
+    public static final int NONE = -1;
+
+    private static final Kind[] kinds = Kind.values();
+
+    private byte[] kind = new byte[64];
+    private int[] first = new int[64];
+    private int[] second = new int[64];
+    private int[] third = new int[64];
+    private int[] next = new int[64];
+    private int size;
+    private float[] literals = new float[16];
+    private int literalCount;
+    private final List<String> variables = new ArrayList<>();
+    private final Map<String, Integer> variableIndex = new HashMap<>();
+    // the variable of each symbol met so far, NONE for the others
+    private int[] bySymbol = new int[0];
+    // the first top level statement
+    int program = NONE;
+
+    public int size() {
+        return size;
+    }
+    public Kind kind(int node) {
+        return kinds[kind[node]];
+    }
+    public int first(int node) {
+        return first[node];
+    }
+    public int second(int node) {
+        return second[node];
+    }
+    public int third(int node) {
+        return third[node];
+    }
+    public int next(int node) {
+        return next[node];
+    }
+    public int program() {
+        return program;
+    }
+    public float literal(int node) {
+        return literals[first[node]];
+    }
+    public String operator(int node) {
+        return Tokenizer.operators[third[node]];
+    }
+    public List<String> variables() {
+        return variables;
+    }
+
+    int add(Kind kind, int first, int second, int third) {
+        if (size == this.kind.length) {
+            int capacity = Math.max(16, size * 2);
+            this.kind = Arrays.copyOf(this.kind, capacity);
+            this.first = Arrays.copyOf(this.first, capacity);
+            this.second = Arrays.copyOf(this.second, capacity);
+            this.third = Arrays.copyOf(this.third, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+        this.kind[size] = (byte) kind.ordinal();
+        this.first[size] = first;
+        this.second[size] = second;
+        this.third[size] = third;
+        next[size] = NONE;
+        return size++;
+    }
+    int number(float value) {
+        if (literalCount == literals.length) {
+            literals = Arrays.copyOf(literals, Math.max(16, literalCount * 2));
+        }
+        literals[literalCount] = value;
+        return add(Kind.number, literalCount++, NONE, NONE);
+    }
+    // The index of a variable, numbering it when it is met for the first time. Identifiers
+    // from a Tokenizer are looked up by their symbol.
+    int variable(Tokenizer.Token token) {
+        int symbol = token.symbol;
+        if (symbol < 0) {
+            return variable(token.value());
+        }
+        if (symbol >= bySymbol.length) {
+            int length = bySymbol.length;
+            bySymbol = Arrays.copyOf(bySymbol, Math.max(symbol + 1, length * 2));
+            Arrays.fill(bySymbol, length, bySymbol.length, NONE);
+        }
+        if (bySymbol[symbol] == NONE) {
+            bySymbol[symbol] = variable(token.value());
+        }
+        return bySymbol[symbol];
+    }
+    int variable(String name) {
+        Integer index = variableIndex.get(name);
+        if (index == null) {
+            index = variables.size();
+            variableIndex.put(name, index);
+            variables.add(name);
+        }
+        return index;
+    }
+    // gives back the room left for nodes that never came
+    void trim() {
+        kind = Arrays.copyOf(kind, size);
+        first = Arrays.copyOf(first, size);
+        second = Arrays.copyOf(second, size);
+        third = Arrays.copyOf(third, size);
+        next = Arrays.copyOf(next, size);
+        literals = Arrays.copyOf(literals, literalCount);
+    }
+    void link(int statement, int following) {
+        next[statement] = following;
+    }
+}
@@ -0,0 +1,144 @@
+package wasm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Compiles many Chasm sources in parallel in one JVM, writing one .wasm per source
+public class BatchCompiler {
+
+    public static final String SOURCE_EXTENSION = ".chasm";
+    public static final String OUTPUT_EXTENSION = ".wasm";
+
+    public static class Result {
+        public final Path source;
+        public final Path output;
+        public final Exception error;
+        Result(Path source, Path output, Exception error) {
+            this.source = source;
+            this.output = output;
+            this.error = error;
+        }
+        public boolean succeeded() {
+            return error == null;
+        }
+    }
+
+    private final Function<String, byte[]> compiler;
+    private final ForkJoinPool pool;
+
+    public BatchCompiler() {
+        this(new Compiler(), ForkJoinPool.commonPool());
+    }
+    public BatchCompiler(Compiler compiler, ForkJoinPool pool) {
+        this.compiler = compiler::compile;
+        this.pool = pool;
+    }
+    public BatchCompiler(CompileCache cache, ForkJoinPool pool) {
+        this.compiler = cache::compile;
+        this.pool = pool;
+    }
+
+    /**
+     * Compiles every *.chasm file directly inside {@code directory}.
+     */
+    public List<Result> compileDirectory(Path directory, Path outputDirectory) throws IOException {
+        List<Path> sources;
+        try (Stream<Path> files = Files.list(directory)) {
+            sources = files.filter(file -> file.getFileName().toString().endsWith(SOURCE_EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        return compileAll(sources, outputDirectory);
+    }
+
+    /**
+     * Compiles each source to {@code outputDirectory/<name>.wasm}. A source that fails to
+     * compile does not stop the others, its error is reported in its result.
+     *
+     * @return one result per source, in the order given
+     */
+    public List<Result> compileAll(List<Path> sources, Path outputDirectory) throws IOException {
+        Files.createDirectories(outputDirectory);
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for (Path source : sources) {
+            tasks.add(() -> compileOne(source, outputDirectory));
+        }
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private Result compileOne(Path source, Path outputDirectory) {
+        Path output = outputDirectory.resolve(outputName(source));
+        try {
+            String input = Files.readString(source, StandardCharsets.UTF_8);
+            Files.write(output, compiler.apply(input));
+            return new Result(source, output, null);
+        } catch (Exception e) {
+            return new Result(source, output, e);
+        }
+    }
+
+    private static String outputName(Path source) {
+        String name = source.getFileName().toString();
+        if (name.endsWith(SOURCE_EXTENSION)) {
+            name = name.substring(0, name.length() - SOURCE_EXTENSION.length());
+        }
+        return name + OUTPUT_EXTENSION;
+    }
+
+    // BatchCompiler <output directory> <source file or directory>...
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BatchCompiler <output directory> <source file or directory>...");
+            System.exit(2);
+        }
+        Path outputDirectory = Paths.get(args[0]);
+        Compiler compiler = new Compiler();
+        BatchCompiler batch = new BatchCompiler(compiler, ForkJoinPool.commonPool());
+        List<Path> sources = new ArrayList<>();
+        List<Result> results = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            Path path = Paths.get(args[i]);
+            if (Files.isDirectory(path)) {
+                results.addAll(batch.compileDirectory(path, outputDirectory));
+            } else {
+                sources.add(path);
+            }
+        }
+        results.addAll(batch.compileAll(sources, outputDirectory));
+        int failures = 0;
+        for (Result result : results) {
+            if (!result.succeeded()) {
+                failures++;
+                System.err.println(result.source + ": " + result.error);
+            }
+        }
+        System.out.println("compiled " + (results.size() - failures) + " of " + results.size());
+        System.out.println("peephole " + compiler.peephole());
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
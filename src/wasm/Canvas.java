@@ -0,0 +1,115 @@
+package wasm;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+// The framebuffer setpixel draws to: height rows of width pixels from index 0, a pixel taking
+// bytesPerPixel bytes. setpixel x y color stores color at x * bytesPerPixel + y * stride(),
+// each coordinate truncated to an integer first, with the low bytes of the truncated color
+// going to the pixel in little-endian order.
+//
+// The memory a module imports is exactly the pages the framebuffer needs, both as its
+// minimum and its maximum, so a store off the end of the canvas traps unless it still lands
+// in the last page.
+public final class Canvas {
+
+    // the 100x100 canvas of a byte per pixel Chasm has always drawn to
+    public static final Canvas DEFAULT = new Canvas(100, 100, 1);
+
+    // the most memory a framebuffer may take, the pages a Java array or ByteBuffer can hold
+    private static final long MAX_SIZE = (long) (Integer.MAX_VALUE / Interpreter.PAGE_SIZE) * Interpreter.PAGE_SIZE;
+
+    public final int width;
+    public final int height;
+    public final int bytesPerPixel;
+
+    public Canvas(int width, int height, int bytesPerPixel) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("The canvas must be at least 1x1, not " + width + "x" + height);
+        }
+        if (bytesPerPixel != 1 && bytesPerPixel != 2 && bytesPerPixel != 4) {
+            throw new IllegalArgumentException("A pixel takes 1, 2 or 4 bytes, not " + bytesPerPixel);
+        }
+        if ((long) width * height * bytesPerPixel > MAX_SIZE) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " canvas of " + bytesPerPixel
+                    + " bytes a pixel needs more than " + MAX_SIZE + " bytes");
+        }
+        this.width = width;
+        this.height = height;
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    // the bytes from the start of one row to the next
+    public int stride() {
+        return width * bytesPerPixel;
+    }
+    // the bytes of the whole framebuffer
+    public int size() {
+        return height * stride();
+    }
+    // the pages of wasm memory holding the framebuffer
+    public int pages() {
+        return (size() + Interpreter.PAGE_SIZE - 1) / Interpreter.PAGE_SIZE;
+    }
+
+    // Throws when a constant x or y argument of setpixel is off the canvas, which would draw
+    // in another row or outside the framebuffer altogether
+    void check(String coordinate, float value) {
+        int limit = coordinate.equals("x") ? width : height;
+        // truncated, like the stored coordinate is
+        if (!(value > -1 && value < limit)) {
+            throw new IllegalArgumentException("setpixel " + coordinate + " of " + value
+                    + " is outside the " + this + " canvas");
+        }
+    }
+
+    // Checks the constant coordinates of every setpixel among the statements, the nested ones
+    // too. Compilers run it on the statements as parsed, ahead of any optimization, so a
+    // program is rejected at every level or at none.
+    void check(List<Parser.StatementNode> nodes) {
+        ArrayDeque<Iterator<Parser.StatementNode>> lists = new ArrayDeque<>();
+        lists.push(nodes.iterator());
+        while (!lists.isEmpty()) {
+            if (!lists.peek().hasNext()) {
+                lists.pop();
+                continue;
+            }
+            Parser.StatementNode node = lists.peek().next();
+            check(node);
+            if (node instanceof Parser.WhileStatementNode) {
+                lists.push(((Parser.WhileStatementNode) node).statements.iterator());
+            } else if (node instanceof Parser.IfStatementNode) {
+                lists.push(((Parser.IfStatementNode) node).alternate.iterator());
+                lists.push(((Parser.IfStatementNode) node).consequent.iterator());
+            }
+        }
+    }
+    // checks a setpixel on its own, leaving the statements nested in others alone
+    void check(Parser.StatementNode node) {
+        if (!(node instanceof Parser.SetPixelStatementNode)) {
+            return;
+        }
+        Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+        if (setPixelNode.x instanceof Parser.NumberLiteralNode) {
+            check("x", Float.parseFloat(setPixelNode.x.value));
+        }
+        if (setPixelNode.y instanceof Parser.NumberLiteralNode) {
+            check("y", Float.parseFloat(setPixelNode.y.value));
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Canvas && ((Canvas) other).width == width && ((Canvas) other).height == height
+                && ((Canvas) other).bytesPerPixel == bytesPerPixel;
+    }
+    @Override
+    public int hashCode() {
+        return (width * 31 + height) * 31 + bytesPerPixel;
+    }
+    @Override
+    public String toString() {
+        return width + "x" + height + (bytesPerPixel == 1 ? "" : "x" + bytesPerPixel);
+    }
+}
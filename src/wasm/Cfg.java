@@ -0,0 +1,367 @@
+package wasm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The whole program as basic blocks of three-address instructions over virtual registers,
+// with explicit edges between the blocks. This is the form the whole-program analyses of
+// level 1 run on, DeadStores, TypeInference and LocalAllocator, each as a loop over flat
+// arrays rather than a walk of the parsed statements.
+//
+// Every instruction computing a value is the register holding it, operands name the
+// registers they read. Instructions live in parallel arrays like those of Ir, and those of
+// a block follow each other, so block b runs from start(b) to start(b + 1). A block either
+// ends in a branch, going to taken(b) when its condition holds and to notTaken(b) when it
+// does not, or goes on to taken(b) alone, the block with no successor leaves the function.
+// Values are f32 like in the source, conditions and && truncate theirs to i32.
+//
+// A while is rotated like the Lowering does: its condition is tested once ahead of the loop
+// and again in the last block of the body, which branches back to the first. Each
+// instruction keeps the parsed node it came from, so the analyses can give their findings
+// in terms of the statements later passes work on. The expression under a register takes
+// the instructions from first(register) up to it.
+//
+// Like the Lowering, building one keeps the open statements and expressions on stacks.
+public class Cfg {
+
+    public enum Op {
+        // imm holds the bits of the f32
+        constant,
+        // a is the variable read
+        get,
+        // a and b are the operands
+        add, sub, mul, div, eq, lt, gt, and,
+        // a is the variable, b the value stored
+        set,
+        // a is the value printed
+        print,
+        // stores color to the pixel at x and y, a, b and imm are their variables
+        pixel,
+        // a is the condition, always last in its block
+        branch
+    }
+
+    private static final Map<String, Op> operators = Map.of("+", Op.add, "-", Op.sub, "*", Op.mul,
+            "/", Op.div, "==", Op.eq, "<", Op.lt, ">", Op.gt, "&&", Op.and);
+
+    private Op[] ops = new Op[64];
+    private int[] as = new int[64];
+    private int[] bs = new int[64];
+    private int[] imms = new int[64];
+    private int[] firsts = new int[64];
+    // the expression a value comes from, and the statement a set or branch does
+    private Parser.ExpressionNode[] expressions = new Parser.ExpressionNode[64];
+    private Parser.StatementNode[] statements = new Parser.StatementNode[64];
+    private int size;
+
+    private int[] starts = new int[16];
+    private int[] taken = new int[16];
+    private int[] notTaken = new int[16];
+    private int[] depths = new int[16];
+    private int blocks;
+    private int[][] predecessors;
+
+    private final List<String> variables = new ArrayList<>();
+    private final Map<String, Integer> variableIndex = new HashMap<>();
+
+    // the expression nodes still to visit and the registers of the operands added so far
+    private Parser.ExpressionNode[] work = new Parser.ExpressionNode[16];
+    private boolean[] workVisited = new boolean[16];
+    private int workSize;
+    private int[] values = new int[16];
+    private int valueCount;
+
+    // a statement list being built and the while or if it belongs to
+    private static class Frame {
+        final Parser.StatementNode owner;
+        List<Parser.StatementNode> statements;
+        int next;
+        // the block holding the first test of the condition, the first block of a loop body
+        // and the last of the consequent of an if with an alternate
+        int head;
+        int body;
+        int consequent = -1;
+
+        Frame(Parser.StatementNode owner, List<Parser.StatementNode> statements) {
+            this.owner = owner;
+            this.statements = statements;
+        }
+    }
+
+    private Cfg() {
+    }
+
+    public int size() {
+        return size;
+    }
+    public Op op(int instruction) {
+        return ops[instruction];
+    }
+    public int a(int instruction) {
+        return as[instruction];
+    }
+    public int b(int instruction) {
+        return bs[instruction];
+    }
+    public int imm(int instruction) {
+        return imms[instruction];
+    }
+    public float constant(int instruction) {
+        return Float.intBitsToFloat(imms[instruction]);
+    }
+    // the first instruction of the expression whose value the register holds
+    public int first(int register) {
+        return firsts[register];
+    }
+    public Parser.ExpressionNode expression(int instruction) {
+        return expressions[instruction];
+    }
+    public Parser.StatementNode statement(int instruction) {
+        return statements[instruction];
+    }
+    public List<String> variables() {
+        return variables;
+    }
+
+    public int blocks() {
+        return blocks;
+    }
+    public int start(int block) {
+        return starts[block];
+    }
+    public int end(int block) {
+        return block + 1 < blocks ? starts[block + 1] : size;
+    }
+    public int taken(int block) {
+        return taken[block];
+    }
+    // -1 unless the block ends in a branch
+    public int notTaken(int block) {
+        return notTaken[block];
+    }
+    // how many loops the block is in
+    public int depth(int block) {
+        return depths[block];
+    }
+    public int[] predecessors(int block) {
+        return predecessors[block];
+    }
+    // the condition a block branches on, -1 when it does not
+    public int condition(int block) {
+        return notTaken[block] < 0 ? -1 : as[end(block) - 1];
+    }
+
+    public static Cfg build(List<Parser.StatementNode> nodes) {
+        Cfg cfg = new Cfg();
+        cfg.block(0);
+        cfg.statements(nodes);
+        cfg.link();
+        return cfg;
+    }
+
+    private void statements(List<Parser.StatementNode> nodes) {
+        ArrayDeque<Frame> frames = new ArrayDeque<>();
+        frames.push(new Frame(null, nodes));
+        while (!frames.isEmpty()) {
+            Frame frame = frames.peek();
+            if (frame.next < frame.statements.size()) {
+                Frame inner = statement(frame.statements.get(frame.next++));
+                if (inner != null) {
+                    frames.push(inner);
+                }
+                continue;
+            }
+            Parser.StatementNode owner = frame.owner;
+            if (owner instanceof Parser.WhileStatementNode) {
+                add(Op.branch, expression(owner.value), 0, 0, owner);
+                int bottom = blocks - 1;
+                int exit = block(depths[frame.head]);
+                link(bottom, frame.body, exit);
+                notTaken[frame.head] = exit;
+            } else if (owner instanceof Parser.IfStatementNode) {
+                List<Parser.StatementNode> alternate = ((Parser.IfStatementNode) owner).alternate;
+                if (frame.consequent < 0 && !alternate.isEmpty()) {
+                    frame.consequent = blocks - 1;
+                    // block may grow the arrays, so it runs before notTaken is read
+                    int start = block(depths[frame.head]);
+                    notTaken[frame.head] = start;
+                    frame.statements = alternate;
+                    frame.next = 0;
+                    continue;
+                }
+                int last = blocks - 1;
+                int join = block(depths[frame.head]);
+                link(last, join, -1);
+                if (frame.consequent >= 0) {
+                    link(frame.consequent, join, -1);
+                } else {
+                    notTaken[frame.head] = join;
+                }
+            }
+            frames.pop();
+        }
+    }
+
+    // adds the instructions of a statement, returning the frame of the statements it holds
+    private Frame statement(Parser.StatementNode node) {
+        if (node instanceof Parser.PrintStatementNode) {
+            add(Op.print, expression(node.value), 0, 0, node);
+        } else if (node instanceof Parser.VariableDeclarationNode) {
+            int value = expression(node.value);
+            add(Op.set, variable(((Parser.VariableDeclarationNode) node).name), value, 0, node);
+        } else if (node instanceof Parser.VariableAssignmentNode) {
+            int value = expression(node.value);
+            add(Op.set, variable(((Parser.VariableAssignmentNode) node).name), value, 0, node);
+        } else if (node instanceof Parser.SetPixelStatementNode) {
+            Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+            // the arguments are kept in x, y and color like the Lowering does
+            setpixelArgument(setPixelNode, setPixelNode.x, "x");
+            setpixelArgument(setPixelNode, setPixelNode.y, "y");
+            setpixelArgument(setPixelNode, setPixelNode.value, "color");
+            add(Op.pixel, variable("x"), variable("y"), variable("color"), node);
+        } else if (node instanceof Parser.WhileStatementNode || node instanceof Parser.IfStatementNode) {
+            boolean isWhile = node instanceof Parser.WhileStatementNode;
+            Frame frame = new Frame(node, isWhile ? ((Parser.WhileStatementNode) node).statements
+                    : ((Parser.IfStatementNode) node).consequent);
+            add(Op.branch, expression(node.value), 0, 0, node);
+            frame.head = blocks - 1;
+            frame.body = block(depths[frame.head] + (isWhile ? 1 : 0));
+            link(frame.head, frame.body, -1);
+            return frame;
+        } else {
+            throw new IllegalStateException("Unexpected!");
+        }
+        return null;
+    }
+    private void setpixelArgument(Parser.StatementNode node, Parser.ExpressionNode argument, String name) {
+        // an argument already in place is not stored
+        if (argument instanceof Parser.IdentifierNode && argument.value.equals(name)) {
+            variable(name);
+            return;
+        }
+        int value = expression(argument);
+        add(Op.set, variable(name), value, 0, node);
+    }
+
+    // Adds the instructions of an expression, operands ahead of the instructions reading
+    // them, and returns the register holding its value. A binary expression comes off the
+    // stack twice, once to push its operands and once they are added to combine them.
+    private int expression(Parser.ExpressionNode root) {
+        push(root, false);
+        while (workSize > 0) {
+            Parser.ExpressionNode node = work[--workSize];
+            boolean visited = workVisited[workSize];
+            work[workSize] = null;
+            int register;
+            if (node instanceof Parser.BinaryExpressionNode) {
+                Parser.BinaryExpressionNode binary = (Parser.BinaryExpressionNode) node;
+                if (!visited) {
+                    push(binary, true);
+                    push(binary.right, false);
+                    push(binary.left, false);
+                    continue;
+                }
+                valueCount -= 2;
+                register = add(operators.get(binary.value), values[valueCount], values[valueCount + 1], 0, null);
+                firsts[register] = firsts[values[valueCount]];
+            } else if (node instanceof Parser.NumberLiteralNode) {
+                register = add(Op.constant, 0, 0, Float.floatToRawIntBits(Float.parseFloat(node.value)), null);
+            } else {
+                register = add(Op.get, variable(node.value), 0, 0, null);
+            }
+            expressions[register] = node;
+            if (valueCount == values.length) {
+                values = Arrays.copyOf(values, valueCount * 2);
+            }
+            values[valueCount++] = register;
+        }
+        return values[--valueCount];
+    }
+    private void push(Parser.ExpressionNode node, boolean visited) {
+        if (workSize == work.length) {
+            work = Arrays.copyOf(work, workSize * 2);
+            workVisited = Arrays.copyOf(workVisited, workSize * 2);
+        }
+        work[workSize] = node;
+        workVisited[workSize++] = visited;
+    }
+
+    private int add(Op op, int a, int b, int imm, Parser.StatementNode statement) {
+        if (size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            as = Arrays.copyOf(as, capacity);
+            bs = Arrays.copyOf(bs, capacity);
+            imms = Arrays.copyOf(imms, capacity);
+            firsts = Arrays.copyOf(firsts, capacity);
+            expressions = Arrays.copyOf(expressions, capacity);
+            statements = Arrays.copyOf(statements, capacity);
+        }
+        ops[size] = op;
+        as[size] = a;
+        bs[size] = b;
+        imms[size] = imm;
+        firsts[size] = size;
+        statements[size] = statement;
+        return size++;
+    }
+    // the index of a variable, numbering it when it is met for the first time
+    private int variable(String name) {
+        Integer index = variableIndex.get(name);
+        if (index == null) {
+            index = variables.size();
+            variableIndex.put(name, index);
+            variables.add(name);
+        }
+        return index;
+    }
+
+    // starts a new block at the next instruction, returning it
+    private int block(int depth) {
+        if (blocks == starts.length) {
+            int capacity = blocks * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            taken = Arrays.copyOf(taken, capacity);
+            notTaken = Arrays.copyOf(notTaken, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+        }
+        starts[blocks] = size;
+        taken[blocks] = -1;
+        notTaken[blocks] = -1;
+        depths[blocks] = depth;
+        return blocks++;
+    }
+    private void link(int block, int taken, int notTaken) {
+        this.taken[block] = taken;
+        this.notTaken[block] = notTaken;
+    }
+    // fills in the predecessors once every edge is known
+    private void link() {
+        int[] counts = new int[blocks];
+        for (int block = 0; block < blocks; block++) {
+            if (taken[block] >= 0) {
+                counts[taken[block]]++;
+            }
+            if (notTaken[block] >= 0) {
+                counts[notTaken[block]]++;
+            }
+        }
+        predecessors = new int[blocks][];
+        for (int block = 0; block < blocks; block++) {
+            predecessors[block] = new int[counts[block]];
+            counts[block] = 0;
+        }
+        for (int block = 0; block < blocks; block++) {
+            if (taken[block] >= 0) {
+                predecessors[taken[block]][counts[taken[block]]++] = block;
+            }
+            if (notTaken[block] >= 0) {
+                predecessors[notTaken[block]][counts[notTaken[block]]++] = block;
+            }
+        }
+    }
+}
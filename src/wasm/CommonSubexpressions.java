@@ -0,0 +1,443 @@
+package wasm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Common subexpression elimination by value numbering. Within a run of statements without
+// any while or if between them every arithmetic expression gets a number standing for the
+// value it computes, equal numbers meaning equal f32 bits. A value computed more than once is
+// stored in a temporary the first time, or read from a variable an assignment already left it
+// in, instead of being computed again.
+//
+// The condition of a while is tested right before every iteration, so a value it computes
+// that the body computes again can be kept in a temporary too. The temporary is set ahead of
+// the loop and again at the end of the body, where the condition is tested next. Values
+// carried around the loop count: after a = i at the end of the body, a * a at the top of the
+// next one is the i * i the condition just computed, as long as a and i were equal ahead of
+// the loop as well.
+//
+// Temporaries are named $c0, $c1.. which no identifier can clash with. Like the Optimizer it
+// runs after, it rewrites the statements it is given in place, and walks them on explicit
+// stacks rather than by recursion.
+public class CommonSubexpressions {
+
+    private static final int NONE = -1;
+    // rounds of loop analysis after which the variables a loop assigns are taken as unknown
+    private static final int MAX_ROUNDS = 8;
+
+    // the value every variable holds at some point of the program
+    private static class State {
+        final Map<String, Integer> values;
+        // a variable that holds each value, if it still does
+        final Map<Integer, String> holders;
+
+        State() {
+            values = new HashMap<>();
+            holders = new HashMap<>();
+        }
+        State(State state) {
+            values = new HashMap<>(state.values);
+            holders = new HashMap<>(state.holders);
+        }
+        void assign(String name, int value) {
+            Integer previous = values.put(name, value);
+            // holders only keeps the values still held, so copies stay as small as values
+            if (previous != null && name.equals(holders.get(previous))) {
+                holders.remove(previous);
+            }
+            if (value != NONE) {
+                holders.put(value, name);
+            }
+        }
+        String holder(int value) {
+            String holder = holders.get(value);
+            return holder != null && values.get(holder) == value ? holder : null;
+        }
+    }
+
+    // what a while leaves to the statements ahead of it and to its own body
+    private static class Loop {
+        // the values in the variables each time the condition is tested
+        State head;
+        final List<Parser.StatementNode> declarations = new ArrayList<>();
+        final List<Parser.StatementNode> updates = new ArrayList<>();
+    }
+
+    // a list of statements being rewritten, the program, the body of a while or a branch of an if
+    private static class Frame {
+        final List<Parser.StatementNode> nodes;
+        final List<Parser.StatementNode> rewritten = new ArrayList<>();
+        // where the next run of statements starts
+        int start;
+        State state;
+        // the while or if ending the last run, while its statements are rewritten, and whether
+        // those are its alternate
+        Parser.StatementNode control;
+        boolean alternate;
+
+        Frame(List<Parser.StatementNode> nodes, State state) {
+            this.nodes = nodes;
+            this.state = state;
+        }
+    }
+
+    // the value of an arithmetic expression by its operator and operand values, and of a
+    // constant by its bits
+    private final Map<String, Integer> table = new HashMap<>();
+    // the unknown value each variable holds when the statements start
+    private final Map<String, Integer> initial = new HashMap<>();
+    private int values;
+    private int temporaries;
+
+    private CommonSubexpressions() {
+    }
+
+    public static List<Parser.StatementNode> eliminate(List<Parser.StatementNode> nodes) {
+        return new CommonSubexpressions().statements(nodes);
+    }
+
+    private List<Parser.StatementNode> statements(List<Parser.StatementNode> nodes) {
+        ArrayDeque<Frame> frames = new ArrayDeque<>();
+        Frame program = new Frame(nodes, new State());
+        frames.push(program);
+        while (!frames.isEmpty()) {
+            Frame frame = frames.peek();
+            if (frame.start <= frame.nodes.size()) {
+                Frame nested = run(frame);
+                if (nested != null) {
+                    frames.push(nested);
+                }
+                continue;
+            }
+            frames.pop();
+            Frame outer = frames.peek();
+            if (outer == null) {
+                break;
+            }
+            if (outer.control instanceof Parser.WhileStatementNode) {
+                ((Parser.WhileStatementNode) outer.control).statements = frame.rewritten;
+            } else {
+                Parser.IfStatementNode ifNode = (Parser.IfStatementNode) outer.control;
+                if (!outer.alternate) {
+                    ifNode.consequent = frame.rewritten;
+                    outer.alternate = true;
+                    frames.push(new Frame(ifNode.alternate, new State(outer.state)));
+                    continue;
+                }
+                ifNode.alternate = frame.rewritten;
+                forget(List.of(ifNode), outer.state);
+            }
+            outer.rewritten.add(outer.control);
+            outer.control = null;
+            outer.alternate = false;
+        }
+        return program.rewritten;
+    }
+
+    // Rewrites the next run of statements without any while or if between them, and the
+    // condition of the while or if ending it. Returns the frame of the statements that one
+    // holds, null when the run ends the list.
+    private Frame run(Frame frame) {
+        List<Parser.StatementNode> nodes = frame.nodes;
+        State state = frame.state;
+        int end = frame.start;
+        while (end < nodes.size() && isStraight(nodes.get(end))) {
+            end++;
+        }
+        List<Parser.StatementNode> run = new ArrayList<>(nodes.subList(frame.start, end));
+        Parser.StatementNode control = end < nodes.size() ? nodes.get(end) : null;
+        frame.start = end + 1;
+        Loop loop = null;
+        if (control instanceof Parser.WhileStatementNode) {
+            State entry = new State(state);
+            count(run, entry, new HashMap<>());
+            loop = loop((Parser.WhileStatementNode) control, entry);
+            run.addAll(loop.declarations);
+        }
+
+        Map<Integer, Integer> counts = new HashMap<>();
+        State counting = count(run, new State(state), counts);
+        if (control instanceof Parser.IfStatementNode) {
+            count(control.value, counting, counts);
+        }
+        for (Parser.StatementNode node : run) {
+            rewrite(node, state, counts, frame.rewritten);
+        }
+
+        frame.control = control;
+        if (control instanceof Parser.IfStatementNode) {
+            Parser.IfStatementNode ifNode = (Parser.IfStatementNode) control;
+            ifNode.value = rewrite(ifNode.value, state, counts, frame.rewritten);
+            return new Frame(ifNode.consequent, new State(state));
+        } else if (control instanceof Parser.WhileStatementNode) {
+            Parser.WhileStatementNode whileNode = (Parser.WhileStatementNode) control;
+            whileNode.value = rewrite(whileNode.value, loop.head, new HashMap<>(), frame.rewritten);
+            List<Parser.StatementNode> body = new ArrayList<>(whileNode.statements);
+            body.addAll(loop.updates);
+            // the loop is left right after a test of the condition
+            frame.state = loop.head;
+            return new Frame(body, new State(loop.head));
+        }
+        return null;
+    }
+
+    private static boolean isStraight(Parser.StatementNode node) {
+        return !(node instanceof Parser.WhileStatementNode) && !(node instanceof Parser.IfStatementNode);
+    }
+
+    // Works out the values in the variables each time the condition of a loop is tested and
+    // which values the condition computes that the body computes again.
+    private Loop loop(Parser.WhileStatementNode node, State entry) {
+        Set<String> assigned = new HashSet<>();
+        Optimizer.assignments(node.statements, assigned);
+        List<String> variables = new ArrayList<>(assigned);
+
+        // Variables equal ahead of the loop and again at the end of the body are equal every
+        // time the condition is tested. This is assumed of all of them at first, then of
+        // fewer and fewer until the body no longer breaks it.
+        int base = values;
+        State head = entry;
+        int[] signature = signature(variables, head, base);
+        for (int round = 0; ; round++) {
+            State end = new State(head);
+            simulate(node.statements, end);
+            State next = new State(entry);
+            Map<Long, Integer> classes = new HashMap<>();
+            for (String variable : variables) {
+                int before = value(entry, variable);
+                int after = value(end, variable);
+                if (round == MAX_ROUNDS) {
+                    next.assign(variable, values++);
+                } else if (before != after) {
+                    next.assign(variable, classes.computeIfAbsent(((long) before << 32) | after, key -> values++));
+                }
+            }
+            int[] nextSignature = signature(variables, next, base);
+            head = next;
+            if (round == MAX_ROUNDS || Arrays.equals(signature, nextSignature)) {
+                break;
+            }
+            signature = nextSignature;
+        }
+
+        Loop loop = new Loop();
+        loop.head = head;
+        Map<Integer, Integer> counts = new HashMap<>();
+        State counting = new State(head);
+        count(node.value, counting, counts);
+        List<Parser.StatementNode> run = new ArrayList<>();
+        for (Parser.StatementNode statement : node.statements) {
+            if (!isStraight(statement)) {
+                break;
+            }
+            run.add(statement);
+        }
+        count(run, counting, counts);
+        carry(node.value, loop, counts);
+        return loop;
+    }
+
+    // gives the values the condition and the body both compute a temporary
+    private void carry(Parser.ExpressionNode node, Loop loop, Map<Integer, Integer> counts) {
+        Map<Parser.ExpressionNode, Integer> values = values(node, loop.head);
+        ArrayDeque<Parser.ExpressionNode> work = new ArrayDeque<>();
+        work.push(node);
+        while (!work.isEmpty()) {
+            Parser.ExpressionNode next = work.pop();
+            if (!(next instanceof Parser.BinaryExpressionNode)) {
+                continue;
+            }
+            int value = values.get(next);
+            if (value != NONE && loop.head.holder(value) == null && counts.getOrDefault(value, 0) > 1) {
+                String name = "$c" + temporaries++;
+                loop.declarations.add(new Parser.VariableDeclarationNode(name, next));
+                loop.updates.add(new Parser.VariableAssignmentNode(name, next));
+                loop.head.assign(name, value);
+                continue;
+            }
+            work.push(((Parser.BinaryExpressionNode) next).right);
+            work.push(((Parser.BinaryExpressionNode) next).left);
+        }
+    }
+
+    // The values of the variables, with the values made up since base numbered in the order
+    // they first appear. Two states with the same signature only differ in made up values,
+    // so the body leaves the same equalities behind from either.
+    private static int[] signature(List<String> variables, State state, int base) {
+        int[] signature = new int[variables.size()];
+        Map<Integer, Integer> made = new HashMap<>();
+        for (int i = 0; i < signature.length; i++) {
+            Integer value = state.values.get(variables.get(i));
+            if (value == null || value < base) {
+                signature[i] = value == null ? NONE : value;
+            } else {
+                signature[i] = -2 - made.computeIfAbsent(value, key -> made.size());
+            }
+        }
+        return signature;
+    }
+
+    // Follows the values through the statements without rewriting them, a variable assigned
+    // by a nested while or if ends up holding an unknown value
+    private void simulate(List<Parser.StatementNode> nodes, State state) {
+        for (Parser.StatementNode node : nodes) {
+            if (isStraight(node)) {
+                count(List.of(node), state, new HashMap<>());
+            } else {
+                forget(List.of(node), state);
+            }
+        }
+    }
+    private void forget(List<Parser.StatementNode> nodes, State state) {
+        Set<String> assigned = new HashSet<>();
+        Optimizer.assignments(nodes, assigned);
+        for (String variable : assigned) {
+            state.assign(variable, values++);
+        }
+    }
+
+    // Counts how often the statements compute each value where a temporary ahead of the
+    // statement could hold it, leaving state after the statements. A value is only counted
+    // once for all the expressions inside it, those come for free once it is reused.
+    private State count(List<Parser.StatementNode> nodes, State state, Map<Integer, Integer> counts) {
+        for (Parser.StatementNode node : nodes) {
+            if (node instanceof Parser.SetPixelStatementNode) {
+                // the later arguments are computed after x is stored, past a temporary
+                Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+                count(setPixelNode.x, state, counts);
+                setpixelArgument(setPixelNode.x, "x", state);
+                setpixelArgument(setPixelNode.y, "y", state);
+                setpixelArgument(setPixelNode.value, "color", state);
+                continue;
+            }
+            count(node.value, state, counts);
+            if (node instanceof Parser.VariableDeclarationNode) {
+                state.assign(((Parser.VariableDeclarationNode) node).name, value(node.value, state));
+            } else if (node instanceof Parser.VariableAssignmentNode) {
+                state.assign(((Parser.VariableAssignmentNode) node).name, value(node.value, state));
+            }
+        }
+        return state;
+    }
+    private void count(Parser.ExpressionNode node, State state, Map<Integer, Integer> counts) {
+        Map<Parser.ExpressionNode, Integer> values = values(node, state);
+        ArrayDeque<Parser.ExpressionNode> work = new ArrayDeque<>();
+        work.push(node);
+        while (!work.isEmpty()) {
+            Parser.ExpressionNode next = work.pop();
+            if (!(next instanceof Parser.BinaryExpressionNode)) {
+                continue;
+            }
+            int value = values.get(next);
+            if (value != NONE && (state.holder(value) != null || counts.merge(value, 1, Integer::sum) > 1)) {
+                continue;
+            }
+            work.push(((Parser.BinaryExpressionNode) next).right);
+            work.push(((Parser.BinaryExpressionNode) next).left);
+        }
+    }
+
+    // rewrites a statement into rewritten, after the declarations of any temporaries it needs
+    private void rewrite(Parser.StatementNode node, State state, Map<Integer, Integer> counts,
+                         List<Parser.StatementNode> rewritten) {
+        if (node instanceof Parser.SetPixelStatementNode) {
+            Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+            Map<Integer, Integer> none = new HashMap<>();
+            setPixelNode.x = rewrite(setPixelNode.x, state, counts, rewritten);
+            setpixelArgument(setPixelNode.x, "x", state);
+            setPixelNode.y = rewrite(setPixelNode.y, state, none, rewritten);
+            setpixelArgument(setPixelNode.y, "y", state);
+            setPixelNode.value = rewrite(setPixelNode.value, state, none, rewritten);
+            setpixelArgument(setPixelNode.value, "color", state);
+        } else {
+            node.value = rewrite(node.value, state, counts, rewritten);
+            if (node instanceof Parser.VariableDeclarationNode) {
+                state.assign(((Parser.VariableDeclarationNode) node).name, value(node.value, state));
+            } else if (node instanceof Parser.VariableAssignmentNode) {
+                state.assign(((Parser.VariableAssignmentNode) node).name, value(node.value, state));
+            }
+        }
+        rewritten.add(node);
+    }
+
+    private Parser.ExpressionNode rewrite(Parser.ExpressionNode node, State state, Map<Integer, Integer> counts,
+                                          List<Parser.StatementNode> declarations) {
+        // the temporaries declared on the way hold values, they do not change any
+        Map<Parser.ExpressionNode, Integer> values = values(node, state);
+        return Optimizer.rewrite(node, binary -> {
+            int value = values.get(binary);
+            String holder = value == NONE ? null : state.holder(value);
+            return holder != null ? new Parser.IdentifierNode(holder) : null;
+        }, (binary, left, right) -> {
+            int value = values.get(binary);
+            Parser.ExpressionNode rewritten = left == binary.left && right == binary.right ? binary
+                    : new Parser.BinaryExpressionNode(left, right, binary.value);
+            if (value != NONE && counts.getOrDefault(value, 0) > 1) {
+                String name = "$c" + temporaries++;
+                declarations.add(new Parser.VariableDeclarationNode(name, rewritten));
+                state.assign(name, value);
+                return new Parser.IdentifierNode(name);
+            }
+            return rewritten;
+        });
+    }
+
+    // an argument that already is the variable it goes into is not stored, which changes nothing
+    private void setpixelArgument(Parser.ExpressionNode argument, String name, State state) {
+        state.assign(name, value(argument, state));
+    }
+
+    private int value(State state, String variable) {
+        Integer value = state.values.get(variable);
+        return value != null ? value : initial.computeIfAbsent(variable, name -> values++);
+    }
+
+    // the value an expression computes, NONE for the i32 results of comparisons
+    private int value(Parser.ExpressionNode node, State state) {
+        if (node instanceof Parser.BinaryExpressionNode) {
+            return values(node, state).get(node);
+        }
+        return operand(node, state);
+    }
+    // the values of the binary expressions in an expression, worked out from the operands up
+    private Map<Parser.ExpressionNode, Integer> values(Parser.ExpressionNode node, State state) {
+        Map<Parser.ExpressionNode, Integer> values = new IdentityHashMap<>();
+        for (Parser.BinaryExpressionNode binary : Optimizer.postOrder(node)) {
+            String operator = binary.value;
+            if (!(operator.equals("+") || operator.equals("-") || operator.equals("*") || operator.equals("/"))) {
+                values.put(binary, NONE);
+                continue;
+            }
+            int left = binary.left instanceof Parser.BinaryExpressionNode ? values.get(binary.left)
+                    : operand(binary.left, state);
+            int right = binary.right instanceof Parser.BinaryExpressionNode ? values.get(binary.right)
+                    : operand(binary.right, state);
+            if (left == NONE || right == NONE) {
+                values.put(binary, NONE);
+                continue;
+            }
+            // f32 addition and multiplication give the same bits either way round
+            if ((operator.equals("+") || operator.equals("*")) && left > right) {
+                int swap = left;
+                left = right;
+                right = swap;
+            }
+            values.put(binary, table.computeIfAbsent(left + operator + right, key -> this.values++));
+        }
+        return values;
+    }
+    // the value of a constant or a variable
+    private int operand(Parser.ExpressionNode node, State state) {
+        if (node instanceof Parser.NumberLiteralNode) {
+            return table.computeIfAbsent("#" + Float.floatToIntBits(Float.parseFloat(node.value)), key -> values++);
+        }
+        return value(state, node.value);
+    }
+}
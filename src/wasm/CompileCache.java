@@ -0,0 +1,190 @@
+package wasm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A content-addressed cache in front of Compiler.compile. Modules are keyed by a SHA-256 of
+// the whitespace-normalized source and the compiler's fingerprint, kept in an in-heap LRU
+// bounded by bytes and, optionally, as <key>.wasm files in a directory that survives restarts.
+public class CompileCache {
+
+    private final Compiler compiler;
+    private final long maxBytes;
+    private final Path directory;
+
+    // access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CompileCache(Compiler compiler, long maxBytes) {
+        this(compiler, maxBytes, null);
+    }
+    /**
+     * @param maxBytes  upper bound on the module bytes held in heap
+     * @param directory where modules are stored on disk, or null to keep them in heap only
+     */
+    public CompileCache(Compiler compiler, long maxBytes, Path directory) {
+        this.compiler = compiler;
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the module for {@code source}, compiling it only if neither tier has it.
+     * The returned array is shared with the cache and must not be modified.
+     */
+    public byte[] compile(String source) {
+        String key = key(source);
+        byte[] module = lookup(key);
+        if (module != null) {
+            hits.incrementAndGet();
+            return module;
+        }
+        module = readFromDisk(key);
+        if (module != null) {
+            diskHits.incrementAndGet();
+            store(key, module);
+            return module;
+        }
+        misses.incrementAndGet();
+        module = compiler.compile(source);
+        store(key, module);
+        writeToDisk(key, module);
+        return module;
+    }
+
+    // runs of whitespace only ever separate tokens, so collapsing them to a single space
+    // gives the same token stream. Only the whitespace the Tokenizer accepts is collapsed,
+    // any other character has to reach it and be rejected.
+    static String normalize(String source) {
+        StringBuilder normalized = new StringBuilder(source.length());
+        boolean space = false;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (Tokenizer.isWhitespace(c)) {
+                space = normalized.length() > 0;
+            } else {
+                if (space) {
+                    normalized.append(' ');
+                    space = false;
+                }
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    String key(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(normalize(source).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(compiler.fingerprint().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized byte[] lookup(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized void store(String key, byte[] module) {
+        if (module.length > maxBytes) {
+            return;
+        }
+        byte[] previous = entries.put(key, module);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += module.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().getValue().length;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private byte[] readFromDisk(String key) {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(directory.resolve(key + BatchCompiler.OUTPUT_EXTENSION));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // written to a temporary file and moved into place, so a concurrent reader or a crash
+    // never leaves a partial module behind
+    private void writeToDisk(String key, byte[] module) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temporary, module);
+            Files.move(temporary, directory.resolve(key + BatchCompiler.OUTPUT_EXTENSION),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+    public long diskHits() {
+        return diskHits.get();
+    }
+    public long misses() {
+        return misses.get();
+    }
+    public long evictions() {
+        return evictions.get();
+    }
+    public synchronized long bytes() {
+        return bytes;
+    }
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits() + " diskHits=" + diskHits() + " misses=" + misses()
+                + " evictions=" + evictions() + " entries=" + size() + " bytes=" + bytes();
+    }
+}
@@ -1,18 +1,59 @@
 package wasm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
 public class Compiler {
 
-    private Map<String, Integer> symbols = new HashMap<>();
+    //String input = "print 8";
+    //4 String input = "print ( 2 + 4 )";
+    //5 String input = "var f = 22 print f";
+    //6.1 String input = "var f = 3 f = ( f + -1 ) print f";
+    //6.2 String input = "var f = 0 while ( f < 5 ) f = ( f + 1 ) print f endwhile";
+    //7 String input = "setpixel 1 2 240";
+    //8 String input = "if ( 5 > 3 ) print 2 else print 3 endif";
+    //8.2 String input = "if ( 5 < 3 ) print 2 else print 3 endif";
+    //String input = "var far = 22 far = ( far + 1 ) print far";
+    public static final String FRACTAL = "" +
+            " var y  = 0 " +
+            " while ( y < 100 ) " +
+            "   y = ( y + 1 ) " +
+            "   var x  = 0 " +
+            "   while ( x < 100 ) " +
+            "       x = ( x + 1 ) " +
+            "       var e = ( ( y / 50 ) - 1.5 ) " +
+            "       var f = ( ( x / 50 ) - 1 ) " +
+            "       var a = 0 " +
+            "       var b = 0 " +
+            "       var i = 0 " +
+            "       var j = 0 " +
+            "       var c = 0 " +
+            "       while ( ( ( ( i * i ) + ( j * j ) ) < 4 ) && ( c < 255 ) ) " +
+            "           i = ( ( ( a * a ) - ( b * b ) ) + e ) " +
+            "           j = ( ( ( 2 * a ) * b ) + f ) " +
+            "           a = i " +
+            "           b = j " +
+            "           c = ( c + 1 ) " +
+            "       endwhile " +
+            "       setpixel x y c " +
+            "   endwhile " +
+            " endwhile ";
 
     //// https://webassembly.github.io/spec/core/binary/modules.html#sections
     private enum Section {
@@ -55,38 +96,58 @@ public class Compiler {
     }
 
     // https://webassembly.github.io/spec/core/binary/instructions.html
-    private enum Opcodes {
+    enum Opcodes {
         block((byte) 0x02),
         loop((byte) 0x03),
+        if_((byte) 0x04),
+        else_((byte) 0x05),
         br((byte) 0x0c),
         br_if((byte) 0x0d),
         end((byte) 0x0b),
         call((byte) 0x10),
+        drop((byte) 0x1a),
         get_local((byte) 0x20),
         set_local((byte) 0x21),
+        tee_local((byte) 0x22),
+        i32_store((byte) 0x36),
         i32_store_8((byte) 0x3a),
+        i32_store_16((byte) 0x3b),
         i32_const((byte) 0x41),
         f32_const((byte) 0x43),
         i32_eqz((byte) 0x45),
         i32_eq((byte) 0x46),
+        i32_lt_s((byte) 0x48),
+        i32_gt_s((byte) 0x4a),
         f32_eq((byte) 0x5b),
         f32_lt((byte) 0x5d),
         f32_gt((byte) 0x5e),
+        i32_add((byte) 0x6a),
+        i32_sub((byte) 0x6b),
+        i32_mul((byte) 0x6c),
         i32_and((byte) 0x71),
         f32_add((byte) 0x92),
         f32_sub((byte) 0x93),
         f32_mul((byte) 0x94),
         f32_div((byte) 0x95),
-        i32_trunc_f32_s((byte) 0xa8);
-        private final byte val;
+        i32_trunc_f32_s((byte) 0xa8),
+        f32_convert_i32_s((byte) 0xb2);
+        final byte val;
         Opcodes(byte val) {
             this.val = val;
         }
     }
 
-    private Map<String, Opcodes> binaryOpcode = Map.of("+", Opcodes.f32_add, "-", Opcodes.f32_sub,
-            "*", Opcodes.f32_mul, "/", Opcodes.f32_div, "==", Opcodes.f32_eq,
-            ">", Opcodes.f32_gt, "<", Opcodes.f32_lt, "&&", Opcodes.i32_and);
+    // the instruction each Ir operator computing a value is emitted as
+    private static final Map<Ir.Op, Opcodes> irOpcodes = new EnumMap<>(Map.ofEntries(
+            Map.entry(Ir.Op.f32_add, Opcodes.f32_add), Map.entry(Ir.Op.f32_sub, Opcodes.f32_sub),
+            Map.entry(Ir.Op.f32_mul, Opcodes.f32_mul), Map.entry(Ir.Op.f32_div, Opcodes.f32_div),
+            Map.entry(Ir.Op.f32_eq, Opcodes.f32_eq), Map.entry(Ir.Op.f32_lt, Opcodes.f32_lt),
+            Map.entry(Ir.Op.f32_gt, Opcodes.f32_gt), Map.entry(Ir.Op.i32_add, Opcodes.i32_add),
+            Map.entry(Ir.Op.i32_sub, Opcodes.i32_sub), Map.entry(Ir.Op.i32_mul, Opcodes.i32_mul),
+            Map.entry(Ir.Op.i32_eq, Opcodes.i32_eq), Map.entry(Ir.Op.i32_lt, Opcodes.i32_lt_s),
+            Map.entry(Ir.Op.i32_gt, Opcodes.i32_gt_s), Map.entry(Ir.Op.i32_and, Opcodes.i32_and),
+            Map.entry(Ir.Op.f32_from_i32, Opcodes.f32_convert_i32_s),
+            Map.entry(Ir.Op.i32_from_f32, Opcodes.i32_trunc_f32_s)));
 
     // http://webassembly.github.io/spec/core/binary/modules.html#export-section
     private enum ExportType {
@@ -101,388 +162,666 @@ public class Compiler {
     }
 
     // http://webassembly.github.io/spec/core/binary/types.html#function-types
-    private byte functionType = 0x60;
-    private byte emptyArray = 0x0;
-    private byte[] magicModuleHeader = new byte[]{0x00, 0x61, 0x73, 0x6d};
-    private byte[] moduleVersion = new byte[]{0x01, 0x00, 0x00, 0x00};
-
-    // https://webassembly.github.io/spec/core/binary/conventions.html#binary-vec
-    // Vectors are encoded with their length followed by their element sequence
-    private byte[] encodeVector(byte[] data) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(Leb128.writeUnsignedLeb128(data.length));
-        baos.write(data);
-        return baos.toByteArray();
-    }
-    private byte[] encodeVector(int len, byte[] data) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(Leb128.writeUnsignedLeb128(len));
-        baos.write(data);
-        return baos.toByteArray();
-    }
-    private byte[] append(byte[] str, byte[] b, byte[] data) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(str);
-        baos.write(b);
-        baos.write(data);
-        return baos.toByteArray();
-    }
-    private byte[] append(byte[] a, byte[] b) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            baos.write(a);
-            baos.write(b);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
-        return baos.toByteArray();
+    private static final byte functionType = 0x60;
+    private static final byte emptyArray = 0x0;
+    private static final byte[] magicModuleHeader = new byte[]{0x00, 0x61, 0x73, 0x6d};
+    private static final byte[] moduleVersion = new byte[]{0x01, 0x00, 0x00, 0x00};
+
+    // everything that belongs to a single compile, a Compiler itself holds no per-compile
+    // state so one instance can run any number of compiles, concurrently too
+    static class Context {
+        // variables sharing a local map to the same index
+        private final Map<String, Integer> symbols = new HashMap<>();
+        // the local of every symbol looked up so far, -1 for the others
+        private int[] bySymbol = new int[0];
+        private int locals;
+        // the locals that are parameters, which the locals vector leaves out
+        private int params;
+        // the variables held in i32 locals, null when every local is an f32
+        private TypeInference.Types types;
     }
-    // https://webassembly.github.io/spec/core/binary/modules.html#code-section
-    byte[] encodeLocal(int count, Valtype type) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            baos.write(Leb128.writeUnsignedLeb128(count));
-        }catch(Exception e){
-            throw new IllegalArgumentException(e);
+
+    // the run_range function of a module, see ShardedLoop
+    private static class Range {
+        final ShardedLoop loop;
+        final Context context;
+        final Consumer<WasmWriter> code;
+
+        Range(ShardedLoop loop, Context context, Consumer<WasmWriter> code) {
+            this.loop = loop;
+            this.context = context;
+            this.code = code;
         }
-        baos.write(type.val);
-        return baos.toByteArray();
     }
 
+    // https://webassembly.github.io/spec/core/binary/modules.html#code-section
+    private void encodeLocal(WasmWriter out, int count, Valtype type) {
+        out.writeUnsignedLeb128(count);
+        out.write(type.val);
+    }
+    // locals are declared as runs of the same type, in index order
+    private void encodeLocals(Context context, WasmWriter out) {
+        Valtype[] types = new Valtype[context.locals - context.params];
+        for (Map.Entry<String, Integer> symbol : context.symbols.entrySet()) {
+            if (symbol.getValue() >= context.params) {
+                types[symbol.getValue() - context.params] = typeOf(context, symbol.getKey());
+            }
+        }
+        int groups = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (i == 0 || types[i] != types[i - 1]) {
+                groups++;
+            }
+        }
+        out.writeUnsignedLeb128(groups);
+        for (int start = 0, end; start < types.length; start = end) {
+            end = start + 1;
+            while (end < types.length && types[end] == types[start]) {
+                end++;
+            }
+            encodeLocal(out, end - start, types[start]);
+        }
+    }
 
     // https://webassembly.github.io/spec/core/binary/modules.html#sections
-    // sections are encoded by their type followed by their vector contents
-    private byte[] createSection(byte sectionType, byte[] data) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(sectionType);
-        baos.write(encodeVector(data));
-        return baos.toByteArray();
+    // sections are encoded by their type followed by their vector contents, the size of
+    // the contents is backpatched by endSection
+    private int beginSection(WasmWriter out, Section section) {
+        out.write(section.index);
+        return out.reserveLength();
+    }
+    private void endSection(WasmWriter out, int slot) {
+        out.patchLength(slot);
     }
 
     // Function types are vectors of parameters and return types. Currently
     // WebAssembly only supports single return values
-    private byte[] addFunctionType() throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(functionType);
-        byte[] params = new byte[] { Valtype.f32.val, Valtype.f32.val};
-        baos.write(encodeVector(params));
-        byte[] ret = new byte[] { Valtype.f32.val};
-        baos.write(encodeVector(ret));
-        return baos.toByteArray();
-    }
-    private byte[] voidVoidType() throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(functionType);
-        baos.write(emptyArray);
-        baos.write(emptyArray);
-        return baos.toByteArray();
-    }
-    private byte[] floatVoidType() throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(functionType);
-        byte[] ret = new byte[] { Valtype.f32.val};
-        baos.write(encodeVector(ret));
-        baos.write(emptyArray);
-        return baos.toByteArray();
-    }
-    //https://stackoverflow.com/a/3523066
-    private static void reverse(byte[] data) {
-        int left = 0;
-        int right = data.length - 1;
-        while( left < right ) {
-            // swap the values at the left and right indices
-            byte temp = data[left];
-            data[left] = data[right];
-            data[right] = temp;
-            // move the left and right index pointers in toward the center
-            left++;
-            right--;
-        }
-    }
-    private byte[] ieee754(float fl) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeFloat(fl);
-            dos.close();
-            byte[] bytes = baos.toByteArray();
-            reverse(bytes);
-            return bytes;
-        }catch (Exception e) {
-            throw new IllegalArgumentException(e);
-        }
-    }
-
-    private byte[] encodeString(String str) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(str.length());
-        for(int i=0; i < str.length(); i++) {
-            baos.write(str.charAt(i));
-        }
-        return baos.toByteArray();
-    }
-    private byte[] emitExpression(Parser.ExpressionNode expressionNode, ByteArrayOutputStream baos) {
-        Consumer<Parser.ExpressionNode> visitor = node -> {
-            try {
-                if (node.type.equals("numberLiteral")) {
-                    baos.write(Opcodes.f32_const.val);
-                    baos.write(ieee754(Float.valueOf(node.value)));
-                } else if (node.type.equals("identifier")) {
-                    baos.write(Opcodes.get_local.val);
-                    baos.write(Leb128.writeUnsignedLeb128(localIndexForSymbol(node.value)));
-                } else if (node.type.equals("binaryExpression")) {
-                    baos.write(binaryOpcode.get(node.value).val);
-                }
-            } catch (Exception ex) {
-                throw new IllegalStateException(ex);
+    private void addFunctionType(WasmWriter out) {
+        out.write(functionType);
+        out.writeUnsignedLeb128(2);
+        out.write(Valtype.f32.val);
+        out.write(Valtype.f32.val);
+        out.writeUnsignedLeb128(1);
+        out.write(Valtype.f32.val);
+    }
+    private void voidVoidType(WasmWriter out) {
+        out.write(functionType);
+        out.write(emptyArray);
+        out.write(emptyArray);
+    }
+    private void floatVoidType(WasmWriter out) {
+        out.write(functionType);
+        out.writeUnsignedLeb128(1);
+        out.write(Valtype.f32.val);
+        out.write(emptyArray);
+    }
+    // run_range(start, end)
+    private void rangeType(WasmWriter out) {
+        out.write(functionType);
+        out.writeUnsignedLeb128(2);
+        out.write(Valtype.f32.val);
+        out.write(Valtype.f32.val);
+        out.write(emptyArray);
+    }
+    private Valtype typeOf(Context context, String variable) {
+        return Lowering.isInteger(context.types, variable) ? Valtype.i32 : Valtype.f32;
+    }
+    private int localIndexForSymbol(Context context, String name) {
+        Integer index = context.symbols.get(name);
+        if (index == null) {
+            index = context.locals++;
+            context.symbols.put(name, index);
+        }
+        return index;
+    }
+    // the same by the name's id, an array lookup once the symbol has been met
+    private int localIndexForSymbol(Context context, String name, int symbol) {
+        if (symbol < 0) {
+            return localIndexForSymbol(context, name);
+        }
+        int[] bySymbol = context.bySymbol;
+        if (symbol >= bySymbol.length) {
+            int length = bySymbol.length;
+            bySymbol = context.bySymbol = Arrays.copyOf(bySymbol, Math.max(symbol + 1, length * 2));
+            Arrays.fill(bySymbol, length, bySymbol.length, -1);
+        }
+        if (bySymbol[symbol] < 0) {
+            bySymbol[symbol] = localIndexForSymbol(context, name);
+        }
+        return bySymbol[symbol];
+    }
+    // The locals vector precedes the code in a function body, so every symbol is given its
+    // index up front, in the same order emitStatements first meets them. Symbols the
+    // LocalAllocator placed already keep their index.
+    // Lists and expressions are walked with stacks, not recursion, like the Lowering does.
+    void declareLocals(Context context, List<Parser.StatementNode> nodes) {
+        ArrayDeque<Iterator<Parser.StatementNode>> lists = new ArrayDeque<>();
+        ArrayDeque<Parser.ExpressionNode> expressions = new ArrayDeque<>();
+        lists.push(nodes.iterator());
+        while (!lists.isEmpty()) {
+            if (!lists.peek().hasNext()) {
+                lists.pop();
+                continue;
             }
-        };
-        traverse(List.of(expressionNode), visitor);
-        return baos.toByteArray();
-    }
-    private void traverse(List<Parser.ExpressionNode> nodes, Consumer<Parser.ExpressionNode> visitor) {
-        // post order ast walker
-        for(Parser.ExpressionNode expression : nodes) {
-            if (expression instanceof Parser.BinaryExpressionNode) {
-                Parser.BinaryExpressionNode node = (Parser.BinaryExpressionNode)expression;
-                traverse(List.of(node.left), visitor);
-                traverse(List.of(node.right), visitor);
+            Parser.StatementNode node = lists.peek().next();
+            if (node instanceof Parser.SetPixelStatementNode) {
+                Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+                declareLocals(context, setPixelNode.x, expressions);
+                localIndexForSymbol(context, "x");
+                declareLocals(context, setPixelNode.y, expressions);
+                localIndexForSymbol(context, "y");
+                declareLocals(context, setPixelNode.value, expressions);
+                localIndexForSymbol(context, "color");
+                continue;
             }
-            visitor.accept(expression);
-        }
-    }
-    private int localIndexForSymbol(String name) {
-        if (!symbols.containsKey(name)) {
-            symbols.put(name, symbols.size());
-        }
-        return symbols.get(name);
-    }
-
-    private byte[] codeFromAst(List<Parser.StatementNode> ast) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        emitStatements(ast, baos);
-        return baos.toByteArray();
-    }
-    private byte[] emitStatements(List<Parser.StatementNode> nodes, ByteArrayOutputStream baos) {
-        try {
-            for(Parser.StatementNode node : nodes) {
-                String type = node.type;
-                if(type.equals("printStatement")) {
-                    emitExpression(node.value, baos);
-                    baos.write(Opcodes.call.val);
-                    baos.write(Leb128.writeUnsignedLeb128(0));
-                } else if (type.equals("variableDeclaration")) {
-                    Parser.VariableDeclarationNode var = (Parser.VariableDeclarationNode) node;
-                    emitExpression(var.value, baos);
-                    baos.write(Opcodes.set_local.val);
-                    baos.write(Leb128.writeUnsignedLeb128(localIndexForSymbol(var.name)));
-                } else if (type.equals("variableAssignment")) {
-                    Parser.VariableAssignmentNode assignmentNode = (Parser.VariableAssignmentNode) node;
-                    emitExpression(assignmentNode.value, baos);
-                    baos.write(Opcodes.set_local.val);
-                    baos.write(Leb128.writeUnsignedLeb128(localIndexForSymbol(assignmentNode.name)));
-                } else if (type.equals("whileStatement")) {
-                    Parser.WhileStatementNode whileNode = (Parser.WhileStatementNode) node;
-                    // outer block
-                    baos.write(Opcodes.block.val);
-                    baos.write(Blocktype.void_block.val);
-                    // inner loop
-                    baos.write(Opcodes.loop.val);
-                    baos.write(Blocktype.void_block.val);
-
-                    // compute the while expression
-                    emitExpression(whileNode.value, baos);
-                    baos.write(Opcodes.i32_eqz.val);
-                    // br_if $label0
-                    baos.write(Opcodes.br_if.val);
-                    baos.write(Leb128.writeSignedLeb128(1));
-                    // the nested logic
-                    emitStatements(whileNode.statements, baos);
-                    // br $label1
-                    baos.write(Opcodes.br.val);
-                    baos.write(Leb128.writeSignedLeb128(0));
-                    // end loop
-                    baos.write(Opcodes.end.val);
-                    // end block
-                    baos.write(Opcodes.end.val);
-                } else if (type.equals("ifStatement")) {
-                    Parser.IfStatementNode ifNode = (Parser.IfStatementNode) node;
-                    // if block
-                    baos.write(Opcodes.block.val);
-                    baos.write(Blocktype.void_block.val);
-                    // compute the if expression
-                    emitExpression(ifNode.value, baos);
-                    baos.write(Opcodes.i32_eqz.val);
-                    // br_if $label0
-                    baos.write(Opcodes.br_if.val);
-                    baos.write(Leb128.writeSignedLeb128(0));
-                    // the nested logic
-                    emitStatements(ifNode.consequent, baos);
-                    // end block
-                    baos.write(Opcodes.end.val);
-
-                    // else block
-                    baos.write(Opcodes.block.val);
-                    baos.write(Blocktype.void_block.val);
-                    // compute the if expression
-                    emitExpression(ifNode.value, baos);
-                    baos.write(Opcodes.i32_const.val);
-                    baos.write(Leb128.writeSignedLeb128(1));
-                    baos.write(Opcodes.i32_eq.val);
-                    // br_if $label0
-                    baos.write(Opcodes.br_if.val);
-                    baos.write(Leb128.writeSignedLeb128(0));
-                    // the nested logic
-                    emitStatements(ifNode.alternate, baos);
-                    // end block
-                    baos.write(Opcodes.end.val);
-                } else if (type.equals("setpixelStatement")) {
-                    Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
-                    // compute and cache the setpixel parameters
-                    emitExpression(setPixelNode.x, baos);
-                    baos.write(Opcodes.set_local.val);
-                    baos.write(Leb128.writeUnsignedLeb128(localIndexForSymbol("x")));
-                    emitExpression(setPixelNode.y, baos);
-                    baos.write(Opcodes.set_local.val);
-                    baos.write(Leb128.writeUnsignedLeb128(localIndexForSymbol("y")));
-                    emitExpression(setPixelNode.value, baos);
-                    baos.write(Opcodes.set_local.val);
-                    baos.write(Leb128.writeUnsignedLeb128(localIndexForSymbol("color")));
-                    // compute the offset (x * 100) + y
-                    baos.write(Opcodes.get_local.val);
-                    baos.write(Leb128.writeUnsignedLeb128(localIndexForSymbol("y")));
-                    baos.write(Opcodes.f32_const.val);
-                    baos.write(ieee754(Float.valueOf(100)));
-                    baos.write(Opcodes.f32_mul.val);
-                    baos.write(Opcodes.get_local.val);
-                    baos.write(Leb128.writeUnsignedLeb128(localIndexForSymbol("x")));
-                    baos.write(Opcodes.f32_add.val);
-                    // convert to an integer
-                    baos.write(Opcodes.i32_trunc_f32_s.val);
-                    // fetch the color
-                    baos.write(Opcodes.get_local.val);
-                    baos.write(Leb128.writeUnsignedLeb128(localIndexForSymbol("color")));
-                    baos.write(Opcodes.i32_trunc_f32_s.val);
-                    // write
-                    baos.write(Opcodes.i32_store_8.val);
-                    baos.write(new byte[] {0x00, 0x00}); // align and offset
-                }
+            declareLocals(context, node.value, expressions);
+            if (node instanceof Parser.VariableDeclarationNode) {
+                Parser.VariableDeclarationNode declaration = (Parser.VariableDeclarationNode) node;
+                localIndexForSymbol(context, declaration.name, declaration.symbol);
+            } else if (node instanceof Parser.VariableAssignmentNode) {
+                Parser.VariableAssignmentNode assignment = (Parser.VariableAssignmentNode) node;
+                localIndexForSymbol(context, assignment.name, assignment.symbol);
+            } else if (node instanceof Parser.WhileStatementNode) {
+                lists.push(((Parser.WhileStatementNode) node).statements.iterator());
+            } else if (node instanceof Parser.IfStatementNode) {
+                // the alternate goes under the consequent, to be walked after it
+                lists.push(((Parser.IfStatementNode) node).alternate.iterator());
+                lists.push(((Parser.IfStatementNode) node).consequent.iterator());
             }
-        }catch(Exception e){
-            throw new IllegalStateException(e);
         }
-        return baos.toByteArray();
+    }
+    // declares the identifiers of an expression from left to right
+    private void declareLocals(Context context, Parser.ExpressionNode root, ArrayDeque<Parser.ExpressionNode> stack) {
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Parser.ExpressionNode node = stack.pop();
+            if (node instanceof Parser.BinaryExpressionNode) {
+                stack.push(((Parser.BinaryExpressionNode) node).right);
+                stack.push(((Parser.BinaryExpressionNode) node).left);
+            } else if (node instanceof Parser.IdentifierNode) {
+                localIndexForSymbol(context, node.value, ((Parser.IdentifierNode) node).symbol);
+            }
+        }
+    }
+
+    // Emits the statement lists nested in while and if statements, so a caller holding
+    // ready-made code for them can supply it rather than having them emitted again
+    interface Bodies {
+        void emit(List<Parser.StatementNode> statements, WasmWriter out);
+    }
+
+    void emitStatements(Context context, List<Parser.StatementNode> nodes, WasmWriter out) {
+        emit(context, lower(context, Lowering.lower(nodes, context.types, canvas)), out, null);
+    }
+    void emitStatement(Context context, Parser.StatementNode node, WasmWriter out, Bodies bodies) {
+        emit(context, lower(context, Lowering.lowerStatement(node, context.types, canvas)), out, bodies);
+    }
+    private Ir lower(Context context, Ir ir) {
+        if (optimizationLevel > 0) {
+            passes.run(ir);
+        }
+        return ir;
     }
 
+    // Emits the instructions in order. Their values are left on the wasm stack, an Ir value is
+    // read right after the values computed since have all been read, exactly when it is on top.
+    void emit(Context context, Ir ir, WasmWriter out, Bodies bodies) {
+        List<String> variables = ir.variables();
+        int[] locals = new int[variables.size()];
+        for (int i = 0; i < locals.length; i++) {
+            locals[i] = localIndexForSymbol(context, variables.get(i));
+        }
+        // how many blocks enclose each if and loop, to work out how far a branch goes out
+        int[] depth = new int[ir.size()];
+        int open = 0;
+        for (int i = 0; i < ir.size(); i++) {
+            Ir.Op op = ir.op(i);
+            switch (op) {
+                case f32_const:
+                    out.write(Opcodes.f32_const.val);
+                    out.writeFloat(ir.constant(i));
+                    break;
+                case i32_const:
+                    out.write(Opcodes.i32_const.val);
+                    out.writeSignedLeb128(ir.imm(i));
+                    break;
+                case get_f32:
+                case get_i32:
+                    out.write(Opcodes.get_local.val);
+                    out.writeUnsignedLeb128(locals[ir.a(i)]);
+                    break;
+                case set:
+                    out.write(Opcodes.set_local.val);
+                    out.writeUnsignedLeb128(locals[ir.a(i)]);
+                    break;
+                case print:
+                    out.write(Opcodes.call.val);
+                    out.writeUnsignedLeb128(0);
+                    break;
+                case store:
+                    int bytes = ir.imm(i);
+                    out.write((bytes == 1 ? Opcodes.i32_store_8
+                            : bytes == 2 ? Opcodes.i32_store_16 : Opcodes.i32_store).val);
+                    out.write((byte) 0x00); // align
+                    out.write((byte) 0x00); // offset
+                    break;
+                case if_:
+                    out.write(Opcodes.if_.val);
+                    out.write(Blocktype.void_block.val);
+                    depth[i] = open++;
+                    break;
+                case else_:
+                    out.write(Opcodes.else_.val);
+                    break;
+                case loop:
+                    out.write(Opcodes.loop.val);
+                    out.write(Blocktype.void_block.val);
+                    depth[i] = open++;
+                    break;
+                case br_if:
+                    out.write(Opcodes.br_if.val);
+                    out.writeSignedLeb128(open - 1 - depth[ir.imm(i)]);
+                    break;
+                case end:
+                    out.write(Opcodes.end.val);
+                    open--;
+                    break;
+                case body:
+                    bodies.emit(ir.body(i), out);
+                    break;
+                case nop:
+                    break;
+                default:
+                    out.write(irOpcodes.get(op).val);
+                    break;
+            }
+        }
+    }
+
+    // bumped whenever the code generated for a program changes, cached modules are keyed on it
+    public static final String VERSION = "16";
+
+    // Settings for how programs are compiled, copied by the Compiler they are given to
+    public static class Options {
+        // 0 compiles the program as written, 1 runs it through the Optimizer first and the
+        // emitted code through the Peephole rules
+        private int optimizationLevel = 1;
+        // whether modules also export run_range when the program ends in a loop whose
+        // iterations are independent, see ShardedLoop
+        private boolean runRange;
+        private Canvas canvas = Canvas.DEFAULT;
+
+        public Options optimizationLevel(int level) {
+            if (level < 0 || level > 1) {
+                throw new IllegalArgumentException("Unknown optimization level " + level);
+            }
+            this.optimizationLevel = level;
+            return this;
+        }
+        int optimizationLevel() {
+            return optimizationLevel;
+        }
+        public Options runRange(boolean runRange) {
+            this.runRange = runRange;
+            return this;
+        }
+        // the framebuffer setpixel draws to, which also sets the memory modules import
+        public Options canvas(int width, int height, int bytesPerPixel) {
+            this.canvas = new Canvas(width, height, bytesPerPixel);
+            return this;
+        }
+        Canvas canvas() {
+            return canvas;
+        }
+    }
+
+    private final int optimizationLevel;
+    private final boolean runRange;
+    private final Canvas canvas;
+    private final Peephole peephole = new Peephole();
+    private final PassManager passes = PassManager.standard();
+
     public Compiler() {
-        try {
-            //String input = "print 8";
-            //4 String input = "print ( 2 + 4 )";
-            //5 String input = "var f = 22 print f";
-            //6.1 String input = "var f = 3 f = ( f + -1 ) print f";
-            //6.2 String input = "var f = 0 while ( f < 5 ) f = ( f + 1 ) print f endwhile";
-            //7 String input = "setpixel 1 2 240";
-            //8 String input = "if ( 5 > 3 ) print 2 else print 3 endif";
-            //8.2 String input = "if ( 5 < 3 ) print 2 else print 3 endif";
-            //String input = "var far = 22 far = ( far + 1 ) print far";
-            String input = "" +
-                    " var y  = 0 " +
-                    " while ( y < 100 ) " +
-                    "   y = ( y + 1 ) " +
-                    "   var x  = 0 " +
-                    "   while ( x < 100 ) " +
-                    "       x = ( x + 1 ) " +
-                    "       var e = ( ( y / 50 ) - 1.5 ) " +
-                    "       var f = ( ( x / 50 ) - 1 ) " +
-                    "       var a = 0 " +
-                    "       var b = 0 " +
-                    "       var i = 0 " +
-                    "       var j = 0 " +
-                    "       var c = 0 " +
-                    "       while ( ( ( ( i * i ) + ( j * j ) ) < 4 ) && ( c < 255 ) ) " +
-                    "           i = ( ( ( a * a ) - ( b * b ) ) + e ) " +
-                    "           j = ( ( ( 2 * a ) * b ) + f ) " +
-                    "           a = i " +
-                    "           b = j " +
-                    "           c = ( c + 1 ) " +
-                    "       endwhile " +
-                    "       setpixel x y c " +
-                    "   endwhile " +
-                    " endwhile ";
-            input = input.trim().replaceAll(" +", " ");
-            input = input.replaceAll("\t", "");
-            String filename = "generated-fractal.wasm";
-            Tokenizer tokenizer = new Tokenizer();
-            List<Tokenizer.Token> tokens = tokenizer.tokenize(input);
-            List<Parser.StatementNode> ast = Parser.parse(tokens);
-            byte[] contents = build(ast);
-            writeFile(contents, filename);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-    private void writeFile(byte[] contents, String filename) {
-        File file = new File(filename);
-        try {
-            Files.write(file.toPath(), contents);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-    private byte[] build(List<Parser.StatementNode> ast) throws Exception {
-        // the type section is a vector of function types
-        byte[] typeSection = createSection(Section.type_section.index
-                , encodeVector(2, append(voidVoidType(), floatVoidType())));
+        this(new Options());
+    }
+    public Compiler(Options options) {
+        this.optimizationLevel = options.optimizationLevel;
+        this.runRange = options.runRange;
+        this.canvas = options.canvas;
+    }
+    public int optimizationLevel() {
+        return optimizationLevel;
+    }
+    public Canvas canvas() {
+        return canvas;
+    }
+    // the peephole rules applied so far, by every compile this Compiler ran
+    public Peephole peephole() {
+        return peephole;
+    }
+    /**
+     * Identifies everything besides the source that determines the module bytes.
+     */
+    public String fingerprint() {
+        return "chasm-" + VERSION + "-O" + optimizationLevel + (runRange ? "-range" : "")
+                + (canvas.equals(Canvas.DEFAULT) ? "" : "-" + canvas);
+    }
+    /**
+     * Compiles a Chasm program to a WebAssembly module exporting a run function, and
+     * run_range when asked for and the program allows it. Safe to call from several threads
+     * at once.
+     */
+    public byte[] compile(String source) {
+        if (optimizationLevel == 0 && !runRange) {
+            // nothing to optimize, so the program is parsed into the compact Ast straight from
+            // the tokenizer's chunks, without a list of every token
+            return build(Parser.parseAst(new Tokenizer().tokenize(new StringReader(source))));
+        }
+        List<Parser.StatementNode> statements = Parser.parse(new Tokenizer().tokenize(source));
+        canvas.check(statements);
+        if (optimizationLevel == 0) {
+            // the loop of run_range is looked for in parsed statements
+            return build(statements);
+        }
+        return build(Optimizer.optimize(statements));
+    }
+    /**
+     * Compiles a program read from {@code source}, writing the module to {@code out}.
+     * Statements are compiled a few at a time as they are read and their code goes to a
+     * SpillBuffer, so memory use is set by how deep the program nests, and at level 1 by its
+     * longest outermost loop, rather than by how long it is. Level 1 optimizes up to
+     * STREAM_BATCH outermost statements at a time like IncrementalCompiler does, without the
+     * passes that need the whole program: type inference, shared locals and dead stores.
+     * Finding the loop of run_range needs the whole program, which is read into memory first.
+     */
+    public void compile(Reader source, WritableByteChannel out) throws IOException {
+        if (runRange) {
+            StringBuilder program = new StringBuilder();
+            char[] buffer = new char[8192];
+            for (int read; (read = source.read(buffer)) >= 0; ) {
+                program.append(buffer, 0, read);
+            }
+            ByteBuffer module = ByteBuffer.wrap(compile(program.toString()));
+            while (module.hasRemaining()) {
+                out.write(module);
+            }
+            return;
+        }
+        Context context = new Context();
+        WasmWriter code = new WasmWriter(STREAM_FLUSH_SIZE + 1024);
+        // at level 1, the outermost statements waiting to be optimized and the lists of the
+        // open while and if statements the ones in between are parsed into
+        List<Parser.StatementNode> batch = new ArrayList<>();
+        ArrayDeque<List<Parser.StatementNode>> lists = new ArrayDeque<>();
+        try (SpillBuffer spill = new SpillBuffer()) {
+            Parser.Steps steps = new Parser.Steps(new Tokenizer().tokenize(source));
+            for (Parser.Steps.Step step = steps.next(); step != Parser.Steps.Step.end; step = steps.next()) {
+                canvas.check(steps.node());
+                if (optimizationLevel == 0) {
+                    emitStep(context, step, steps.node(), code);
+                } else if (collect(step, steps.node(), lists, batch) && batch.size() >= STREAM_BATCH) {
+                    emitStatements(context, Optimizer.optimizeFragment(batch), code);
+                    batch = new ArrayList<>();
+                }
+                if (code.position() >= STREAM_FLUSH_SIZE) {
+                    spill.write(code.asByteBuffer());
+                    code.reset();
+                }
+            }
+            if (!batch.isEmpty()) {
+                emitStatements(context, Optimizer.optimizeFragment(batch), code);
+            }
+            spill.write(code.asByteBuffer());
+            ByteBuffer end = ByteBuffer.wrap(new byte[] {Opcodes.end.val});
+            spill.writeTo(out, moduleHead(context, spill.size()).asByteBuffer(), end);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    // how much code a streamed compile gathers before handing it to the SpillBuffer
+    private static final int STREAM_FLUSH_SIZE = 1 << 16;
+    // how many outermost statements a streamed compile at level 1 optimizes together
+    private static final int STREAM_BATCH = 1024;
 
-        // the function section is a vector of type indices that indicate the type of each function
-        // in the code section
-        byte[] funcSection = createSection(Section.func.index, encodeVector(new byte[] { 0x00 /* type index */}));
+    // Puts the statement of a step in the list it belongs to, like Parser.parse does, with the
+    // outermost ones going to batch. Returns whether the step completed an outermost statement.
+    private static boolean collect(Parser.Steps.Step step, Parser.StatementNode node,
+            ArrayDeque<List<Parser.StatementNode>> lists, List<Parser.StatementNode> batch) {
+        switch (step) {
+            case statement:
+                (lists.isEmpty() ? batch : lists.peek()).add(node);
+                return lists.isEmpty();
+            case open:
+                (lists.isEmpty() ? batch : lists.peek()).add(node);
+                lists.push(node instanceof Parser.WhileStatementNode
+                        ? ((Parser.WhileStatementNode) node).statements : ((Parser.IfStatementNode) node).consequent);
+                return false;
+            case alternate:
+                lists.pop();
+                lists.push(((Parser.IfStatementNode) node).alternate);
+                return false;
+            case close:
+                lists.pop();
+                return lists.isEmpty();
+            default:
+                throw new IllegalStateException("Unexpected!");
+        }
+    }
+
+    // Emits the code of a step of a streamed program. The loop of a while is rotated like the
+    // Lowering does, so its condition is lowered again when it closes.
+    private void emitStep(Context context, Parser.Steps.Step step, Parser.StatementNode node, WasmWriter out) {
+        boolean isWhile = node instanceof Parser.WhileStatementNode;
+        switch (step) {
+            case statement:
+                emit(context, Lowering.lowerStatement(node, null, canvas), out, null);
+                break;
+            case open:
+                emit(context, Lowering.lowerCondition(node.value, null), out, null);
+                out.write(Opcodes.if_.val);
+                out.write(Blocktype.void_block.val);
+                if (isWhile) {
+                    out.write(Opcodes.loop.val);
+                    out.write(Blocktype.void_block.val);
+                }
+                break;
+            case alternate:
+                out.write(Opcodes.else_.val);
+                break;
+            case close:
+                if (isWhile) {
+                    emit(context, Lowering.lowerCondition(node.value, null), out, null);
+                    out.write(Opcodes.br_if.val);
+                    out.writeSignedLeb128(0);
+                    out.write(Opcodes.end.val);
+                }
+                out.write(Opcodes.end.val);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected!");
+        }
+    }
+    byte[] build(Ast ast) {
+        Context context = new Context();
+        Ir ir = Lowering.lower(ast, canvas);
+        for (String variable : ir.variables()) {
+            localIndexForSymbol(context, variable);
+        }
+        return module(context, out -> emit(context, ir, out, null));
+    }
+    byte[] build(List<Parser.StatementNode> ast) {
+        Context context = new Context();
+        if (optimizationLevel > 0) {
+            Cfg cfg = Cfg.build(ast);
+            context.types = TypeInference.infer(cfg);
+            Map<String, Integer> locals = LocalAllocator.allocate(cfg, context.types);
+            context.symbols.putAll(locals);
+            context.locals = new HashSet<>(locals.values()).size();
+        }
+        Ir ir = lower(context, Lowering.lower(ast, context.types, canvas));
+        for (String variable : ir.variables()) {
+            localIndexForSymbol(context, variable);
+        }
+        ShardedLoop loop = runRange ? ShardedLoop.find(ast) : null;
+        if (loop == null) {
+            return module(context, out -> emit(context, ir, out, null));
+        }
+        // the parameters come first, the locals follow in the order the code meets them
+        Context rangeContext = new Context();
+        rangeContext.types = context.types;
+        localIndexForSymbol(rangeContext, ShardedLoop.START);
+        localIndexForSymbol(rangeContext, ShardedLoop.END);
+        rangeContext.params = 2;
+        Ir rangeIr = lower(rangeContext, Lowering.lower(loop.range(), context.types, canvas));
+        for (String variable : rangeIr.variables()) {
+            localIndexForSymbol(rangeContext, variable);
+        }
+        return module(context, out -> emit(context, ir, out, null),
+                new Range(loop, rangeContext, out -> emit(rangeContext, rangeIr, out, null)));
+    }
+    // writes a module around the code of the run function, every local the code uses
+    // must already be declared in context
+    byte[] module(Context context, Consumer<WasmWriter> code) {
+        return module(context, code, null);
+    }
+    private byte[] module(Context context, Consumer<WasmWriter> code, Range range) {
+        WasmWriter out = new WasmWriter();
+        preamble(out, range);
 
-        //the import section is a vector of imported functions
-        byte[] printFunctionImport = append(append(encodeString("env"), encodeString("print"))
-                , new byte[] {ExportType.func.val}, new byte[] { 0x01 /* type index */});
-
-        byte[] memoryImport = append(append(encodeString("env"), encodeString("memory"))
-                , new byte[] {ExportType.mem.val}, new byte[] { 0x00, 0x01 // limits https://webassembly.github.io/spec/core/binary/types.html#limits - indicates a min memory size of one page
-        });
-        ByteArrayOutputStream baos3 = new ByteArrayOutputStream();
-        baos3.write(printFunctionImport);
-        baos3.write(memoryImport);
-        byte[] importSection = createSection(Section.import_section.index, encodeVector(2, baos3.toByteArray()));
-
-        byte[] exportSection = createSection(Section.export.index,
-                encodeVector(1, append(
-                        encodeString("run")
-                        , new byte[] {ExportType.func.val}
-                        , new byte[] { 0x01 /* function index */})
-                )
-        );
         // the code section contains vectors of functions
-        byte[] code = codeFromAst(ast);
-        byte[] locals = new byte[0];
-        byte[] functionBody = null;
-        if( symbols.size() > 0 ) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            baos.write(encodeLocal(symbols.size(), Valtype.f32));
-            locals = encodeVector(1, baos.toByteArray());
-            functionBody = encodeVector(append(locals, code, new byte[] {Opcodes.end.val}));
+        int section = beginSection(out, Section.code);
+        out.writeUnsignedLeb128(range == null ? 1 : 2);
+        functionBody(out, context, code);
+        if (range != null) {
+            functionBody(out, range.context, range.code);
+        }
+        endSection(out, section);
+        return out.toByteArray();
+    }
+    private void functionBody(WasmWriter out, Context context, Consumer<WasmWriter> code) {
+        int functionBody = out.reserveLength();
+        encodeLocals(context, out);
+        if (optimizationLevel > 0) {
+            WasmWriter body = new WasmWriter();
+            code.accept(body);
+            peephole.optimize(body.asByteBuffer(), out);
         } else {
-            functionBody = encodeVector(append(new byte[] {emptyArray /** locals */}, code, new byte[] {Opcodes.end.val}));
+            code.accept(out);
         }
+        out.write(Opcodes.end.val);
+        out.patchLength(functionBody);
+    }
+    // The module up to the code of the run function, for code of a known size written after
+    // it and followed by end. The lengths take the same padded form module backpatches.
+    private WasmWriter moduleHead(Context context, long codeSize) {
+        WasmWriter locals = new WasmWriter(16);
+        encodeLocals(context, locals);
+        long functionBody = locals.position() + codeSize + 1;
+        if (functionBody + 1 + WasmWriter.LENGTH_SLOT_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The run function is too large");
+        }
+        WasmWriter out = new WasmWriter();
+        preamble(out, null);
+        out.write(Section.code.index);
+        out.writeLength((int) functionBody + 1 + WasmWriter.LENGTH_SLOT_SIZE);
+        out.writeUnsignedLeb128(1);
+        out.writeLength((int) functionBody);
+        out.write(locals.toByteArray());
+        return out;
+    }
+    // the sections ahead of the code, the same for every program without run_range on the same canvas
+    private void preamble(WasmWriter out, Range range) {
+        out.write(magicModuleHeader);
+        out.write(moduleVersion);
 
-        byte[] codeSection = createSection(Section.code.index, encodeVector(1, functionBody));
+        // https://webassembly.github.io/spec/core/binary/conventions.html#binary-vec
+        // vectors are encoded with their length followed by their element sequence,
+        // the type section is a vector of function types
+        int section = beginSection(out, Section.type_section);
+        out.writeUnsignedLeb128(range == null ? 2 : 3);
+        voidVoidType(out);
+        floatVoidType(out);
+        if (range != null) {
+            rangeType(out);
+        }
+        endSection(out, section);
+
+        //the import section is a vector of imported functions
+        section = beginSection(out, Section.import_section);
+        out.writeUnsignedLeb128(2);
+        out.writeString("env");
+        out.writeString("print");
+        out.write(ExportType.func.val);
+        out.write((byte) 0x01 /* type index */);
+        out.writeString("env");
+        out.writeString("memory");
+        out.write(ExportType.mem.val);
+        // https://webassembly.github.io/spec/core/binary/types.html#limits
+        // the pages of the framebuffer as both the minimum and the maximum
+        out.write((byte) 0x01);
+        out.writeUnsignedLeb128(canvas.pages());
+        out.writeUnsignedLeb128(canvas.pages());
+        endSection(out, section);
+
+        // the function section is a vector of type indices that indicate the type of each function
+        // in the code section
+        section = beginSection(out, Section.func);
+        out.writeUnsignedLeb128(range == null ? 1 : 2);
+        out.write((byte) 0x00 /* type index */);
+        if (range != null) {
+            out.write((byte) 0x02 /* type index */);
+        }
+        endSection(out, section);
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(magicModuleHeader);
-        baos.write(moduleVersion);
-        baos.write(typeSection);
-        baos.write(importSection);
-        baos.write(funcSection);
-        baos.write(exportSection);
-        baos.write(codeSection);
-        return baos.toByteArray();
+        // https://webassembly.github.io/spec/core/binary/modules.html#global-section
+        // the range run covers, for hosts to split between run_range calls
+        if (range != null) {
+            section = beginSection(out, Section.global);
+            out.writeUnsignedLeb128(2);
+            for (float value : new float[] {range.loop.first, range.loop.limit}) {
+                out.write(Valtype.f32.val);
+                out.write((byte) 0x00 /* immutable */);
+                out.write(Opcodes.f32_const.val);
+                out.writeFloat(value);
+                out.write(Opcodes.end.val);
+            }
+            endSection(out, section);
+        }
+
+        section = beginSection(out, Section.export);
+        out.writeUnsignedLeb128(range == null ? 1 : 4);
+        out.writeString("run");
+        out.write(ExportType.func.val);
+        out.write((byte) 0x01 /* function index */);
+        if (range != null) {
+            out.writeString("run_range");
+            out.write(ExportType.func.val);
+            out.write((byte) 0x02 /* function index */);
+            out.writeString("range_start");
+            out.write(ExportType.global.val);
+            out.write((byte) 0x00 /* global index */);
+            out.writeString("range_end");
+            out.write(ExportType.global.val);
+            out.write((byte) 0x01 /* global index */);
+        }
+        endSection(out, section);
     }
-    public static void main(String[] args) {
-        new Compiler();
+    // Compiler [-O<level>] [-range] [-canvas=<width>x<height>[x<bytes per pixel>]]
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        for (String arg : args) {
+            if (arg.startsWith("-O")) {
+                options.optimizationLevel(Integer.parseInt(arg.substring(2)));
+            } else if (arg.equals("-range")) {
+                options.runRange(true);
+            } else if (arg.startsWith("-canvas=")) {
+                String[] sizes = arg.substring(8).split("x");
+                options.canvas(Integer.parseInt(sizes[0]), Integer.parseInt(sizes[1]),
+                        sizes.length > 2 ? Integer.parseInt(sizes[2]) : 1);
+            }
+        }
+        Compiler compiler = new Compiler(options);
+        Files.write(Paths.get("generated-fractal.wasm"), compiler.compile(FRACTAL));
+        System.out.println("peephole " + compiler.peephole());
     }
 }
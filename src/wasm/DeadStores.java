@@ -0,0 +1,262 @@
+package wasm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Dead store elimination. Walking the blocks of the program's Cfg backwards, a variable is
+// live where the value it holds may still be printed, drawn by setpixel or decide a
+// condition. A declaration or assignment to a variable that is not live right after it is
+// dropped, and its own operands are not counted as read, so a variable that only ever feeds
+// itself, like a counter nobody prints, goes away with all of its stores. The sets of live
+// variables grow from nothing until they stop changing, which finds the fewest of them.
+//
+// Expressions have no side effects, but && and conditions truncate values to i32, which
+// traps on NaN and infinities. A store is only dropped when computing its value cannot trap.
+// An if goes when nothing in either branch is kept and its condition cannot trap, in which
+// case its condition is not read either. Whether it goes decides what is live ahead of it,
+// so the analysis is repeated until no more ifs turn out to be needed. An if whose condition
+// may trap stays, with empty branches for Peephole to reduce to a drop when nothing in them
+// is kept. A while stays even when nothing in its body is kept, it may never finish.
+// Branches with constant conditions are already gone by the time this runs.
+//
+// Assumes it sees the whole program, nothing is live at the end. Like the passes it runs
+// after, it rewrites the statements it is given in place.
+public class DeadStores {
+
+    private final Cfg cfg;
+    // whether computing the value of an instruction may trap, and for a branch its test
+    private final boolean[] traps;
+    // the instructions that have to run, and the branches of the ifs that stay
+    private final boolean[] needed;
+    private final boolean[] neededIfs;
+
+    private DeadStores(Cfg cfg) {
+        this.cfg = cfg;
+        traps = new boolean[cfg.size()];
+        needed = new boolean[cfg.size()];
+        neededIfs = new boolean[cfg.size()];
+    }
+
+    public static List<Parser.StatementNode> eliminate(List<Parser.StatementNode> nodes) {
+        DeadStores deadStores = new DeadStores(Cfg.build(nodes));
+        deadStores.findTraps();
+        do {
+            deadStores.mark(deadStores.liveness());
+        } while (deadStores.findNeededIfs());
+        return deadStores.rewrite(nodes);
+    }
+
+    private void findTraps() {
+        for (int i = 0; i < cfg.size(); i++) {
+            switch (cfg.op(i)) {
+                case and:
+                    traps[i] = traps[cfg.a(i)] || traps[cfg.b(i)]
+                            || truncationMayTrap(cfg.a(i)) || truncationMayTrap(cfg.b(i));
+                    break;
+                case add:
+                case sub:
+                case mul:
+                case div:
+                case eq:
+                case lt:
+                case gt:
+                    traps[i] = traps[cfg.a(i)] || traps[cfg.b(i)];
+                    break;
+                case branch:
+                    traps[i] = traps[cfg.a(i)] || truncationMayTrap(cfg.a(i));
+                    neededIfs[i] = traps[i];
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+    // Comparisons and && are already an i32 0 or 1, constants are known, anything else may be
+    // NaN, infinite or out of the i32 range
+    private boolean truncationMayTrap(int register) {
+        switch (cfg.op(register)) {
+            case eq:
+            case lt:
+            case gt:
+            case and:
+                return false;
+            case constant:
+                float value = cfg.constant(register);
+                return !(value >= -2147483648f && value < 2147483648f);
+            default:
+                return true;
+        }
+    }
+
+    // The variables live at the end of every block. Blocks are walked backwards from a
+    // worklist until the sets stop growing.
+    private BitSet[] liveness() {
+        int blocks = cfg.blocks();
+        BitSet[] liveIn = new BitSet[blocks];
+        BitSet[] liveOut = new BitSet[blocks];
+        for (int block = 0; block < blocks; block++) {
+            liveIn[block] = new BitSet();
+            liveOut[block] = new BitSet();
+        }
+        BitSet work = new BitSet();
+        work.set(0, blocks);
+        for (int block = work.previousSetBit(blocks - 1); block >= 0; block = work.previousSetBit(blocks - 1)) {
+            work.clear(block);
+            BitSet live = liveOut[block];
+            live.clear();
+            if (cfg.taken(block) >= 0) {
+                live.or(liveIn[cfg.taken(block)]);
+            }
+            if (cfg.notTaken(block) >= 0) {
+                live.or(liveIn[cfg.notTaken(block)]);
+            }
+            live = run(block, (BitSet) live.clone());
+            if (!live.equals(liveIn[block])) {
+                liveIn[block] = live;
+                for (int predecessor : cfg.predecessors(block)) {
+                    work.set(predecessor);
+                }
+            }
+        }
+        return liveOut;
+    }
+    // marks the instructions that have to run once the live variables are known
+    private void mark(BitSet[] liveOut) {
+        for (int block = 0; block < cfg.blocks(); block++) {
+            run(block, (BitSet) liveOut[block].clone());
+        }
+    }
+
+    // Takes live from the end of a block to its start, marking the instructions that have to
+    // run on the way. Only those read their operands, which come ahead of them in the block.
+    private BitSet run(int block, BitSet live) {
+        Arrays.fill(needed, cfg.start(block), cfg.end(block), false);
+        for (int i = cfg.end(block) - 1; i >= cfg.start(block); i--) {
+            Cfg.Op op = cfg.op(i);
+            switch (op) {
+                case branch:
+                    needed[i] = cfg.statement(i) instanceof Parser.WhileStatementNode || neededIfs[i];
+                    break;
+                case print:
+                case pixel:
+                    needed[i] = true;
+                    break;
+                case set:
+                    Parser.StatementNode statement = cfg.statement(i);
+                    needed[i] = statement instanceof Parser.SetPixelStatementNode
+                            || !isSelfAssignment(statement) && (live.get(cfg.a(i)) || traps[cfg.b(i)]);
+                    if (needed[i]) {
+                        live.clear(cfg.a(i));
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (!needed[i]) {
+                continue;
+            }
+            switch (op) {
+                case get:
+                    live.set(cfg.a(i));
+                    break;
+                case pixel:
+                    // the store reads x, y and color back
+                    live.set(cfg.a(i));
+                    live.set(cfg.b(i));
+                    live.set(cfg.imm(i));
+                    break;
+                case set:
+                    needed[cfg.b(i)] = true;
+                    break;
+                case constant:
+                    break;
+                case print:
+                case branch:
+                    needed[cfg.a(i)] = true;
+                    break;
+                default:
+                    needed[cfg.a(i)] = true;
+                    needed[cfg.b(i)] = true;
+                    break;
+            }
+        }
+        return live;
+    }
+
+    // storing a variable to itself changes nothing, whether or not it is live
+    private static boolean isSelfAssignment(Parser.StatementNode node) {
+        String name = node instanceof Parser.VariableDeclarationNode
+                ? ((Parser.VariableDeclarationNode) node).name
+                : ((Parser.VariableAssignmentNode) node).name;
+        return node.value instanceof Parser.IdentifierNode && node.value.value.equals(name);
+    }
+
+    // Marks the ifs with anything kept between their branch and the block joining their
+    // branches, returning whether there were new ones
+    private boolean findNeededIfs() {
+        int[] kept = new int[cfg.size() + 1];
+        for (int i = 0; i < cfg.size(); i++) {
+            kept[i + 1] = kept[i] + (needed[i] ? 1 : 0);
+        }
+        boolean found = false;
+        for (int block = 0; block < cfg.blocks(); block++) {
+            int branch = cfg.end(block) - 1;
+            if (cfg.condition(block) < 0 || neededIfs[branch]
+                    || !(cfg.statement(branch) instanceof Parser.IfStatementNode)) {
+                continue;
+            }
+            // without an alternate the branch not taken goes straight to the join, otherwise
+            // the last block of the consequent does
+            int join = ((Parser.IfStatementNode) cfg.statement(branch)).alternate.isEmpty()
+                    ? cfg.notTaken(block) : cfg.taken(cfg.notTaken(block) - 1);
+            if (kept[cfg.start(join)] > kept[branch + 1]) {
+                neededIfs[branch] = true;
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    // drops the stores and ifs that do not have to run from the statement lists
+    private List<Parser.StatementNode> rewrite(List<Parser.StatementNode> nodes) {
+        Set<Parser.StatementNode> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < cfg.size(); i++) {
+            Parser.StatementNode statement = cfg.statement(i);
+            if ((cfg.op(i) == Cfg.Op.set || cfg.op(i) == Cfg.Op.branch) && !needed[i]) {
+                dropped.add(statement);
+            }
+        }
+        List<Parser.StatementNode> kept = keep(nodes, dropped);
+        ArrayDeque<Parser.StatementNode> work = new ArrayDeque<>(kept);
+        while (!work.isEmpty()) {
+            Parser.StatementNode node = work.pop();
+            if (node instanceof Parser.WhileStatementNode) {
+                Parser.WhileStatementNode whileNode = (Parser.WhileStatementNode) node;
+                whileNode.statements = keep(whileNode.statements, dropped);
+                work.addAll(whileNode.statements);
+            } else if (node instanceof Parser.IfStatementNode) {
+                Parser.IfStatementNode ifNode = (Parser.IfStatementNode) node;
+                ifNode.consequent = keep(ifNode.consequent, dropped);
+                ifNode.alternate = keep(ifNode.alternate, dropped);
+                work.addAll(ifNode.consequent);
+                work.addAll(ifNode.alternate);
+            }
+        }
+        return kept;
+    }
+    private static List<Parser.StatementNode> keep(List<Parser.StatementNode> nodes, Set<Parser.StatementNode> dropped) {
+        List<Parser.StatementNode> kept = new ArrayList<>(nodes.size());
+        for (Parser.StatementNode node : nodes) {
+            if (!dropped.contains(node)) {
+                kept.add(node);
+            }
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,360 @@
+package wasm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs parsed programs directly, without going through wasm. The statements are compiled once
+// into a tree of lambdas, each specialized to its operation and to whether its operands are
+// variables, constants or further expressions, with every variable resolved to a slot of a
+// float[] frame. Nothing is looked up while running, so once warm the JIT compiles a loop
+// into little more than the arithmetic and a call per expression that is not a leaf.
+//
+// Values behave like they do in the module compiled at level 0: every variable is an f32,
+// conditions and the operands of && are truncated to an i32 like i32.trunc_f32_s, && is a
+// bitwise and of those, and setpixel goes through the variables x, y and color. Where wasm
+// traps an Interpreter.Trap is thrown.
+public class Evaluator {
+
+    // the state of a single run
+    static final class Frame {
+        final float[] locals;
+        final byte[] framebuffer;
+        final Interpreter.Print print;
+
+        Frame(int locals, byte[] framebuffer, Interpreter.Print print) {
+            this.locals = new float[locals];
+            this.framebuffer = framebuffer;
+            this.print = print;
+        }
+    }
+
+    interface Statement {
+        void execute(Frame frame);
+    }
+    interface Value {
+        float evaluate(float[] locals);
+    }
+    // an i32 value, what comparisons produce and conditions test
+    interface Condition {
+        int test(float[] locals);
+    }
+
+    private final Statement program;
+    private final int locals;
+    private final Canvas canvas;
+
+    private Evaluator(Statement program, int locals, Canvas canvas) {
+        this.program = program;
+        this.locals = locals;
+        this.canvas = canvas;
+    }
+
+    /**
+     * Compiles the statements, parsed or optimized, into an Evaluator that can run them any
+     * number of times, from several threads at once.
+     */
+    public static Evaluator compile(List<Parser.StatementNode> statements) {
+        return compile(statements, Canvas.DEFAULT);
+    }
+    // the same drawing to a canvas other than the default one
+    public static Evaluator compile(List<Parser.StatementNode> statements, Canvas canvas) {
+        Compilation compilation = new Compilation(canvas);
+        Statement program = compilation.block(statements);
+        return new Evaluator(program, compilation.slots.size(), canvas);
+    }
+
+    // the variables the program uses
+    public int locals() {
+        return locals;
+    }
+
+    /**
+     * Runs the program with a framebuffer the size of the memory a compiled module imports,
+     * returning the framebuffer.
+     */
+    public byte[] run(Interpreter.Print print) {
+        byte[] framebuffer = new byte[canvas.pages() * Interpreter.PAGE_SIZE];
+        run(framebuffer, print);
+        return framebuffer;
+    }
+
+    // runs the program, setpixel writing to framebuffer laid out like the canvas
+    public void run(byte[] framebuffer, Interpreter.Print print) {
+        program.execute(new Frame(locals, framebuffer, print));
+    }
+
+    static int truncate(float value) {
+        if (!(value >= -2147483648f && value < 2147483648f)) {
+            throw new Interpreter.Trap("Integer overflow converting " + value);
+        }
+        return (int) value;
+    }
+
+    private static class Compilation {
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final Canvas canvas;
+
+        Compilation(Canvas canvas) {
+            this.canvas = canvas;
+        }
+
+        int slot(String name) {
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                slot = slots.size();
+                slots.put(name, slot);
+            }
+            return slot;
+        }
+
+        Statement block(List<Parser.StatementNode> nodes) {
+            if (nodes.size() == 1) {
+                return statement(nodes.get(0));
+            }
+            List<Statement> list = new ArrayList<>(nodes.size());
+            for (Parser.StatementNode node : nodes) {
+                list.add(statement(node));
+            }
+            Statement[] statements = list.toArray(new Statement[0]);
+            return frame -> {
+                for (Statement statement : statements) {
+                    statement.execute(frame);
+                }
+            };
+        }
+
+        Statement statement(Parser.StatementNode node) {
+            if (node instanceof Parser.PrintStatementNode) {
+                Value value = value(node.value);
+                return frame -> frame.print.print(value.evaluate(frame.locals));
+            }
+            if (node instanceof Parser.VariableDeclarationNode) {
+                return assign(((Parser.VariableDeclarationNode) node).name, node.value);
+            }
+            if (node instanceof Parser.VariableAssignmentNode) {
+                return assign(((Parser.VariableAssignmentNode) node).name, node.value);
+            }
+            if (node instanceof Parser.WhileStatementNode) {
+                Condition condition = condition(node.value);
+                Statement body = block(((Parser.WhileStatementNode) node).statements);
+                return frame -> {
+                    float[] locals = frame.locals;
+                    while (condition.test(locals) != 0) {
+                        body.execute(frame);
+                    }
+                };
+            }
+            if (node instanceof Parser.IfStatementNode) {
+                Parser.IfStatementNode ifNode = (Parser.IfStatementNode) node;
+                Condition condition = condition(ifNode.value);
+                Statement consequent = block(ifNode.consequent);
+                if (ifNode.alternate.isEmpty()) {
+                    return frame -> {
+                        if (condition.test(frame.locals) != 0) {
+                            consequent.execute(frame);
+                        }
+                    };
+                }
+                Statement alternate = block(ifNode.alternate);
+                return frame -> {
+                    if (condition.test(frame.locals) != 0) {
+                        consequent.execute(frame);
+                    } else {
+                        alternate.execute(frame);
+                    }
+                };
+            }
+            if (node instanceof Parser.SetPixelStatementNode) {
+                return setPixel((Parser.SetPixelStatementNode) node);
+            }
+            throw new IllegalStateException("Unexpected!");
+        }
+
+        Statement assign(String name, Parser.ExpressionNode node) {
+            int slot = slot(name);
+            if (node instanceof Parser.IdentifierNode) {
+                int from = slot(node.value);
+                return frame -> frame.locals[slot] = frame.locals[from];
+            }
+            Value value = value(node);
+            return frame -> {
+                float[] locals = frame.locals;
+                locals[slot] = value.evaluate(locals);
+            };
+        }
+
+        // the arguments are kept in x, y and color, like the compiled code does
+        Statement setPixel(Parser.SetPixelStatementNode node) {
+            if (node.x instanceof Parser.NumberLiteralNode) {
+                canvas.check("x", Float.parseFloat(node.x.value));
+            }
+            if (node.y instanceof Parser.NumberLiteralNode) {
+                canvas.check("y", Float.parseFloat(node.y.value));
+            }
+            Value x = value(node.x);
+            int xSlot = slot("x");
+            Value y = value(node.y);
+            int ySlot = slot("y");
+            Value color = value(node.value);
+            int colorSlot = slot("color");
+            int stride = canvas.stride();
+            int bytes = canvas.bytesPerPixel;
+            return frame -> {
+                float[] locals = frame.locals;
+                locals[xSlot] = x.evaluate(locals);
+                locals[ySlot] = y.evaluate(locals);
+                locals[colorSlot] = color.evaluate(locals);
+                int index = truncate(locals[ySlot]) * stride + truncate(locals[xSlot]) * bytes;
+                int value = truncate(locals[colorSlot]);
+                if (index < 0 || index > frame.framebuffer.length - bytes) {
+                    throw new Interpreter.Trap("Store out of bounds at " + (index & 0xffffffffL));
+                }
+                // little-endian, like wasm stores it
+                for (int i = 0; i < bytes; i++) {
+                    frame.framebuffer[index + i] = (byte) (value >>> (8 * i));
+                }
+            };
+        }
+
+        Value value(Parser.ExpressionNode node) {
+            if (node instanceof Parser.NumberLiteralNode) {
+                float constant = Float.parseFloat(node.value);
+                return locals -> constant;
+            }
+            if (node instanceof Parser.IdentifierNode) {
+                int slot = slot(node.value);
+                return locals -> locals[slot];
+            }
+            if (isArithmetic(node.value)) {
+                return arithmetic((Parser.BinaryExpressionNode) node);
+            }
+            Condition condition = condition(node);
+            return locals -> condition.test(locals);
+        }
+
+        Condition condition(Parser.ExpressionNode node) {
+            if (!(node instanceof Parser.BinaryExpressionNode) || isArithmetic(node.value)) {
+                Value value = value(node);
+                return locals -> truncate(value.evaluate(locals));
+            }
+            Parser.BinaryExpressionNode binary = (Parser.BinaryExpressionNode) node;
+            if (binary.value.equals("&&")) {
+                Condition left = condition(binary.left);
+                Condition right = condition(binary.right);
+                return locals -> left.test(locals) & right.test(locals);
+            }
+            return comparison(binary);
+        }
+
+        // The operands are specialized on a variable or constant on the right, and a variable
+        // on the left. Commutative operators and mirrored comparisons move a leaf to the
+        // right first, which only reorders operands that cannot trap.
+        Value arithmetic(Parser.BinaryExpressionNode node) {
+            String operator = node.value;
+            Parser.ExpressionNode leftNode = node.left;
+            Parser.ExpressionNode rightNode = node.right;
+            if ((operator.equals("+") || operator.equals("*")) && rank(leftNode) > rank(rightNode)) {
+                leftNode = node.right;
+                rightNode = node.left;
+            }
+            if (leftNode instanceof Parser.IdentifierNode && rank(rightNode) > 0) {
+                int left = slot(leftNode.value);
+                if (rightNode instanceof Parser.IdentifierNode) {
+                    int right = slot(rightNode.value);
+                    switch (operator) {
+                        case "+": return locals -> locals[left] + locals[right];
+                        case "-": return locals -> locals[left] - locals[right];
+                        case "*": return locals -> locals[left] * locals[right];
+                        default: return locals -> locals[left] / locals[right];
+                    }
+                }
+                float right = Float.parseFloat(rightNode.value);
+                switch (operator) {
+                    case "+": return locals -> locals[left] + right;
+                    case "-": return locals -> locals[left] - right;
+                    case "*": return locals -> locals[left] * right;
+                    default: return locals -> locals[left] / right;
+                }
+            }
+            Value left = value(leftNode);
+            if (rightNode instanceof Parser.IdentifierNode) {
+                int right = slot(rightNode.value);
+                switch (operator) {
+                    case "+": return locals -> left.evaluate(locals) + locals[right];
+                    case "-": return locals -> left.evaluate(locals) - locals[right];
+                    case "*": return locals -> left.evaluate(locals) * locals[right];
+                    default: return locals -> left.evaluate(locals) / locals[right];
+                }
+            }
+            if (rightNode instanceof Parser.NumberLiteralNode) {
+                float right = Float.parseFloat(rightNode.value);
+                switch (operator) {
+                    case "+": return locals -> left.evaluate(locals) + right;
+                    case "-": return locals -> left.evaluate(locals) - right;
+                    case "*": return locals -> left.evaluate(locals) * right;
+                    default: return locals -> left.evaluate(locals) / right;
+                }
+            }
+            Value right = value(rightNode);
+            switch (operator) {
+                case "+": return locals -> left.evaluate(locals) + right.evaluate(locals);
+                case "-": return locals -> left.evaluate(locals) - right.evaluate(locals);
+                case "*": return locals -> left.evaluate(locals) * right.evaluate(locals);
+                default: return locals -> left.evaluate(locals) / right.evaluate(locals);
+            }
+        }
+
+        Condition comparison(Parser.BinaryExpressionNode node) {
+            String operator = node.value;
+            Parser.ExpressionNode leftNode = node.left;
+            Parser.ExpressionNode rightNode = node.right;
+            if (rank(leftNode) > rank(rightNode)) {
+                leftNode = node.right;
+                rightNode = node.left;
+                operator = operator.equals("<") ? ">" : operator.equals(">") ? "<" : operator;
+            }
+            if (leftNode instanceof Parser.IdentifierNode && rank(rightNode) > 0) {
+                int left = slot(leftNode.value);
+                if (rightNode instanceof Parser.IdentifierNode) {
+                    int right = slot(rightNode.value);
+                    switch (operator) {
+                        case "==": return locals -> locals[left] == locals[right] ? 1 : 0;
+                        case "<": return locals -> locals[left] < locals[right] ? 1 : 0;
+                        default: return locals -> locals[left] > locals[right] ? 1 : 0;
+                    }
+                }
+                float right = Float.parseFloat(rightNode.value);
+                switch (operator) {
+                    case "==": return locals -> locals[left] == right ? 1 : 0;
+                    case "<": return locals -> locals[left] < right ? 1 : 0;
+                    default: return locals -> locals[left] > right ? 1 : 0;
+                }
+            }
+            Value left = value(leftNode);
+            if (rightNode instanceof Parser.NumberLiteralNode) {
+                float right = Float.parseFloat(rightNode.value);
+                switch (operator) {
+                    case "==": return locals -> left.evaluate(locals) == right ? 1 : 0;
+                    case "<": return locals -> left.evaluate(locals) < right ? 1 : 0;
+                    default: return locals -> left.evaluate(locals) > right ? 1 : 0;
+                }
+            }
+            Value right = value(rightNode);
+            switch (operator) {
+                case "==": return locals -> left.evaluate(locals) == right.evaluate(locals) ? 1 : 0;
+                case "<": return locals -> left.evaluate(locals) < right.evaluate(locals) ? 1 : 0;
+                default: return locals -> left.evaluate(locals) > right.evaluate(locals) ? 1 : 0;
+            }
+        }
+
+        private static boolean isArithmetic(String operator) {
+            return operator.equals("+") || operator.equals("-") || operator.equals("*") || operator.equals("/");
+        }
+        // 2 for a constant, 1 for a variable, 0 for anything else
+        private static int rank(Parser.ExpressionNode node) {
+            return node instanceof Parser.NumberLiteralNode ? 2 : node instanceof Parser.IdentifierNode ? 1 : 0;
+        }
+    }
+}
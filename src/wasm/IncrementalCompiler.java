@@ -0,0 +1,355 @@
+package wasm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Recompiles a program after an edit by re-tokenizing and re-parsing only the statements
+// the edit touches. Every statement keeps the code emitted for it, the code of untouched
+// statements is spliced back in as is and the enclosing while and if statements only
+// re-emit their own conditions around it. Above level 0 that holds for if statements only:
+// the Optimizer hoists and shares code across the whole body of a loop, so the outermost
+// loop around an edit is re-parsed, optimized and emitted whole. Symbols are only renumbered
+// by a full compile, so the code of a statement stays valid for as long as its text does.
+//
+// Names and locals of deleted code stay in the symbol table and the Context until then. A
+// full compile starts both afresh, and one is forced once the table has grown to twice its
+// size after the last one, so a long editing session keeps them within a constant factor of
+// the names the program uses.
+//
+// Statements tile the statement list they belong to: each spans from its first token up to
+// the first token of the next statement, or the end of the list. Spans are kept as lengths
+// and offsets relative to the enclosing list, so an edit only moves its own siblings and
+// those of its ancestors.
+public class IncrementalCompiler {
+
+    private static class Fragment {
+        Parser.StatementNode node;
+        int length;
+        byte[] code;
+        // the statement lists of a while or if, null for other statements
+        Body[] bodies;
+    }
+
+    private static class Body {
+        // from the start of the owning statement, to the first token of the first statement
+        int offset;
+        // up to the endwhile, else or endif closing the list
+        int length;
+        List<Parser.StatementNode> nodes;
+        List<Fragment> fragments = new ArrayList<>();
+    }
+
+    private final Compiler compiler;
+    private Tokenizer tokenizer;
+    private Compiler.Context context;
+    // the names after the last full compile
+    private int fullSymbols;
+
+    private static final int SUFFIX_BLOCK = 4096;
+    // names edits may add on top of twice those of the last full compile before the next
+    private static final int SYMBOL_SLACK = 64;
+
+    private String source;
+    private char[] text;
+    private Body program;
+    private int reparsed;
+
+    public IncrementalCompiler() {
+        this(new Compiler());
+    }
+    public IncrementalCompiler(Compiler compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * Compiles {@code newSource}, reusing whatever is unchanged since the last successful
+     * compile. The edited range is found by comparing the two sources.
+     */
+    public byte[] compile(String newSource) {
+        if (source == null) {
+            return compileFully(newSource, newSource.toCharArray());
+        }
+        char[] previous = text;
+        char[] next = newSource.toCharArray();
+        int limit = Math.min(previous.length, next.length);
+        int prefix = Arrays.mismatch(previous, 0, limit, next, 0, limit);
+        if (prefix < 0) {
+            prefix = limit;
+        }
+        // compared backwards a block at a time, Arrays.mismatch only runs forwards
+        int suffix = 0;
+        while (suffix < limit - prefix) {
+            int block = Math.min(SUFFIX_BLOCK, limit - prefix - suffix);
+            int mismatch = Arrays.mismatch(previous, previous.length - suffix - block, previous.length - suffix,
+                    next, next.length - suffix - block, next.length - suffix);
+            if (mismatch < 0) {
+                suffix += block;
+                continue;
+            }
+            int i = block - 1;
+            while (previous[previous.length - suffix - block + i] == next[next.length - suffix - block + i]) {
+                i--;
+            }
+            suffix += block - 1 - i;
+            break;
+        }
+        return apply(prefix, previous.length - suffix, newSource, next);
+    }
+
+    /**
+     * Replaces the characters from {@code start} up to {@code end} of the last compiled
+     * source with {@code text} and compiles the result.
+     */
+    public byte[] edit(int start, int end, String text) {
+        if (source == null) {
+            throw new IllegalStateException("Nothing compiled yet");
+        }
+        String newSource = source.substring(0, start) + text + source.substring(end);
+        return apply(start, end, newSource, newSource.toCharArray());
+    }
+
+    public String source() {
+        return source;
+    }
+    public List<Parser.StatementNode> ast() {
+        if (program == null) {
+            throw new IllegalStateException("The last edit failed to compile");
+        }
+        return program.nodes;
+    }
+    // the number of source characters re-tokenized and re-parsed by the last compile
+    public int reparsed() {
+        return reparsed;
+    }
+
+    // The new symbol table and Context only replace the old ones once the new source has
+    // compiled, a source that fails leaves the last one to be edited further.
+    private byte[] compileFully(String newSource, char[] newText) {
+        Body body = new Body();
+        body.length = newSource.length();
+        body.nodes = new ArrayList<>();
+        Tokenizer newTokenizer = new Tokenizer();
+        Compiler.Context newContext = new Compiler.Context();
+        List<Parser.StatementNode> nodes = Parser.parse(newTokenizer.tokenize(newSource));
+        compiler.canvas().check(nodes);
+        compiler.declareLocals(newContext, nodes);
+        body.nodes.addAll(nodes);
+        // the fragments are emitted into the Context in the field
+        Compiler.Context previous = context;
+        context = newContext;
+        try {
+            body.fragments.addAll(fragments(nodes, 0, newSource.length()));
+        } catch (RuntimeException e) {
+            context = previous;
+            throw e;
+        }
+        tokenizer = newTokenizer;
+        fullSymbols = tokenizer.symbols().size();
+        program = body;
+        source = newSource;
+        text = newText;
+        reparsed = newSource.length();
+        return assemble();
+    }
+
+    private byte[] apply(int start, int end, String newSource, char[] newText) {
+        int delta = newSource.length() - source.length();
+        reparsed = 0;
+        boolean spliced;
+        try {
+            spliced = program != null && !program.fragments.isEmpty()
+                    && splice(program, true, 0, start, end, delta, newSource);
+        } catch (RuntimeException e) {
+            // a statement failed to emit after others were replaced, so the fragments no
+            // longer match any source and the next compile is a full one
+            program = null;
+            throw e;
+        }
+        if (!spliced || tokenizer.symbols().size() > 2 * fullSymbols + SYMBOL_SLACK) {
+            return compileFully(newSource, newText);
+        }
+        source = newSource;
+        text = newText;
+        return assemble();
+    }
+
+    private byte[] assemble() {
+        return compiler.module(context, out -> {
+            for (Fragment fragment : program.fragments) {
+                out.write(fragment.code);
+            }
+        });
+    }
+
+    // Replaces the statements of body overlapping the edit [start, end) of the old source,
+    // or descends into the one statement whose own body holds the whole edit. Returns false
+    // when the edit cannot be handled at this level, leaving body untouched.
+    private boolean splice(Body body, boolean top, int base, int start, int end, int delta, String newSource) {
+        List<Fragment> fragments = body.fragments;
+        int first = -1;
+        int last = -1;
+        int firstStart = 0;
+        int lastEnd = 0;
+        int position = base;
+        for (int i = 0; i < fragments.size(); i++) {
+            int next = position + fragments.get(i).length;
+            if (first < 0 && (start < next || i == fragments.size() - 1)) {
+                first = i;
+                firstStart = position;
+            }
+            if (first >= 0 && (end <= next || i == fragments.size() - 1)) {
+                last = i;
+                lastEnd = next;
+                break;
+            }
+            position = next;
+        }
+        if (first == last && fragments.get(first).bodies != null) {
+            Fragment fragment = fragments.get(first);
+            for (int i = 0; i < fragment.bodies.length; i++) {
+                Body inner = fragment.bodies[i];
+                int innerStart = firstStart + inner.offset;
+                if (!inner.fragments.isEmpty() && innerStart <= start && end <= innerStart + inner.length
+                        && splice(inner, false, innerStart, start, end, delta, newSource)) {
+                    inner.length += delta;
+                    for (int j = i + 1; j < fragment.bodies.length; j++) {
+                        fragment.bodies[j].offset += delta;
+                    }
+                    fragment.length += delta;
+                    fragment.code = emit(fragment);
+                    return true;
+                }
+            }
+        }
+        int regionStart = firstStart;
+        int regionEnd = lastEnd + delta;
+        if (!separated(newSource, regionStart) || !separated(newSource, regionEnd)) {
+            return false;
+        }
+        List<Parser.StatementNode> nodes;
+        try {
+            nodes = Parser.parse(tokenizer.tokenize(newSource, regionStart, regionEnd));
+        } catch (RuntimeException e) {
+            // the edit changed the structure beyond this list, an enclosing list has to take it
+            return false;
+        }
+        compiler.canvas().check(nodes);
+        reparsed += regionEnd - regionStart;
+        if (!top && nodes.isEmpty() && first == 0 && last == fragments.size() - 1) {
+            // the list would become empty, leave that to the enclosing statement
+            return false;
+        }
+        compiler.declareLocals(context, nodes);
+        // whitespace ahead of the new statements
+        int leading = nodes.isEmpty() ? regionEnd - regionStart : nodes.get(0).start - regionStart;
+        // the program's first statement spans any leading whitespace, in a nested list it
+        // trails the statement before or moves the start of the list
+        boolean spansLeading = top && first == 0;
+        List<Fragment> replacements = fragments(nodes, spansLeading ? regionStart : regionStart + leading, regionEnd);
+        if (first > 0) {
+            fragments.get(first - 1).length += leading;
+        } else if (!top) {
+            body.offset += leading;
+            body.length -= leading;
+        } else if (replacements.isEmpty() && last + 1 < fragments.size()) {
+            Fragment next = fragments.get(last + 1);
+            next.length += leading;
+            if (next.bodies != null) {
+                for (Body inner : next.bodies) {
+                    inner.offset += leading;
+                }
+            }
+        }
+        fragments.subList(first, last + 1).clear();
+        fragments.addAll(first, replacements);
+        body.nodes.subList(first, last + 1).clear();
+        body.nodes.addAll(first, nodes);
+        return true;
+    }
+
+    // tokens cannot run across an offset with whitespace or a parenthesis on either side of it
+    private static boolean separated(String text, int offset) {
+        if (offset <= 0 || offset >= text.length()) {
+            return true;
+        }
+        return isSeparator(text.charAt(offset - 1)) || isSeparator(text.charAt(offset));
+    }
+    private static boolean isSeparator(char c) {
+        return Tokenizer.isWhitespace(c) || c == '(' || c == ')';
+    }
+
+    // builds the fragments of freshly parsed statements that tile [listStart, listEnd)
+    private List<Fragment> fragments(List<Parser.StatementNode> nodes, int listStart, int listEnd) {
+        List<Fragment> fragments = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            Parser.StatementNode node = nodes.get(i);
+            int start = i == 0 ? listStart : node.start;
+            int end = i + 1 < nodes.size() ? nodes.get(i + 1).start : listEnd;
+            Fragment fragment = new Fragment();
+            fragment.node = node;
+            fragment.length = end - start;
+            if (node instanceof Parser.WhileStatementNode && compiler.optimizationLevel() == 0) {
+                // above level 0 a loop is optimized whole, see emit, so its body is not kept
+                Parser.WhileStatementNode whileNode = (Parser.WhileStatementNode) node;
+                fragment.bodies = new Body[] {body(whileNode.statements, start, whileNode.statementsEnd)};
+            } else if (node instanceof Parser.IfStatementNode) {
+                Parser.IfStatementNode ifNode = (Parser.IfStatementNode) node;
+                fragment.bodies = new Body[] {body(ifNode.consequent, start, ifNode.consequentEnd),
+                        body(ifNode.alternate, start, ifNode.alternateEnd)};
+            }
+            fragment.code = emit(fragment);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    private Body body(List<Parser.StatementNode> nodes, int owner, int listEnd) {
+        Body body = new Body();
+        int listStart = nodes.isEmpty() ? listEnd : nodes.get(0).start;
+        body.offset = listStart - owner;
+        body.length = listEnd - listStart;
+        body.nodes = nodes;
+        body.fragments.addAll(fragments(nodes, listStart, listEnd));
+        return body;
+    }
+
+    // Optimizes the statement on its own, the statements nested in an if were optimized as
+    // they were emitted into their own fragments. Code is hoisted out of a loop from all of
+    // its body, so a loop is optimized and emitted whole, and an edit anywhere inside it
+    // re-parses and re-emits all of it.
+    private byte[] emit(Fragment fragment) {
+        WasmWriter out = new WasmWriter(64);
+        Parser.StatementNode node = fragment.node;
+        if (compiler.optimizationLevel() > 0) {
+            if (node instanceof Parser.WhileStatementNode) {
+                List<Parser.StatementNode> optimized = Optimizer.optimizeFragment(List.of(node));
+                compiler.declareLocals(context, optimized);
+                compiler.emitStatements(context, optimized, out);
+                return out.toByteArray();
+            }
+            if (node instanceof Parser.IfStatementNode) {
+                List<Parser.StatementNode> branch = Optimizer.liveBranch((Parser.IfStatementNode) node);
+                if (branch != null) {
+                    write(fragment, branch, out);
+                    return out.toByteArray();
+                }
+            }
+            node = Optimizer.fold(node);
+        }
+        compiler.emitStatement(context, node, out, (statements, code) -> write(fragment, statements, code));
+        return out.toByteArray();
+    }
+
+    private static void write(Fragment fragment, List<Parser.StatementNode> statements, WasmWriter out) {
+        for (Body body : fragment.bodies) {
+            if (body.nodes == statements) {
+                for (Fragment inner : body.fragments) {
+                    out.write(inner.code);
+                }
+                return;
+            }
+        }
+        throw new IllegalStateException("Unknown statement list");
+    }
+}
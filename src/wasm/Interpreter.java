@@ -0,0 +1,833 @@
+package wasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Runs the modules the Compiler produces without a browser. The run function is decoded once
+// into a flat int array of (operation, operand) pairs: blocks, loops and ends disappear and
+// every branch holds the index it continues at, so running is a loop over a switch. Values
+// are kept as raw bits on an int stack, an f32 as Float.floatToRawIntBits, and the stack is
+// sized up front from the heights seen while decoding.
+//
+// Most time goes to dispatching, so common pairs are fused into one operation while decoding:
+// a binary operation whose right operand is a local or a constant reads it from the operand,
+// and a get_local followed by a set_local moves the value between the locals directly.
+//
+// Only the wasm the Compiler emits is understood, a run function, and run_range with the
+// range it covers when the module has them, importing env.print and env.memory. An
+// Interpreter holds no state of a run, so one can run any number of times, from several
+// threads at once, which is how run with a ForkJoinPool splits the rows of run_range.
+public class Interpreter {
+
+    // the size of a page of wasm memory
+    public static final int PAGE_SIZE = 1 << 16;
+
+    // receives the value of every print
+    public interface Print {
+        void print(float value);
+    }
+
+    // Raised where wasm would trap: converting NaN or a float out of range to an i32, or
+    // storing outside the memory
+    @SuppressWarnings("serial")
+    public static class Trap extends RuntimeException {
+        Trap(String message) {
+            super(message);
+        }
+    }
+
+    // the operations of the decoded code, the operand is 0 where there is none
+    private static final int I32_CONST = 0;
+    // the operand is the bits
+    private static final int F32_CONST = 1;
+    // the operand is the local
+    private static final int GET_LOCAL = 2;
+    private static final int SET_LOCAL = 3;
+    private static final int TEE_LOCAL = 4;
+    private static final int DROP = 5;
+    private static final int PRINT = 6;
+    // the operand is the offset added to the address
+    private static final int STORE8 = 7;
+    // the operand is the index execution continues at
+    private static final int BR = 8;
+    private static final int BR_IF = 9;
+    private static final int BR_UNLESS = 10;
+    private static final int RETURN = 11;
+    private static final int I32_EQZ = 12;
+    private static final int I32_EQ = 13;
+    private static final int I32_LT_S = 14;
+    private static final int I32_GT_S = 15;
+    private static final int I32_ADD = 16;
+    private static final int I32_SUB = 17;
+    private static final int I32_MUL = 18;
+    private static final int I32_AND = 19;
+    private static final int F32_EQ = 20;
+    private static final int F32_LT = 21;
+    private static final int F32_GT = 22;
+    private static final int F32_ADD = 23;
+    private static final int F32_SUB = 24;
+    private static final int F32_MUL = 25;
+    private static final int F32_DIV = 26;
+    private static final int I32_TRUNC_F32_S = 27;
+    private static final int F32_CONVERT_I32_S = 28;
+    // the operand is the local read, in the low 16 bits, and the local written
+    private static final int MOVE = 29;
+    // the wider stores of a framebuffer of more than a byte a pixel, like STORE8
+    private static final int STORE16 = 30;
+    private static final int STORE32 = 31;
+    // added to a binary operation whose right operand is the operand, a local or a constant
+    private static final int LOCAL = 32;
+    private static final int CONSTANT = 64;
+
+    private static final Compiler.Opcodes[] opcodes = new Compiler.Opcodes[256];
+    static {
+        for (Compiler.Opcodes opcode : Compiler.Opcodes.values()) {
+            opcodes[opcode.val & 0xff] = opcode;
+        }
+    }
+
+    // a decoded function, whose parameters are its first locals
+    private static class Function {
+        final int[] code;
+        final int locals;
+        final int maxStack;
+
+        Function(Decoder decoder) {
+            this.code = decoder.code();
+            this.locals = decoder.locals;
+            this.maxStack = decoder.maxHeight;
+        }
+    }
+
+    private final Function run;
+    // null when the module does not export run_range
+    private final Function runRange;
+    private final float rangeStart;
+    private final float rangeEnd;
+    private final int memoryPages;
+
+    /**
+     * Decodes {@code module}, which must be one the Compiler produced.
+     */
+    public Interpreter(byte[] module) {
+        ByteBuffer in = ByteBuffer.wrap(module).order(ByteOrder.LITTLE_ENDIAN);
+        if (module.length < 8 || in.getInt() != 0x6d736100 || in.getInt() != 1) {
+            throw new IllegalArgumentException("Not a wasm module");
+        }
+        int memoryPages = 0;
+        int[] params = new int[0];
+        int[] types = new int[0];
+        float[] globals = new float[0];
+        // the functions by their index in the code section, print is imported ahead of them
+        Function[] functions = null;
+        int run = -1;
+        int runRange = -1;
+        int rangeStart = -1;
+        int rangeEnd = -1;
+        while (in.hasRemaining()) {
+            int section = in.get();
+            int length = Leb128.readUnsignedLeb128(in);
+            int end = in.position() + length;
+            if (section == 1) {
+                params = parameterCounts(in);
+            } else if (section == 2) {
+                memoryPages = importedMemoryPages(in);
+            } else if (section == 3) {
+                types = new int[Leb128.readUnsignedLeb128(in)];
+                for (int i = 0; i < types.length; i++) {
+                    types[i] = Leb128.readUnsignedLeb128(in);
+                }
+            } else if (section == 6) {
+                globals = globals(in);
+            } else if (section == 7) {
+                for (int count = Leb128.readUnsignedLeb128(in); count > 0; count--) {
+                    String name = name(in);
+                    in.get();
+                    int index = Leb128.readUnsignedLeb128(in);
+                    switch (name) {
+                        case "run": run = index - 1; break;
+                        case "run_range": runRange = index - 1; break;
+                        case "range_start": rangeStart = index; break;
+                        case "range_end": rangeEnd = index; break;
+                        default: break;
+                    }
+                }
+            } else if (section == 10) {
+                functions = new Function[Leb128.readUnsignedLeb128(in)];
+                if (functions.length != types.length) {
+                    throw new IllegalArgumentException("Expected a type for every function");
+                }
+                for (int i = 0; i < functions.length; i++) {
+                    int bodyEnd = Leb128.readUnsignedLeb128(in);
+                    bodyEnd += in.position();
+                    Decoder decoder = new Decoder(in, params[types[i]]);
+                    decoder.decode();
+                    functions[i] = new Function(decoder);
+                    in.position(bodyEnd);
+                }
+            }
+            in.position(end);
+        }
+        if (functions == null || run < 0 || run >= functions.length) {
+            throw new IllegalArgumentException("No run function");
+        }
+        this.run = functions[run];
+        this.runRange = runRange >= 0 && runRange < functions.length && params[types[runRange]] == 2
+                && rangeStart >= 0 && rangeEnd >= 0 ? functions[runRange] : null;
+        this.rangeStart = this.runRange == null ? 0 : globals[rangeStart];
+        this.rangeEnd = this.runRange == null ? 0 : globals[rangeEnd];
+        this.memoryPages = memoryPages;
+    }
+
+    // the pages of memory the module imports at least
+    public int memoryPages() {
+        return memoryPages;
+    }
+    // the operations the run function was decoded into
+    public int size() {
+        return run.code.length / 2;
+    }
+    // whether the module exports run_range, and the range of it that run covers
+    public boolean hasRunRange() {
+        return runRange != null;
+    }
+    public float rangeStart() {
+        return rangeStart;
+    }
+    public float rangeEnd() {
+        return rangeEnd;
+    }
+
+    /**
+     * Runs the module with a fresh memory of the size it imports, returning the memory.
+     */
+    public ByteBuffer run(Print print) {
+        ByteBuffer memory = ByteBuffer.allocate(memoryPages * PAGE_SIZE);
+        run(memory, print);
+        return memory;
+    }
+
+    /**
+     * Runs the module against {@code memory}, whose position and limit are left as they
+     * are. Addresses are absolute indexes into it.
+     */
+    public void run(ByteBuffer memory, Print print) {
+        run(run, new int[run.locals], memory, print);
+    }
+
+    /**
+     * Runs run_range(start, end) against {@code memory}, the iterations of the loop that
+     * draws the rows from start up to end.
+     */
+    public void runRange(ByteBuffer memory, Print print, float start, float end) {
+        if (runRange == null) {
+            throw new IllegalStateException("The module does not export run_range");
+        }
+        int[] locals = new int[runRange.locals];
+        locals[0] = bits(start);
+        locals[1] = bits(end);
+        run(runRange, locals, memory, print);
+    }
+
+    /**
+     * Runs the module against {@code memory} on {@code pool}, a row of run_range to a task,
+     * or all of run in the calling thread when the module does not export run_range. Every
+     * row writes its own pixels, print may be called from several threads at once.
+     */
+    public void run(ByteBuffer memory, Print print, ForkJoinPool pool) {
+        if (runRange == null) {
+            run(memory, print);
+            return;
+        }
+        int rows = (int) Math.ceil(rangeEnd - rangeStart);
+        pool.invoke(new Rows(memory, print, 0, Math.max(rows, 0)));
+    }
+
+    // the rows from, up to to, counted from rangeStart, halved until a task runs a single one
+    @SuppressWarnings("serial")
+    private class Rows extends RecursiveAction {
+        private final ByteBuffer memory;
+        private final Print print;
+        private final int from;
+        private final int to;
+
+        Rows(ByteBuffer memory, Print print, int from, int to) {
+            this.memory = memory;
+            this.print = print;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                runRange(memory, print, rangeStart + from, rangeStart + to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Rows(memory, print, from, middle), new Rows(memory, print, middle, to));
+        }
+    }
+
+    private static void run(Function function, int[] locals, ByteBuffer memory, Print print) {
+        int[] code = function.code;
+        int[] stack = new int[function.maxStack];
+        int sp = 0;
+        int pc = 0;
+        while (true) {
+            int operand = code[pc + 1];
+            switch (code[pc]) {
+                case I32_CONST:
+                case F32_CONST:
+                    stack[sp++] = operand;
+                    break;
+                case GET_LOCAL:
+                    stack[sp++] = locals[operand];
+                    break;
+                case SET_LOCAL:
+                    locals[operand] = stack[--sp];
+                    break;
+                case TEE_LOCAL:
+                    locals[operand] = stack[sp - 1];
+                    break;
+                case MOVE:
+                    locals[operand >>> 16] = locals[operand & 0xffff];
+                    break;
+                case DROP:
+                    sp--;
+                    break;
+                case PRINT:
+                    print.print(Float.intBitsToFloat(stack[--sp]));
+                    break;
+                case STORE8: {
+                    byte value = (byte) stack[--sp];
+                    long address = (stack[--sp] & 0xffffffffL) + operand;
+                    if (address >= memory.limit()) {
+                        throw new Trap("Store out of bounds at " + address);
+                    }
+                    memory.put((int) address, value);
+                    break;
+                }
+                case STORE16:
+                case STORE32: {
+                    int value = stack[--sp];
+                    long address = (stack[--sp] & 0xffffffffL) + operand;
+                    int bytes = code[pc] == STORE16 ? 2 : 4;
+                    if (address + bytes > memory.limit()) {
+                        throw new Trap("Store out of bounds at " + address);
+                    }
+                    // wasm memory is little-endian whatever order the buffer is in
+                    for (int i = 0; i < bytes; i++) {
+                        memory.put((int) address + i, (byte) (value >>> (8 * i)));
+                    }
+                    break;
+                }
+                case BR:
+                    pc = operand;
+                    continue;
+                case BR_IF:
+                    if (stack[--sp] != 0) {
+                        pc = operand;
+                        continue;
+                    }
+                    break;
+                case BR_UNLESS:
+                    if (stack[--sp] == 0) {
+                        pc = operand;
+                        continue;
+                    }
+                    break;
+                case RETURN:
+                    return;
+                case I32_EQZ:
+                    stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                    break;
+                case I32_EQ:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+                    break;
+                case I32_EQ + LOCAL:
+                    stack[sp - 1] = stack[sp - 1] == locals[operand] ? 1 : 0;
+                    break;
+                case I32_EQ + CONSTANT:
+                    stack[sp - 1] = stack[sp - 1] == operand ? 1 : 0;
+                    break;
+                case I32_LT_S:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+                    break;
+                case I32_LT_S + LOCAL:
+                    stack[sp - 1] = stack[sp - 1] < locals[operand] ? 1 : 0;
+                    break;
+                case I32_LT_S + CONSTANT:
+                    stack[sp - 1] = stack[sp - 1] < operand ? 1 : 0;
+                    break;
+                case I32_GT_S:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0;
+                    break;
+                case I32_GT_S + LOCAL:
+                    stack[sp - 1] = stack[sp - 1] > locals[operand] ? 1 : 0;
+                    break;
+                case I32_GT_S + CONSTANT:
+                    stack[sp - 1] = stack[sp - 1] > operand ? 1 : 0;
+                    break;
+                case I32_ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case I32_ADD + LOCAL:
+                    stack[sp - 1] += locals[operand];
+                    break;
+                case I32_ADD + CONSTANT:
+                    stack[sp - 1] += operand;
+                    break;
+                case I32_SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case I32_SUB + LOCAL:
+                    stack[sp - 1] -= locals[operand];
+                    break;
+                case I32_SUB + CONSTANT:
+                    stack[sp - 1] -= operand;
+                    break;
+                case I32_MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case I32_MUL + LOCAL:
+                    stack[sp - 1] *= locals[operand];
+                    break;
+                case I32_MUL + CONSTANT:
+                    stack[sp - 1] *= operand;
+                    break;
+                case I32_AND:
+                    sp--;
+                    stack[sp - 1] &= stack[sp];
+                    break;
+                case I32_AND + LOCAL:
+                    stack[sp - 1] &= locals[operand];
+                    break;
+                case I32_AND + CONSTANT:
+                    stack[sp - 1] &= operand;
+                    break;
+                case F32_EQ:
+                    sp--;
+                    stack[sp - 1] = f32(stack[sp - 1]) == f32(stack[sp]) ? 1 : 0;
+                    break;
+                case F32_EQ + LOCAL:
+                    stack[sp - 1] = f32(stack[sp - 1]) == f32(locals[operand]) ? 1 : 0;
+                    break;
+                case F32_EQ + CONSTANT:
+                    stack[sp - 1] = f32(stack[sp - 1]) == f32(operand) ? 1 : 0;
+                    break;
+                case F32_LT:
+                    sp--;
+                    stack[sp - 1] = f32(stack[sp - 1]) < f32(stack[sp]) ? 1 : 0;
+                    break;
+                case F32_LT + LOCAL:
+                    stack[sp - 1] = f32(stack[sp - 1]) < f32(locals[operand]) ? 1 : 0;
+                    break;
+                case F32_LT + CONSTANT:
+                    stack[sp - 1] = f32(stack[sp - 1]) < f32(operand) ? 1 : 0;
+                    break;
+                case F32_GT:
+                    sp--;
+                    stack[sp - 1] = f32(stack[sp - 1]) > f32(stack[sp]) ? 1 : 0;
+                    break;
+                case F32_GT + LOCAL:
+                    stack[sp - 1] = f32(stack[sp - 1]) > f32(locals[operand]) ? 1 : 0;
+                    break;
+                case F32_GT + CONSTANT:
+                    stack[sp - 1] = f32(stack[sp - 1]) > f32(operand) ? 1 : 0;
+                    break;
+                case F32_ADD:
+                    sp--;
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) + f32(stack[sp]));
+                    break;
+                case F32_ADD + LOCAL:
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) + f32(locals[operand]));
+                    break;
+                case F32_ADD + CONSTANT:
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) + f32(operand));
+                    break;
+                case F32_SUB:
+                    sp--;
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) - f32(stack[sp]));
+                    break;
+                case F32_SUB + LOCAL:
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) - f32(locals[operand]));
+                    break;
+                case F32_SUB + CONSTANT:
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) - f32(operand));
+                    break;
+                case F32_MUL:
+                    sp--;
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) * f32(stack[sp]));
+                    break;
+                case F32_MUL + LOCAL:
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) * f32(locals[operand]));
+                    break;
+                case F32_MUL + CONSTANT:
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) * f32(operand));
+                    break;
+                case F32_DIV:
+                    sp--;
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) / f32(stack[sp]));
+                    break;
+                case F32_DIV + LOCAL:
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) / f32(locals[operand]));
+                    break;
+                case F32_DIV + CONSTANT:
+                    stack[sp - 1] = bits(f32(stack[sp - 1]) / f32(operand));
+                    break;
+                case I32_TRUNC_F32_S: {
+                    float value = f32(stack[sp - 1]);
+                    // like the wasm instruction, NaN and values out of range trap
+                    if (!(value >= -2147483648f && value < 2147483648f)) {
+                        throw new Trap("Integer overflow converting " + value);
+                    }
+                    stack[sp - 1] = (int) value;
+                    break;
+                }
+                case F32_CONVERT_I32_S:
+                    stack[sp - 1] = bits((float) stack[sp - 1]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected!");
+            }
+            pc += 2;
+        }
+    }
+    private static float f32(int bits) {
+        return Float.intBitsToFloat(bits);
+    }
+    private static int bits(float value) {
+        return Float.floatToRawIntBits(value);
+    }
+
+    // https://webassembly.github.io/spec/core/binary/modules.html#import-section
+    private static int importedMemoryPages(ByteBuffer in) {
+        int pages = 0;
+        for (int count = Leb128.readUnsignedLeb128(in); count > 0; count--) {
+            skipName(in);
+            skipName(in);
+            int kind = in.get();
+            if (kind == 0x02) {
+                int flags = in.get();
+                pages = Leb128.readUnsignedLeb128(in);
+                if (flags == 1) {
+                    Leb128.readUnsignedLeb128(in);
+                }
+            } else {
+                Leb128.readUnsignedLeb128(in);
+            }
+        }
+        return pages;
+    }
+    private static void skipName(ByteBuffer in) {
+        int length = Leb128.readUnsignedLeb128(in);
+        in.position(in.position() + length);
+    }
+    private static String name(ByteBuffer in) {
+        byte[] name = new byte[Leb128.readUnsignedLeb128(in)];
+        in.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+    // https://webassembly.github.io/spec/core/binary/modules.html#type-section
+    // the number of parameters of each function type
+    private static int[] parameterCounts(ByteBuffer in) {
+        int[] params = new int[Leb128.readUnsignedLeb128(in)];
+        for (int i = 0; i < params.length; i++) {
+            in.get();
+            params[i] = Leb128.readUnsignedLeb128(in);
+            in.position(in.position() + params[i]);
+            int results = Leb128.readUnsignedLeb128(in);
+            in.position(in.position() + results);
+        }
+        return params;
+    }
+    // https://webassembly.github.io/spec/core/binary/modules.html#global-section
+    // the Compiler only exports immutable f32 constants
+    private static float[] globals(ByteBuffer in) {
+        float[] globals = new float[Leb128.readUnsignedLeb128(in)];
+        for (int i = 0; i < globals.length; i++) {
+            in.get();
+            in.get();
+            if ((in.get() & 0xff) != (Compiler.Opcodes.f32_const.val & 0xff)) {
+                throw new IllegalArgumentException("Expected an f32 constant global");
+            }
+            globals[i] = in.getFloat();
+            in.get();
+        }
+        return globals;
+    }
+
+    // Decodes a function body. Each open block, loop and if records where branches to it
+    // go: the start of a loop, or the end of the others, which is not known until it is
+    // reached. Branches waiting for an end are chained through their operands, each holding
+    // the index of the one before, and patched when the end comes.
+    private static class Decoder {
+        private static final int BLOCK = 0;
+        private static final int LOOP = 1;
+        private static final int IF = 2;
+
+        private final ByteBuffer in;
+        private int[] code = new int[256];
+        private int size;
+        int locals;
+        int maxHeight;
+        private int height;
+        // the open blocks, the function body at the bottom
+        private int[] kinds = new int[16];
+        // the start of a loop, the operand of the branch over the statements of an if
+        private int[] starts = new int[16];
+        // the last branch waiting for the end, -1 for none
+        private int[] waiting = new int[16];
+        private int[] heights = new int[16];
+        private int open;
+        // the last operation if a following one may be fused with it, -1 after control flow
+        private int fusable = -1;
+
+        Decoder(ByteBuffer in, int params) {
+            this.in = in;
+            this.locals = params;
+        }
+
+        int[] code() {
+            return Arrays.copyOf(code, size);
+        }
+
+        void decode() {
+            for (int groups = Leb128.readUnsignedLeb128(in); groups > 0; groups--) {
+                locals += Leb128.readUnsignedLeb128(in);
+                in.get();
+            }
+            push(BLOCK, 0);
+            while (open > 0) {
+                int at = in.position();
+                Compiler.Opcodes opcode = opcodes[in.get() & 0xff];
+                if (opcode == null) {
+                    throw new IllegalArgumentException("Unexpected opcode at " + at);
+                }
+                switch (opcode) {
+                    case block:
+                        in.get();
+                        push(BLOCK, 0);
+                        break;
+                    case loop:
+                        in.get();
+                        push(LOOP, size);
+                        break;
+                    case if_:
+                        in.get();
+                        height(-1);
+                        push(IF, add(BR_UNLESS, -1) + 1);
+                        break;
+                    case else_:
+                        // the statements of the if end by branching over the alternate
+                        branch(BR, open - 1);
+                        code[starts[open - 1]] = size;
+                        starts[open - 1] = -1;
+                        height = heights[open - 1];
+                        fusable = -1;
+                        break;
+                    case end:
+                        end();
+                        break;
+                    case br:
+                        branch(BR, open - 1 - Leb128.readUnsignedLeb128(in));
+                        break;
+                    case br_if:
+                        height(-1);
+                        branch(BR_IF, open - 1 - Leb128.readUnsignedLeb128(in));
+                        break;
+                    case call:
+                        if (Leb128.readUnsignedLeb128(in) != 0) {
+                            throw new IllegalArgumentException("Only print can be called, at " + at);
+                        }
+                        height(-1);
+                        add(PRINT, 0);
+                        break;
+                    case drop:
+                        height(-1);
+                        add(DROP, 0);
+                        break;
+                    case get_local:
+                        height(1);
+                        fusable = add(GET_LOCAL, Leb128.readUnsignedLeb128(in));
+                        break;
+                    case set_local:
+                        height(-1);
+                        int local = Leb128.readUnsignedLeb128(in);
+                        if (fused(GET_LOCAL) && code[fusable + 1] < 0x10000 && local < 0x10000) {
+                            code[fusable] = MOVE;
+                            code[fusable + 1] |= local << 16;
+                        } else {
+                            add(SET_LOCAL, local);
+                        }
+                        break;
+                    case tee_local:
+                        add(TEE_LOCAL, Leb128.readUnsignedLeb128(in));
+                        break;
+                    case i32_store_8:
+                        Leb128.readUnsignedLeb128(in);
+                        height(-2);
+                        add(STORE8, Leb128.readUnsignedLeb128(in));
+                        break;
+                    case i32_store_16:
+                    case i32_store:
+                        Leb128.readUnsignedLeb128(in);
+                        height(-2);
+                        add(opcode == Compiler.Opcodes.i32_store ? STORE32 : STORE16, Leb128.readUnsignedLeb128(in));
+                        break;
+                    case i32_const:
+                        height(1);
+                        fusable = add(I32_CONST, Leb128.readSignedLeb128(in));
+                        break;
+                    case f32_const:
+                        height(1);
+                        fusable = add(F32_CONST, in.getInt());
+                        break;
+                    case i32_eqz:
+                        add(I32_EQZ, 0);
+                        break;
+                    case i32_trunc_f32_s:
+                        add(I32_TRUNC_F32_S, 0);
+                        break;
+                    case f32_convert_i32_s:
+                        add(F32_CONVERT_I32_S, 0);
+                        break;
+                    default:
+                        height(-1);
+                        int operation = binary(opcode);
+                        if (fused(GET_LOCAL)) {
+                            code[fusable] = operation + LOCAL;
+                        } else if (fused(I32_CONST) || fused(F32_CONST)) {
+                            code[fusable] = operation + CONSTANT;
+                        } else {
+                            add(operation, 0);
+                        }
+                        break;
+                }
+                if (size - 2 != fusable || code[fusable] != GET_LOCAL && code[fusable] != I32_CONST
+                        && code[fusable] != F32_CONST) {
+                    fusable = -1;
+                }
+            }
+        }
+        // whether the last operation is the given one and may be fused with the one decoded
+        private boolean fused(int operation) {
+            return fusable >= 0 && fusable == size - 2 && code[fusable] == operation;
+        }
+        private static int binary(Compiler.Opcodes opcode) {
+            switch (opcode) {
+                case i32_eq: return I32_EQ;
+                case i32_lt_s: return I32_LT_S;
+                case i32_gt_s: return I32_GT_S;
+                case i32_add: return I32_ADD;
+                case i32_sub: return I32_SUB;
+                case i32_mul: return I32_MUL;
+                case i32_and: return I32_AND;
+                case f32_eq: return F32_EQ;
+                case f32_lt: return F32_LT;
+                case f32_gt: return F32_GT;
+                case f32_add: return F32_ADD;
+                case f32_sub: return F32_SUB;
+                case f32_mul: return F32_MUL;
+                case f32_div: return F32_DIV;
+                default: throw new IllegalStateException("Unexpected!");
+            }
+        }
+
+        // appends an operation, returning its index
+        private int add(int operation, int operand) {
+            if (size + 2 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            code[size++] = operation;
+            code[size++] = operand;
+            return size - 2;
+        }
+        private void height(int change) {
+            height += change;
+            maxHeight = Math.max(maxHeight, height);
+        }
+        private void push(int kind, int start) {
+            if (open == kinds.length) {
+                kinds = Arrays.copyOf(kinds, open * 2);
+                starts = Arrays.copyOf(starts, open * 2);
+                waiting = Arrays.copyOf(waiting, open * 2);
+                heights = Arrays.copyOf(heights, open * 2);
+            }
+            fusable = -1;
+            kinds[open] = kind;
+            starts[open] = start;
+            waiting[open] = -1;
+            heights[open] = height;
+            open++;
+        }
+        // a branch to the start of a loop is known, others wait for the end of their block
+        private void branch(int operation, int block) {
+            if (block < 0) {
+                throw new IllegalArgumentException("Branch out of the function at " + in.position());
+            }
+            if (kinds[block] == LOOP) {
+                add(operation, starts[block]);
+            } else {
+                waiting[block] = add(operation, waiting[block]) + 1;
+            }
+        }
+        private void end() {
+            fusable = -1;
+            open--;
+            if (open == 0) {
+                add(RETURN, 0);
+            }
+            // a branch to the end of the function returns
+            int target = open == 0 ? size - 2 : size;
+            for (int operand = waiting[open]; operand >= 0; ) {
+                int previous = code[operand];
+                code[operand] = target;
+                operand = previous;
+            }
+            if (kinds[open] == IF && starts[open] >= 0) {
+                code[starts[open]] = target;
+            }
+            height = heights[open];
+        }
+    }
+
+    // Interpreter <module.wasm> [framebuffer.pgm [width height]]
+    // runs a module, printing what it prints and writing the memory as an image of a byte a
+    // pixel, 100x100 unless the canvas the module was compiled for is given
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: Interpreter <module.wasm> [framebuffer.pgm [width height]]");
+            System.exit(2);
+        }
+        Interpreter interpreter = new Interpreter(Files.readAllBytes(Paths.get(args[0])));
+        long start = System.nanoTime();
+        ByteBuffer memory = interpreter.run(System.out::println);
+        System.err.println("ran in " + (System.nanoTime() - start) / 1000000 + " ms");
+        if (args.length > 1) {
+            Path image = Paths.get(args[1]);
+            int width = args.length > 3 ? Integer.parseInt(args[2]) : 100;
+            int height = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+            byte[] header = ("P5\n" + width + " " + height + "\n255\n").getBytes();
+            byte[] pixels = new byte[header.length + width * height];
+            System.arraycopy(header, 0, pixels, 0, header.length);
+            memory.get(0, pixels, header.length, width * height);
+            Files.write(image, pixels);
+        }
+    }
+}
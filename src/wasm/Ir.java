@@ -0,0 +1,244 @@
+package wasm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The run function as a flat list of typed instructions, the form programs take between the
+// Lowering from the AST and the wasm emitter. Instructions live in parallel arrays, so a pass
+// is a loop over an index.
+//
+// Every instruction computing a value is the virtual register holding it, operands name the
+// instructions they read. Values are used exactly once and in the order they were computed,
+// the last value computed is the first one read, which is what lets the emitter leave them
+// on the wasm stack. Variables are numbered in the order the code first meets them, get and
+// set move values between them and registers.
+//
+// This is a stack form, the expression trees of the program written out in the order wasm
+// evaluates them, rather than three-address code whose registers may be read any number of
+// times, that form is the Cfg the analyses of level 1 run on before the Lowering. Passes
+// over this one are local rewrites like the ones PassManager runs.
+//
+// Control flow keeps the structure wasm needs: if, else, loop and end bracket their code and
+// br_if only returns to the start of an enclosing loop.
+public class Ir {
+
+    public enum Type {
+        i32, f32, none
+    }
+
+    public enum Op {
+        // imm holds the value, the bits of an f32
+        f32_const(Type.f32),
+        i32_const(Type.i32),
+        // a is the variable
+        get_f32(Type.f32),
+        get_i32(Type.i32),
+        // a is the variable, b the value stored
+        set(Type.none),
+        // a and b are the operands
+        f32_add(Type.f32),
+        f32_sub(Type.f32),
+        f32_mul(Type.f32),
+        f32_div(Type.f32),
+        f32_eq(Type.i32),
+        f32_lt(Type.i32),
+        f32_gt(Type.i32),
+        i32_add(Type.i32),
+        i32_sub(Type.i32),
+        i32_mul(Type.i32),
+        i32_eq(Type.i32),
+        i32_lt(Type.i32),
+        i32_gt(Type.i32),
+        i32_and(Type.i32),
+        // a is the value converted
+        f32_from_i32(Type.f32),
+        i32_from_f32(Type.i32),
+        // a is the value printed
+        print(Type.none),
+        // a is the address, b the value stored, imm the bytes stored, 1, 2 or 4
+        store(Type.none),
+        // a is the condition, imm the matching else or end
+        if_(Type.none),
+        // imm is the matching end
+        else_(Type.none),
+        // imm is the matching end
+        loop(Type.none),
+        // a is the condition, imm the loop branched back to
+        br_if(Type.none),
+        // imm is the if or loop being closed
+        end(Type.none),
+        // imm is the index of a statement list in bodies, emitted by the caller
+        body(Type.none),
+        // left behind by passes, dropped by compact
+        nop(Type.none);
+
+        public final Type result;
+
+        Op(Type result) {
+            this.result = result;
+        }
+    }
+
+    private Op[] ops = new Op[64];
+    private int[] as = new int[64];
+    private int[] bs = new int[64];
+    private int[] imms = new int[64];
+    private int size;
+    private final List<String> variables = new ArrayList<>();
+    private final Map<String, Integer> variableIndex = new HashMap<>();
+    private final List<List<Parser.StatementNode>> bodies = new ArrayList<>();
+
+    public int size() {
+        return size;
+    }
+    public Op op(int instruction) {
+        return ops[instruction];
+    }
+    public int a(int instruction) {
+        return as[instruction];
+    }
+    public int b(int instruction) {
+        return bs[instruction];
+    }
+    public int imm(int instruction) {
+        return imms[instruction];
+    }
+    public float constant(int instruction) {
+        return Float.intBitsToFloat(imms[instruction]);
+    }
+    public List<String> variables() {
+        return variables;
+    }
+    public String variable(int instruction) {
+        return variables.get(as[instruction]);
+    }
+    List<Parser.StatementNode> body(int instruction) {
+        return bodies.get(imms[instruction]);
+    }
+
+    // appends an instruction, returning the register holding its value
+    public int add(Op op, int a, int b, int imm) {
+        if (size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            as = Arrays.copyOf(as, capacity);
+            bs = Arrays.copyOf(bs, capacity);
+            imms = Arrays.copyOf(imms, capacity);
+        }
+        ops[size] = op;
+        as[size] = a;
+        bs[size] = b;
+        imms[size] = imm;
+        return size++;
+    }
+    public int add(Op op, int a, int b) {
+        return add(op, a, b, 0);
+    }
+    public int add(Op op, int a) {
+        return add(op, a, 0, 0);
+    }
+    public int f32(float value) {
+        return add(Op.f32_const, 0, 0, Float.floatToRawIntBits(value));
+    }
+    public int i32(int value) {
+        return add(Op.i32_const, 0, 0, value);
+    }
+    int body(List<Parser.StatementNode> statements) {
+        bodies.add(statements);
+        return add(Op.body, 0, 0, bodies.size() - 1);
+    }
+    // the index of a variable, numbering it when it is met for the first time
+    public int variable(String name) {
+        Integer index = variableIndex.get(name);
+        if (index == null) {
+            index = variables.size();
+            variableIndex.put(name, index);
+            variables.add(name);
+        }
+        return index;
+    }
+    // points an if, else or loop at the instruction closing it
+    public void close(int opener, int closer) {
+        imms[opener] = closer;
+    }
+
+    public void set(int instruction, Op op, int a, int b, int imm) {
+        ops[instruction] = op;
+        as[instruction] = a;
+        bs[instruction] = b;
+        imms[instruction] = imm;
+    }
+    public void remove(int instruction) {
+        ops[instruction] = Op.nop;
+    }
+
+    // Drops the instructions passes replaced by nop, renumbering the registers and the
+    // control flow instructions point at. Only a value nothing reads may be removed.
+    public void compact() {
+        int[] moved = new int[size];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            moved[i] = kept;
+            if (ops[i] != Op.nop) {
+                kept++;
+            }
+        }
+        if (kept == size) {
+            return;
+        }
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            Op op = ops[i];
+            if (op == Op.nop) {
+                continue;
+            }
+            int a = as[i];
+            int b = bs[i];
+            int imm = imms[i];
+            if (readsA(op)) {
+                a = moved[a];
+            }
+            if (readsB(op)) {
+                b = moved[b];
+            }
+            if (op == Op.if_ || op == Op.else_ || op == Op.loop || op == Op.br_if || op == Op.end) {
+                imm = moved[imm];
+            }
+            ops[next] = op;
+            as[next] = a;
+            bs[next] = b;
+            imms[next] = imm;
+            next++;
+        }
+        size = next;
+    }
+
+    // whether a, and b, name the registers an instruction reads
+    public static boolean readsA(Op op) {
+        switch (op) {
+            case f32_const:
+            case i32_const:
+            case get_f32:
+            case get_i32:
+            case set:
+            case else_:
+            case loop:
+            case end:
+            case body:
+            case nop:
+                return false;
+            default:
+                return true;
+        }
+    }
+    public static boolean readsB(Op op) {
+        return op == Op.set || op == Op.store || isBinary(op);
+    }
+    public static boolean isBinary(Op op) {
+        return op.result != Type.none && readsA(op) && op != Op.f32_from_i32 && op != Op.i32_from_f32;
+    }
+
+}
@@ -0,0 +1,683 @@
+package wasm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A second backend next to the wasm emitter, turning the Ir of a program into a JVM class
+// whose run method is the program. Every variable is a JVM local, an int where the type
+// inference made it an i32 and a float otherwise, and while and if become branches, so once
+// the method is hot C2 compiles loops like the fractal to machine code.
+//
+// Ir values are read in the order they are computed, so they map onto the JVM operand stack
+// the same way they map onto the wasm one. The stack is empty at every if, else, loop and
+// end, which keeps the stack map frames trivial: all locals are set up front and every
+// branch target has the same frame. A comparison feeding an if or br_if becomes a single
+// compare and branch, the others are computed without branching.
+//
+// The class is loaded as a hidden class of this package, unloaded again once the Program is
+// no longer reachable. Conversions that trap in wasm and stores to the framebuffer go
+// through the static helpers at the end, which the JIT inlines.
+public class JvmCompiler {
+
+    // a compiled program, which can run any number of times, from several threads at once
+    public interface Program {
+        // runs the program, setpixel writing to framebuffer laid out like the Canvas compiled for
+        void run(Interpreter.Print print, byte[] framebuffer);
+    }
+
+    private static final String CLASS_NAME = "wasm/CompiledProgram";
+    private static final String PROGRAM = "wasm/JvmCompiler$Program";
+    private static final String PRINT = "wasm/Interpreter$Print";
+    // the class file version of Java 17
+    private static final int VERSION = 61;
+    // the locals ahead of the variables, this, print and framebuffer
+    private static final int FIRST_VARIABLE = 3;
+
+    // https://docs.oracle.com/javase/specs/jvms/se17/html/jvms-6.html
+    private static final int ICONST_0 = 0x03;
+    private static final int FCONST_0 = 0x0b;
+    private static final int FCONST_1 = 0x0c;
+    private static final int FCONST_2 = 0x0d;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int FLOAD = 0x17;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int ISTORE = 0x36;
+    private static final int FSTORE = 0x38;
+    private static final int DUP = 0x59;
+    private static final int IADD = 0x60;
+    private static final int FADD = 0x62;
+    private static final int ISUB = 0x64;
+    private static final int FSUB = 0x66;
+    private static final int IMUL = 0x68;
+    private static final int FMUL = 0x6a;
+    private static final int FDIV = 0x6e;
+    private static final int INEG = 0x74;
+    private static final int IUSHR = 0x7c;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int I2F = 0x86;
+    private static final int FCMPL = 0x95;
+    private static final int FCMPG = 0x96;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFLT = 0x9b;
+    private static final int IFGE = 0x9c;
+    private static final int IFGT = 0x9d;
+    private static final int IFLE = 0x9e;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int IF_ICMPGT = 0xa3;
+    private static final int IF_ICMPLE = 0xa4;
+    private static final int GOTO = 0xa7;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int WIDE = 0xc4;
+
+    // https://docs.oracle.com/javase/specs/jvms/se17/html/jvms-4.html#jvms-4.7.4
+    private static final int ITEM_INTEGER = 1;
+    private static final int ITEM_FLOAT = 2;
+    private static final int ITEM_OBJECT = 7;
+    private static final int SAME_FRAME_EXTENDED = 251;
+    private static final int FULL_FRAME = 255;
+
+    private final int optimizationLevel;
+    private final Canvas canvas;
+    private final PassManager passes = PassManager.standard();
+
+    public JvmCompiler() {
+        this(new Compiler.Options());
+    }
+    public JvmCompiler(Compiler.Options options) {
+        this.optimizationLevel = options.optimizationLevel();
+        this.canvas = options.canvas();
+    }
+
+    /**
+     * Compiles a Chasm program to a Program running it on the JVM, optimized like the
+     * Compiler would at the same level. Safe to call from several threads at once.
+     */
+    public Program compile(String source) {
+        if (optimizationLevel == 0) {
+            Ast ast = Parser.parseAst(new Tokenizer().tokenize(new StringReader(source)));
+            return load(classFile(Lowering.lower(ast, canvas), null));
+        }
+        List<Parser.StatementNode> statements = Parser.parse(new Tokenizer().tokenize(source));
+        canvas.check(statements);
+        return compile(Optimizer.optimize(statements));
+    }
+    /**
+     * Compiles parsed statements, which at level 1 are expected to have been through the
+     * Optimizer already, like Compiler.build expects them. Their setpixel coordinates are
+     * not checked against the canvas, compile(String) does that ahead of the Optimizer.
+     */
+    public Program compile(List<Parser.StatementNode> statements) {
+        return load(classFile(statements));
+    }
+
+    // the class file of the program, before it is loaded
+    byte[] classFile(List<Parser.StatementNode> statements) {
+        if (optimizationLevel == 0) {
+            return classFile(Lowering.lower(statements, null, canvas), null);
+        }
+        TypeInference.Types types = TypeInference.infer(statements);
+        Ir ir = Lowering.lower(statements, types, canvas);
+        passes.run(ir);
+        return classFile(ir, types);
+    }
+
+    private static Program load(byte[] classFile) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (Program) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not load the compiled program", e);
+        }
+    }
+
+    byte[] classFile(Ir ir, TypeInference.Types types) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int program = pool.classRef(PROGRAM);
+        Code init = new Code();
+        init.u1(ALOAD_0);
+        init.u1(INVOKESPECIAL);
+        init.u2(pool.methodRef("java/lang/Object", "<init>", "()V"));
+        init.u1(RETURN);
+        Method run = run(ir, types, pool, thisClass);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            int initName = pool.utf8("<init>");
+            int initType = pool.utf8("()V");
+            int runName = pool.utf8("run");
+            int runType = pool.utf8("(L" + PRINT + ";[B)V");
+            int codeName = pool.utf8("Code");
+            int stackMapName = pool.utf8("StackMapTable");
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            pool.writeTo(out);
+            // public final super
+            out.writeShort(0x0031);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(program);
+            // no fields
+            out.writeShort(0);
+            out.writeShort(2);
+            writeMethod(out, initName, initType, codeName, stackMapName, new Method(init, 1, 1, null));
+            writeMethod(out, runName, runType, codeName, stackMapName, run);
+            // no attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class Method {
+        final Code code;
+        final int maxStack;
+        final int maxLocals;
+        // the stack map frames, null when the method has no branches
+        final byte[] frames;
+
+        Method(Code code, int maxStack, int maxLocals, byte[] frames) {
+            this.code = code;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.frames = frames;
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeName, int stackMapName,
+                                    Method method) throws IOException {
+        // public
+        out.writeShort(0x0001);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        int frames = method.frames == null ? 0 : 6 + method.frames.length;
+        out.writeInt(12 + method.code.length + frames);
+        out.writeShort(method.maxStack);
+        out.writeShort(method.maxLocals);
+        out.writeInt(method.code.length);
+        out.write(method.code.bytes, 0, method.code.length);
+        // no exception handlers
+        out.writeShort(0);
+        if (method.frames == null) {
+            out.writeShort(0);
+            return;
+        }
+        out.writeShort(1);
+        out.writeShort(stackMapName);
+        out.writeInt(method.frames.length);
+        out.write(method.frames);
+    }
+
+    // Translates the instructions in order, like Compiler.emit does for wasm
+    private Method run(Ir ir, TypeInference.Types types, ConstantPool pool, int thisClass) {
+        List<String> variables = ir.variables();
+        boolean[] integer = new boolean[variables.size()];
+        Code code = new Code();
+        for (int i = 0; i < integer.length; i++) {
+            // wasm locals start at 0, JVM ones have to be set before they are read
+            integer[i] = Lowering.isInteger(types, variables.get(i));
+            code.u1(integer[i] ? ICONST_0 : FCONST_0);
+            local(code, integer[i] ? ISTORE : FSTORE, FIRST_VARIABLE + i);
+        }
+        int truncate = pool.methodRef("wasm/JvmCompiler", "truncate", "(F)I");
+        int[] stores = new int[5];
+        stores[1] = pool.methodRef("wasm/JvmCompiler", "store8", "(II[B)V");
+        stores[2] = pool.methodRef("wasm/JvmCompiler", "store16", "(II[B)V");
+        stores[4] = pool.methodRef("wasm/JvmCompiler", "store32", "(II[B)V");
+        int print = pool.methodRef("wasm/JvmCompiler", "print", "(FL" + PRINT + ";)V");
+        int compare = pool.methodRef("java/lang/Integer", "compare", "(II)I");
+
+        // the branch still to point at each else and end, and where each loop starts
+        int[] pending = new int[ir.size()];
+        Arrays.fill(pending, -1);
+        int[] loops = new int[ir.size()];
+        // the offsets branched to, in order, each needing a stack map frame
+        int[] targets = new int[16];
+        int targetCount = 0;
+        int depth = 0;
+        int maxDepth = 0;
+        for (int i = 0; i < ir.size(); i++) {
+            Ir.Op op = ir.op(i);
+            depth -= (Ir.readsA(op) ? 1 : 0) + (Ir.readsB(op) ? 1 : 0);
+            if (op.result != Ir.Type.none) {
+                maxDepth = Math.max(maxDepth, ++depth);
+            }
+            int target = -1;
+            switch (op) {
+                case f32_const:
+                    floatConstant(code, pool, ir.imm(i));
+                    break;
+                case i32_const:
+                    intConstant(code, pool, ir.imm(i));
+                    break;
+                case get_f32:
+                    local(code, FLOAD, FIRST_VARIABLE + ir.a(i));
+                    break;
+                case get_i32:
+                    local(code, ILOAD, FIRST_VARIABLE + ir.a(i));
+                    break;
+                case set:
+                    local(code, integer[ir.a(i)] ? ISTORE : FSTORE, FIRST_VARIABLE + ir.a(i));
+                    break;
+                case f32_add: code.u1(FADD); break;
+                case f32_sub: code.u1(FSUB); break;
+                case f32_mul: code.u1(FMUL); break;
+                case f32_div: code.u1(FDIV); break;
+                case i32_add: code.u1(IADD); break;
+                case i32_sub: code.u1(ISUB); break;
+                case i32_mul: code.u1(IMUL); break;
+                case i32_and: code.u1(IAND); break;
+                case f32_eq:
+                case f32_lt:
+                case f32_gt:
+                case i32_eq:
+                case i32_lt:
+                case i32_gt:
+                    if (i + 1 < ir.size() && ir.a(i + 1) == i
+                            && (ir.op(i + 1) == Ir.Op.if_ || ir.op(i + 1) == Ir.Op.br_if)) {
+                        // left to the branch reading it
+                        break;
+                    }
+                    comparison(code, op, compare);
+                    break;
+                case f32_from_i32:
+                    code.u1(I2F);
+                    break;
+                case i32_from_f32:
+                    code.u1(INVOKESTATIC);
+                    code.u2(truncate);
+                    break;
+                case print:
+                    code.u1(ALOAD_1);
+                    code.u1(INVOKESTATIC);
+                    code.u2(print);
+                    break;
+                case store:
+                    code.u1(ALOAD_2);
+                    code.u1(INVOKESTATIC);
+                    code.u2(stores[ir.imm(i)]);
+                    break;
+                case if_:
+                    // skips to the else or end unless the condition holds
+                    pending[ir.imm(i)] = branch(code, ir, i, false);
+                    break;
+                case else_:
+                    int skip = code.length;
+                    code.u1(GOTO);
+                    code.u2(0);
+                    target = code.length;
+                    code.patchBranch(pending[i], target);
+                    pending[ir.imm(i)] = skip;
+                    break;
+                case loop:
+                    target = loops[i] = code.length;
+                    break;
+                case br_if:
+                    code.patchBranch(branch(code, ir, i, true), loops[ir.imm(i)]);
+                    break;
+                case end:
+                    if (pending[i] >= 0) {
+                        target = code.length;
+                        code.patchBranch(pending[i], target);
+                    }
+                    break;
+                case nop:
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected " + op);
+            }
+            if (target >= 0 && (targetCount == 0 || targets[targetCount - 1] != target)) {
+                if (targetCount == targets.length) {
+                    targets = Arrays.copyOf(targets, targetCount * 2);
+                }
+                targets[targetCount++] = target;
+            }
+        }
+        code.u1(RETURN);
+        if (code.length > 0xffff) {
+            throw new IllegalStateException("The program is too large for a JVM method");
+        }
+        int maxLocals = FIRST_VARIABLE + integer.length;
+        byte[] frames = targetCount == 0 ? null : frames(pool, thisClass, integer, targets, targetCount);
+        // the print and store receivers, and the copy i32_eq makes, go on top of the values
+        return new Method(code, maxDepth + 2, maxLocals, frames);
+    }
+
+    // Emits the branch of an if, taken when the condition is false, or of a br_if, taken
+    // when it is true, returning where it is for patchBranch. A comparison right ahead of it
+    // was left on the stack as its operands.
+    private static int branch(Code code, Ir ir, int instruction, boolean taken) {
+        int condition = ir.a(instruction);
+        int at;
+        switch (condition == instruction - 1 ? ir.op(condition) : Ir.Op.nop) {
+            // fcmpg puts NaN above and fcmpl below, so a NaN operand compares false either way
+            case f32_eq:
+                code.u1(FCMPL);
+                at = code.branch(taken ? IFEQ : IFNE);
+                break;
+            case f32_lt:
+                code.u1(FCMPG);
+                at = code.branch(taken ? IFLT : IFGE);
+                break;
+            case f32_gt:
+                code.u1(FCMPL);
+                at = code.branch(taken ? IFGT : IFLE);
+                break;
+            case i32_eq:
+                at = code.branch(taken ? IF_ICMPEQ : IF_ICMPNE);
+                break;
+            case i32_lt:
+                at = code.branch(taken ? IF_ICMPLT : IF_ICMPGE);
+                break;
+            case i32_gt:
+                at = code.branch(taken ? IF_ICMPGT : IF_ICMPLE);
+                break;
+            default:
+                at = code.branch(taken ? IFNE : IFEQ);
+                break;
+        }
+        return at;
+    }
+
+    // A comparison whose i32 value is used, computed from the sign of fcmp or Integer.compare
+    private static void comparison(Code code, Ir.Op op, int compare) {
+        switch (op) {
+            case f32_eq:
+                // 0 when equal, -1 or 1 otherwise
+                code.u1(FCMPL);
+                code.u1(ICONST_0 + 1);
+                code.u1(IAND);
+                code.u1(ICONST_0 + 1);
+                code.u1(IXOR);
+                return;
+            case f32_lt:
+                code.u1(FCMPG);
+                break;
+            case f32_gt:
+                code.u1(FCMPL);
+                code.u1(INEG);
+                break;
+            case i32_eq:
+                // a - b is 0 exactly when they are equal, and (d | -d) is negative otherwise
+                code.u1(ISUB);
+                code.u1(DUP);
+                code.u1(INEG);
+                code.u1(IOR);
+                code.u1(BIPUSH);
+                code.u1(31);
+                code.u1(IUSHR);
+                code.u1(ICONST_0 + 1);
+                code.u1(IXOR);
+                return;
+            case i32_lt:
+                code.u1(INVOKESTATIC);
+                code.u2(compare);
+                break;
+            default:
+                code.u1(INVOKESTATIC);
+                code.u2(compare);
+                code.u1(INEG);
+                break;
+        }
+        // the sign bit of -1 is the 1 the comparison is true for
+        code.u1(BIPUSH);
+        code.u1(31);
+        code.u1(IUSHR);
+    }
+
+    private static void local(Code code, int opcode, int index) {
+        if (index > 0xff) {
+            code.u1(WIDE);
+            code.u1(opcode);
+            code.u2(index);
+        } else {
+            code.u1(opcode);
+            code.u1(index);
+        }
+    }
+    private static void floatConstant(Code code, ConstantPool pool, int bits) {
+        if (bits == Float.floatToRawIntBits(0f)) {
+            code.u1(FCONST_0);
+        } else if (bits == Float.floatToRawIntBits(1f)) {
+            code.u1(FCONST_1);
+        } else if (bits == Float.floatToRawIntBits(2f)) {
+            code.u1(FCONST_2);
+        } else {
+            ldc(code, pool.floatConstant(bits));
+        }
+    }
+    private static void intConstant(Code code, ConstantPool pool, int value) {
+        if (value >= -1 && value <= 5) {
+            code.u1(ICONST_0 + value);
+        } else if (value == (byte) value) {
+            code.u1(BIPUSH);
+            code.u1(value);
+        } else if (value == (short) value) {
+            code.u1(SIPUSH);
+            code.u2(value);
+        } else {
+            ldc(code, pool.integerConstant(value));
+        }
+    }
+    private static void ldc(Code code, int index) {
+        if (index > 0xff) {
+            code.u1(LDC_W);
+            code.u2(index);
+        } else {
+            code.u1(LDC);
+            code.u1(index);
+        }
+    }
+
+    // Every target has every local set and an empty stack. The first frame spells them out,
+    // the others are the same frame again.
+    private static byte[] frames(ConstantPool pool, int thisClass, boolean[] integer, int[] targets, int count) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeShort(count);
+            out.writeByte(FULL_FRAME);
+            out.writeShort(targets[0]);
+            out.writeShort(FIRST_VARIABLE + integer.length);
+            out.writeByte(ITEM_OBJECT);
+            out.writeShort(thisClass);
+            out.writeByte(ITEM_OBJECT);
+            out.writeShort(pool.classRef(PRINT));
+            out.writeByte(ITEM_OBJECT);
+            out.writeShort(pool.classRef("[B"));
+            for (boolean isInteger : integer) {
+                out.writeByte(isInteger ? ITEM_INTEGER : ITEM_FLOAT);
+            }
+            out.writeShort(0);
+            for (int i = 1; i < count; i++) {
+                int delta = targets[i] - targets[i - 1] - 1;
+                if (delta < 64) {
+                    out.writeByte(delta);
+                } else {
+                    out.writeByte(SAME_FRAME_EXTENDED);
+                    out.writeShort(delta);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // the bytecode of a method, growing as it is written
+    private static class Code {
+        byte[] bytes = new byte[256];
+        int length;
+
+        void u1(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+        void u2(int value) {
+            u1(value >>> 8);
+            u1(value);
+        }
+        // a branch to be pointed at its target by patchBranch, returning where it is
+        int branch(int opcode) {
+            int at = length;
+            u1(opcode);
+            u2(0);
+            return at;
+        }
+        void patchBranch(int at, int target) {
+            int offset = target - at;
+            if (offset != (short) offset) {
+                throw new IllegalStateException("The program is too large for a JVM method");
+            }
+            bytes[at + 1] = (byte) (offset >>> 8);
+            bytes[at + 2] = (byte) offset;
+        }
+    }
+
+    // https://docs.oracle.com/javase/specs/jvms/se17/html/jvms-4.html#jvms-4.4
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            Integer index = entries.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(1);
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return add("U" + value);
+        }
+        int classRef(String name) {
+            Integer index = entries.get("C" + name);
+            return index != null ? index : entry(7, "C" + name, utf8(name));
+        }
+        int methodRef(String owner, String name, String type) {
+            String key = "M" + owner + "." + name + type;
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            int nameAndType = entry(12, "N" + name + type, utf8(name), utf8(type));
+            return entry(10, key, ownerIndex, nameAndType);
+        }
+        int floatConstant(int bits) {
+            return number(4, "F" + bits, bits);
+        }
+        int integerConstant(int value) {
+            return number(3, "I" + value, value);
+        }
+
+        private int number(int tag, String key, int value) {
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(tag);
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return add(key);
+        }
+        private int entry(int tag, String key, int... references) {
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(tag);
+                for (int reference : references) {
+                    out.writeShort(reference);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return add(key);
+        }
+        private int add(String key) {
+            if (count > 0xffff) {
+                throw new IllegalStateException("The program is too large for a JVM class");
+            }
+            entries.put(key, count);
+            return count++;
+        }
+        void writeTo(DataOutputStream to) throws IOException {
+            to.writeShort(count);
+            to.write(bytes.toByteArray());
+        }
+    }
+
+    // Called by the compiled programs. Like i32.trunc_f32_s, NaN and values out of range trap.
+    static int truncate(float value) {
+        if (!(value >= -2147483648f && value < 2147483648f)) {
+            throw new Interpreter.Trap("Integer overflow converting " + value);
+        }
+        return (int) value;
+    }
+    static void store8(int address, int value, byte[] framebuffer) {
+        if (address < 0 || address >= framebuffer.length) {
+            throw new Interpreter.Trap("Store out of bounds at " + (address & 0xffffffffL));
+        }
+        framebuffer[address] = (byte) value;
+    }
+    // wider pixels are stored little-endian, like wasm stores them
+    static void store16(int address, int value, byte[] framebuffer) {
+        if (address < 0 || address > framebuffer.length - 2) {
+            throw new Interpreter.Trap("Store out of bounds at " + (address & 0xffffffffL));
+        }
+        framebuffer[address] = (byte) value;
+        framebuffer[address + 1] = (byte) (value >>> 8);
+    }
+    static void store32(int address, int value, byte[] framebuffer) {
+        if (address < 0 || address > framebuffer.length - 4) {
+            throw new Interpreter.Trap("Store out of bounds at " + (address & 0xffffffffL));
+        }
+        for (int i = 0; i < 4; i++) {
+            framebuffer[address + i] = (byte) (value >>> (8 * i));
+        }
+    }
+    static void print(float value, Interpreter.Print print) {
+        print.print(value);
+    }
+}
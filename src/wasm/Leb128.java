@@ -1,7 +1,7 @@
 package wasm;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /*
  * Copyright (C) 2008 The Android Open Source Project
@@ -31,14 +31,8 @@ public class Leb128 {
          * @return its write size, in bytes
          */
         public static int unsignedLeb128Size(int value) {
-            // TODO: This could be much cleverer.
-            int remaining = value >> 7;
-            int count = 0;
-            while (remaining != 0) {
-                remaining >>= 7;
-                count++;
-            }
-            return count + 1;
+            // one byte per started group of 7 significant bits, value | 1 makes zero take a byte
+            return (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
         }
         /**
          * Gets the number of bytes in the signed LEB128 encoding of the
@@ -48,19 +42,8 @@ public class Leb128 {
          * @return its write size, in bytes
          */
         public static int signedLeb128Size(int value) {
-            // TODO: This could be much cleverer.
-            int remaining = value >> 7;
-            int count = 0;
-            boolean hasMore = true;
-            int end = ((value & Integer.MIN_VALUE) == 0) ? 0 : -1;
-            while (hasMore) {
-                hasMore = (remaining != end)
-                        || ((remaining & 1) != ((value >> 6) & 1));
-                value = remaining;
-                remaining >>= 7;
-                count++;
-            }
-            return count;
+            // as unsigned, but over the magnitude bits plus one sign bit
+            return (39 - Integer.numberOfLeadingZeros(value ^ (value >> 31))) / 7;
         }
         /**
          * Reads an signed integer from {@code in}.
@@ -102,29 +85,132 @@ public class Leb128 {
             }
             return result;
         }
+        /**
+         * Reads an signed integer from {@code in}, advancing its position.
+         */
+        public static int readSignedLeb128(ByteBuffer in) {
+            int result = 0;
+            int cur;
+            int count = 0;
+            int signBits = -1;
+            do {
+                cur = in.get() & 0xff;
+                result |= (cur & 0x7f) << (count * 7);
+                signBits <<= 7;
+                count++;
+            } while (((cur & 0x80) == 0x80) && count < 5);
+            if ((cur & 0x80) == 0x80) {
+                throw new Error("invalid LEB128 sequence");
+            }
+            // Sign extend if appropriate
+            if (((signBits >> 1) & result) != 0 ) {
+                result |= signBits;
+            }
+            return result;
+        }
+        /**
+         * Reads an unsigned integer from {@code in}, advancing its position.
+         */
+        public static int readUnsignedLeb128(ByteBuffer in) {
+            int result = 0;
+            int cur;
+            int count = 0;
+            do {
+                cur = in.get() & 0xff;
+                result |= (cur & 0x7f) << (count * 7);
+                count++;
+            } while (((cur & 0x80) == 0x80) && count < 5);
+            if ((cur & 0x80) == 0x80) {
+                throw new Error("invalid LEB128 sequence");
+            }
+            return result;
+        }
         public static byte[] writeUnsignedLeb128(int value) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] out = new byte[unsignedLeb128Size(value)];
+            writeUnsignedLeb128(out, 0, value);
+            return out;
+        }
+        public static byte[] writeSignedLeb128(int value) {
+            byte[] out = new byte[signedLeb128Size(value)];
+            writeSignedLeb128(out, 0, value);
+            return out;
+        }
+        /**
+         * Writes {@code value} as an unsigned LEB128 into {@code out} at {@code offset}.
+         *
+         * @return the offset just past the last byte written
+         */
+        public static int writeUnsignedLeb128(byte[] out, int offset, int value) {
             int remaining = value >>> 7;
             while (remaining != 0) {
-                out.write((byte) ((value & 0x7f) | 0x80));
+                out[offset++] = (byte) ((value & 0x7f) | 0x80);
                 value = remaining;
                 remaining >>>= 7;
             }
-            out.write((byte) (value & 0x7f));
-            return out.toByteArray();
+            out[offset++] = (byte) (value & 0x7f);
+            return offset;
         }
-        public static byte[] writeSignedLeb128(int value) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+        /**
+         * Writes {@code value} as a signed LEB128 into {@code out} at {@code offset}.
+         *
+         * @return the offset just past the last byte written
+         */
+        public static int writeSignedLeb128(byte[] out, int offset, int value) {
+            int remaining = value >> 7;
+            boolean hasMore = true;
+            int end = ((value & Integer.MIN_VALUE) == 0) ? 0 : -1;
+            while (hasMore) {
+                hasMore = (remaining != end)
+                        || ((remaining & 1) != ((value >> 6) & 1));
+                out[offset++] = (byte) ((value & 0x7f) | (hasMore ? 0x80 : 0));
+                value = remaining;
+                remaining >>= 7;
+            }
+            return offset;
+        }
+        /**
+         * Writes {@code value} as an unsigned LEB128 padded with continuation bytes to
+         * exactly {@code width} bytes, so a slot reserved before its value was known can
+         * be filled in place.
+         *
+         * @return the offset just past the slot
+         */
+        public static int writeUnsignedLeb128Padded(byte[] out, int offset, int value, int width) {
+            if (width < unsignedLeb128Size(value) || width > 5) {
+                throw new IllegalArgumentException(value + " does not fit in " + width + " LEB128 bytes");
+            }
+            for (int i = 0; i < width - 1; i++) {
+                out[offset++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out[offset++] = (byte) (value & 0x7f);
+            return offset;
+        }
+        /**
+         * Writes {@code value} as an unsigned LEB128 at the position of {@code out}.
+         */
+        public static void writeUnsignedLeb128(ByteBuffer out, int value) {
+            int remaining = value >>> 7;
+            while (remaining != 0) {
+                out.put((byte) ((value & 0x7f) | 0x80));
+                value = remaining;
+                remaining >>>= 7;
+            }
+            out.put((byte) (value & 0x7f));
+        }
+        /**
+         * Writes {@code value} as a signed LEB128 at the position of {@code out}.
+         */
+        public static void writeSignedLeb128(ByteBuffer out, int value) {
             int remaining = value >> 7;
             boolean hasMore = true;
             int end = ((value & Integer.MIN_VALUE) == 0) ? 0 : -1;
             while (hasMore) {
                 hasMore = (remaining != end)
                         || ((remaining & 1) != ((value >> 6) & 1));
-                out.write((byte) ((value & 0x7f) | (hasMore ? 0x80 : 0)));
+                out.put((byte) ((value & 0x7f) | (hasMore ? 0x80 : 0)));
                 value = remaining;
                 remaining >>= 7;
             }
-            return out.toByteArray();
         }
 }
@@ -0,0 +1,218 @@
+package wasm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Gives the variables of a program their local indices. Variables that are never live at
+// the same time share a local, and locals are numbered by how often the code uses them, a
+// use inside a loop counting several times over, so the busiest locals get the indices
+// below 128 that take a single LEB128 byte.
+//
+// A variable is live wherever the value it holds may still be read, which is worked out over
+// the blocks of the program's Cfg. Two variables
+// interfere when one is stored to while the other is live. Locals start out as 0, so
+// variables read before anything is stored to them may share one until one of them is
+// stored to, which makes it interfere with the others still live. Variables of different
+// types never share a local.
+public class LocalAllocator {
+
+    // how much more a use counts for each loop around it
+    private static final long LOOP_WEIGHT = 8;
+    // loops nested deeper than this much weight all count the same, keeping the sums in range
+    private static final long MAX_WEIGHT = 1L << 40;
+
+    private static class Local {
+        final boolean integer;
+        // every variable interfering with one held in this local
+        final BitSet conflicts = new BitSet();
+        long weight;
+
+        Local(boolean integer) {
+            this.integer = integer;
+        }
+    }
+
+    private final Cfg cfg;
+    private final List<BitSet> interference = new ArrayList<>();
+    private final long[] weights;
+
+    private LocalAllocator(Cfg cfg) {
+        this.cfg = cfg;
+        for (int i = 0; i < cfg.variables().size(); i++) {
+            interference.add(new BitSet());
+        }
+        weights = new long[cfg.variables().size()];
+    }
+
+    /**
+     * Maps every variable of the program to its local index, the indices run from 0 without
+     * gaps. {@code types} tells the i32 variables, null when all of them are f32.
+     */
+    public static Map<String, Integer> allocate(List<Parser.StatementNode> nodes, TypeInference.Types types) {
+        return allocate(Cfg.build(nodes), types);
+    }
+    public static Map<String, Integer> allocate(Cfg cfg, TypeInference.Types types) {
+        LocalAllocator allocator = new LocalAllocator(cfg);
+        List<String> names = cfg.variables();
+        allocator.count();
+        allocator.interfere(allocator.liveness());
+        allocator.symmetrize();
+
+        // the busiest variables are placed first, in the first local they fit in
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingLong((Integer variable) -> -allocator.weights[variable]));
+        List<Local> locals = new ArrayList<>();
+        Local[] assigned = new Local[names.size()];
+        for (int variable : order) {
+            boolean integer = types != null && types.isInteger(names.get(variable));
+            Local local = null;
+            for (Local candidate : locals) {
+                if (candidate.integer == integer && !candidate.conflicts.get(variable)) {
+                    local = candidate;
+                    break;
+                }
+            }
+            if (local == null) {
+                local = new Local(integer);
+                locals.add(local);
+            }
+            local.conflicts.or(allocator.interference.get(variable));
+            local.weight += allocator.weights[variable];
+            assigned[variable] = local;
+        }
+
+        locals.sort(Comparator.comparingLong((Local local) -> -local.weight));
+        Map<Local, Integer> indices = new HashMap<>();
+        for (Local local : locals) {
+            indices.put(local, indices.size());
+        }
+        Map<String, Integer> allocation = new HashMap<>();
+        for (int i = 0; i < assigned.length; i++) {
+            allocation.put(names.get(i), indices.get(assigned[i]));
+        }
+        return allocation;
+    }
+
+    // stores only noted the variables live at the time, the other side of each interference
+    // is added at the end
+    private void symmetrize() {
+        for (int variable = 0; variable < interference.size(); variable++) {
+            BitSet conflicts = interference.get(variable);
+            for (int other = conflicts.nextSetBit(0); other >= 0; other = conflicts.nextSetBit(other + 1)) {
+                interference.get(other).set(variable);
+            }
+        }
+    }
+
+    // Adds up the uses of every variable, each weighing as much as it is executed relative
+    // to the code outside any loop. The condition of a loop is tested once ahead of it and
+    // then at the bottom of every iteration, and setpixel reads x, y and color back.
+    private void count() {
+        long[] depthWeights = {1};
+        for (int block = 0; block < cfg.blocks(); block++) {
+            int depth = cfg.depth(block);
+            if (depth >= depthWeights.length) {
+                int length = depthWeights.length;
+                depthWeights = Arrays.copyOf(depthWeights, depth + 1);
+                for (int i = length; i <= depth; i++) {
+                    long outer = depthWeights[i - 1];
+                    depthWeights[i] = outer < MAX_WEIGHT ? outer * LOOP_WEIGHT : outer;
+                }
+            }
+            long weight = depthWeights[depth];
+            for (int i = cfg.start(block); i < cfg.end(block); i++) {
+                switch (cfg.op(i)) {
+                    case get:
+                    case set:
+                        weights[cfg.a(i)] += weight;
+                        break;
+                    case pixel:
+                        weights[cfg.a(i)] += weight;
+                        weights[cfg.b(i)] += weight;
+                        weights[cfg.imm(i)] += weight;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    // The variables live at the end of every block. Blocks are walked backwards from a
+    // worklist until the sets stop growing.
+    private BitSet[] liveness() {
+        int blocks = cfg.blocks();
+        BitSet[] liveIn = new BitSet[blocks];
+        BitSet[] liveOut = new BitSet[blocks];
+        for (int block = 0; block < blocks; block++) {
+            liveIn[block] = new BitSet();
+            liveOut[block] = new BitSet();
+        }
+        BitSet work = new BitSet();
+        work.set(0, blocks);
+        for (int block = work.previousSetBit(blocks - 1); block >= 0; block = work.previousSetBit(blocks - 1)) {
+            work.clear(block);
+            BitSet live = liveOut[block];
+            live.clear();
+            if (cfg.taken(block) >= 0) {
+                live.or(liveIn[cfg.taken(block)]);
+            }
+            if (cfg.notTaken(block) >= 0) {
+                live.or(liveIn[cfg.notTaken(block)]);
+            }
+            live = (BitSet) live.clone();
+            for (int i = cfg.end(block) - 1; i >= cfg.start(block); i--) {
+                transfer(i, live, null);
+            }
+            if (!live.equals(liveIn[block])) {
+                liveIn[block] = live;
+                for (int predecessor : cfg.predecessors(block)) {
+                    work.set(predecessor);
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    // notes the interference of every store, walking each block back from what is live after it
+    private void interfere(BitSet[] liveOut) {
+        for (int block = 0; block < cfg.blocks(); block++) {
+            BitSet live = (BitSet) liveOut[block].clone();
+            for (int i = cfg.end(block) - 1; i >= cfg.start(block); i--) {
+                transfer(i, live, interference);
+            }
+        }
+    }
+
+    // Takes live from after an instruction to ahead of it. A store interferes with every
+    // variable live after it, which is noted in interference unless it is null.
+    private void transfer(int instruction, BitSet live, List<BitSet> interference) {
+        switch (cfg.op(instruction)) {
+            case set:
+                int variable = cfg.a(instruction);
+                live.clear(variable);
+                if (interference != null) {
+                    interference.get(variable).or(live);
+                }
+                break;
+            case get:
+                live.set(cfg.a(instruction));
+                break;
+            case pixel:
+                live.set(cfg.a(instruction));
+                live.set(cfg.b(instruction));
+                live.set(cfg.imm(instruction));
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package wasm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Turns parsed statements into Ir. This is where every value gets its type: expressions that
+// can be computed exactly in i32 are, and conversions are added wherever an i32 value meets
+// an f32 one. Variables are numbered in the order the statements first meet them, which is
+// the order declareLocals gives them their locals in.
+//
+// Nothing here recurses. Statement lists are walked with a stack of the while and if
+// statements still open and expressions with a stack of the nodes still to visit, so how
+// deep a program nests is only limited by the heap.
+class Lowering {
+
+    private static final Map<String, Ir.Op> floatOps = Map.of("+", Ir.Op.f32_add, "-", Ir.Op.f32_sub,
+            "*", Ir.Op.f32_mul, "/", Ir.Op.f32_div, "==", Ir.Op.f32_eq,
+            ">", Ir.Op.f32_gt, "<", Ir.Op.f32_lt, "&&", Ir.Op.i32_and);
+    private static final Map<String, Ir.Op> integerOps = Map.of("+", Ir.Op.i32_add, "-", Ir.Op.i32_sub,
+            "*", Ir.Op.i32_mul, "==", Ir.Op.i32_eq, ">", Ir.Op.i32_gt, "<", Ir.Op.i32_lt,
+            "&&", Ir.Op.i32_and);
+    // the f32 instruction for each of Tokenizer.operators, by index
+    private static final Ir.Op[] operatorOps = new Ir.Op[Tokenizer.operators.length];
+    static {
+        for (int i = 0; i < operatorOps.length; i++) {
+            operatorOps[i] = floatOps.get(Tokenizer.operators[i]);
+        }
+    }
+
+    // what an expression node on the stack still needs
+    private static final byte VISIT = 0;
+    private static final byte FLOAT = 1;
+    private static final byte INTEGER = 2;
+
+    // a statement list being lowered and the while or if it belongs to, the statement
+    // following in the list is an index for parsed statements and a node for an Ast
+    private static class Frame {
+        final Parser.StatementNode owner;
+        final int astOwner;
+        List<Parser.StatementNode> statements;
+        int next;
+        // the if, the loop of a while and the if or else the end closes
+        int start;
+        int loop;
+        int opener;
+        boolean alternate;
+
+        Frame(Parser.StatementNode owner, List<Parser.StatementNode> statements) {
+            this.owner = owner;
+            this.astOwner = Ast.NONE;
+            this.statements = statements;
+        }
+        Frame(int astOwner, int next) {
+            this.owner = null;
+            this.astOwner = astOwner;
+            this.next = next;
+        }
+    }
+
+    private final Ir ir = new Ir();
+    // the variables held in i32 locals, null when every local is an f32
+    private final TypeInference.Types types;
+    // whether the statement lists of while and if are lowered too or left to the emitter
+    private final boolean nested;
+    // the framebuffer setpixel stores to
+    private final Canvas canvas;
+    // the Ir variable of every symbol, or Ast variable, met so far, -1 for the others
+    private int[] variables = new int[0];
+
+    // the expression nodes still to visit, the type asked of each and what it still needs
+    private Parser.ExpressionNode[] work = new Parser.ExpressionNode[16];
+    private int[] workNodes = new int[16];
+    private Ir.Type[] workTypes = new Ir.Type[16];
+    private byte[] workStates = new byte[16];
+    private int workSize;
+    // the registers of the operands lowered so far
+    private int[] values = new int[16];
+    private int valueCount;
+    // the binary expressions of the expression being lowered that can be computed in i32
+    private final Set<Parser.ExpressionNode> integers = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Lowering(TypeInference.Types types, boolean nested, Canvas canvas) {
+        this.types = types;
+        this.nested = nested;
+        this.canvas = canvas;
+    }
+
+    static Ir lower(List<Parser.StatementNode> nodes, TypeInference.Types types, Canvas canvas) {
+        Lowering lowering = new Lowering(types, true, canvas);
+        lowering.statements(new Frame(null, nodes));
+        return lowering.ir;
+    }
+    // lowers a single statement, its nested statement lists become body instructions
+    static Ir lowerStatement(Parser.StatementNode node, TypeInference.Types types, Canvas canvas) {
+        Lowering lowering = new Lowering(types, false, canvas);
+        lowering.statements(new Frame(null, List.of(node)));
+        return lowering.ir;
+    }
+
+    // lowers the condition of a while or if, leaving its i32 value as the only one
+    static Ir lowerCondition(Parser.ExpressionNode condition, TypeInference.Types types) {
+        Lowering lowering = new Lowering(types, false, null);
+        lowering.expression(condition, Ir.Type.i32);
+        return lowering.ir;
+    }
+
+    // Lowers an Ast. The type inference works on parsed statements, so every variable of an
+    // Ast is an f32.
+    static Ir lower(Ast ast, Canvas canvas) {
+        Lowering lowering = new Lowering(null, true, canvas);
+        lowering.statements(ast, new Frame(Ast.NONE, ast.program()));
+        return lowering.ir;
+    }
+
+    static boolean isInteger(TypeInference.Types types, String variable) {
+        return types != null && types.isInteger(variable);
+    }
+
+    private void statements(Frame top) {
+        ArrayDeque<Frame> frames = new ArrayDeque<>();
+        frames.push(top);
+        while (!frames.isEmpty()) {
+            Frame frame = frames.peek();
+            Frame inner;
+            if (frame.next < frame.statements.size()) {
+                inner = statement(frame.statements.get(frame.next++));
+            } else {
+                frames.pop();
+                inner = close(frame);
+            }
+            if (inner != null) {
+                frames.push(inner);
+            }
+        }
+    }
+    // The frame of a statement list to lower next, or null when the emitter is left to do
+    // its code. A list left to the emitter is closed right away, which may open the
+    // alternate of an if.
+    private Frame enter(Frame frame) {
+        while (!nested && frame != null) {
+            ir.body(frame.statements);
+            frame.next = frame.statements.size();
+            frame = close(frame);
+        }
+        return frame;
+    }
+
+    // lowers a statement, returning the frame of the statements it holds if it has any
+    private Frame statement(Parser.StatementNode node) {
+        if (node instanceof Parser.PrintStatementNode) {
+            ir.add(Ir.Op.print, expression(node.value, Ir.Type.f32));
+        } else if (node instanceof Parser.VariableDeclarationNode) {
+            Parser.VariableDeclarationNode declaration = (Parser.VariableDeclarationNode) node;
+            store(declaration.name, declaration.symbol, node.value);
+        } else if (node instanceof Parser.VariableAssignmentNode) {
+            Parser.VariableAssignmentNode assignment = (Parser.VariableAssignmentNode) node;
+            store(assignment.name, assignment.symbol, node.value);
+        } else if (node instanceof Parser.WhileStatementNode) {
+            // the loop is rotated, the condition is tested once on the way in and then at the
+            // bottom of every iteration, so an iteration takes a single branch
+            Frame frame = new Frame(node, ((Parser.WhileStatementNode) node).statements);
+            frame.start = ir.add(Ir.Op.if_, expression(node.value, Ir.Type.i32));
+            frame.loop = ir.add(Ir.Op.loop, 0);
+            return enter(frame);
+        } else if (node instanceof Parser.IfStatementNode) {
+            Frame frame = new Frame(node, ((Parser.IfStatementNode) node).consequent);
+            frame.start = ir.add(Ir.Op.if_, expression(node.value, Ir.Type.i32));
+            frame.opener = frame.start;
+            return enter(frame);
+        } else if (node instanceof Parser.SetPixelStatementNode) {
+            Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+            // the arguments are kept in x, y and color, the store reads them back
+            setpixelArgument(setPixelNode.x, "x");
+            setpixelArgument(setPixelNode.y, "y");
+            setpixelArgument(setPixelNode.value, "color");
+            store();
+        } else {
+            throw new IllegalStateException("Unexpected!");
+        }
+        return null;
+    }
+    // ends the code of a finished statement list, returning the frame of the alternate of
+    // an if when that comes next
+    private Frame close(Frame frame) {
+        if (frame.owner instanceof Parser.WhileStatementNode) {
+            ir.add(Ir.Op.br_if, expression(frame.owner.value, Ir.Type.i32), 0, frame.loop);
+            closeLoop(frame);
+        } else if (frame.owner instanceof Parser.IfStatementNode) {
+            List<Parser.StatementNode> alternate = ((Parser.IfStatementNode) frame.owner).alternate;
+            if (!frame.alternate && !alternate.isEmpty()) {
+                openElse(frame);
+                frame.statements = alternate;
+                frame.next = 0;
+                return enter(frame);
+            }
+            ir.close(frame.opener, ir.add(Ir.Op.end, 0, 0, frame.start));
+        }
+        return null;
+    }
+    private void closeLoop(Frame frame) {
+        ir.close(frame.loop, ir.add(Ir.Op.end, 0, 0, frame.loop));
+        ir.close(frame.start, ir.add(Ir.Op.end, 0, 0, frame.start));
+    }
+    private void openElse(Frame frame) {
+        frame.opener = ir.add(Ir.Op.else_, 0);
+        ir.close(frame.start, frame.opener);
+        frame.alternate = true;
+    }
+
+    private void store(String name, int symbol, Parser.ExpressionNode value) {
+        int register = expression(value, typeOf(name));
+        ir.add(Ir.Op.set, variable(name, symbol), register);
+    }
+    private void setpixelArgument(Parser.ExpressionNode argument, String name) {
+        if (argument instanceof Parser.IdentifierNode && argument.value.equals(name)) {
+            // already in place
+            ir.variable(name);
+            return;
+        }
+        store(name, -1, argument);
+    }
+    // Stores color to the pixel at x and y. Each coordinate is truncated to an i32 on its own,
+    // so the row stride is an integer multiply whatever type the variables hold.
+    private void store() {
+        int row = ir.add(Ir.Op.i32_mul, get("y", -1, Ir.Type.i32), ir.i32(canvas.stride()));
+        int column = get("x", -1, Ir.Type.i32);
+        if (canvas.bytesPerPixel > 1) {
+            column = ir.add(Ir.Op.i32_mul, column, ir.i32(canvas.bytesPerPixel));
+        }
+        int index = ir.add(Ir.Op.i32_add, row, column);
+        ir.add(Ir.Op.store, index, get("color", -1, Ir.Type.i32), canvas.bytesPerPixel);
+    }
+
+    // Lowers the expression to a value of the given type. Expressions that can be computed
+    // exactly in i32 are, the result is converted wherever the types differ. A binary
+    // expression is taken off the stack twice, once to push its operands and once they are
+    // lowered to combine them.
+    private int expression(Parser.ExpressionNode root, Ir.Type type) {
+        if (types != null && root instanceof Parser.BinaryExpressionNode) {
+            findIntegers(root);
+        }
+        push(root, type, VISIT);
+        while (workSize > 0) {
+            workSize--;
+            Parser.ExpressionNode node = work[workSize];
+            Ir.Type asked = workTypes[workSize];
+            byte state = workStates[workSize];
+            work[workSize] = null;
+            if (node instanceof Parser.NumberLiteralNode) {
+                if (asked == Ir.Type.i32 && isInteger(node)) {
+                    value(ir.i32((int) Float.parseFloat(node.value)));
+                } else {
+                    value(convert(ir.f32(Float.parseFloat(node.value)), Ir.Type.f32, asked));
+                }
+                continue;
+            }
+            if (node instanceof Parser.IdentifierNode) {
+                value(get(node.value, ((Parser.IdentifierNode) node).symbol, asked));
+                continue;
+            }
+            Parser.BinaryExpressionNode binary = (Parser.BinaryExpressionNode) node;
+            if (state == VISIT) {
+                boolean comparison = binary.value.equals("==") || binary.value.equals("<") || binary.value.equals(">");
+                boolean integer = binary.value.equals("&&") || integerOps.containsKey(binary.value)
+                        && isInteger(binary.left) && isInteger(binary.right) && (comparison || types.isExact(binary));
+                Ir.Type operands = integer ? Ir.Type.i32 : Ir.Type.f32;
+                push(binary, asked, integer ? INTEGER : FLOAT);
+                push(binary.right, operands, VISIT);
+                push(binary.left, operands, VISIT);
+                continue;
+            }
+            int right = values[--valueCount];
+            int left = values[--valueCount];
+            Ir.Op op = (state == INTEGER ? integerOps : floatOps).get(binary.value);
+            value(convert(ir.add(op, left, right), op.result, asked));
+        }
+        integers.clear();
+        return values[--valueCount];
+    }
+    private void push(Parser.ExpressionNode node, Ir.Type type, byte state) {
+        grow();
+        work[workSize] = node;
+        workTypes[workSize] = type;
+        workStates[workSize++] = state;
+    }
+    private void push(int node, Ir.Type type, byte state) {
+        grow();
+        workNodes[workSize] = node;
+        workTypes[workSize] = type;
+        workStates[workSize++] = state;
+    }
+    private void grow() {
+        if (workSize == workStates.length) {
+            int capacity = workSize * 2;
+            work = Arrays.copyOf(work, capacity);
+            workNodes = Arrays.copyOf(workNodes, capacity);
+            workTypes = Arrays.copyOf(workTypes, capacity);
+            workStates = Arrays.copyOf(workStates, capacity);
+        }
+    }
+    private void value(int register) {
+        if (valueCount == values.length) {
+            values = Arrays.copyOf(values, valueCount * 2);
+        }
+        values[valueCount++] = register;
+    }
+    private int get(String name, int symbol, Ir.Type type) {
+        Ir.Type held = typeOf(name);
+        int register = ir.add(held == Ir.Type.i32 ? Ir.Op.get_i32 : Ir.Op.get_f32, variable(name, symbol));
+        return convert(register, held, type);
+    }
+    // the Ir variable of a name, looked up by its symbol when it has one
+    private int variable(String name, int symbol) {
+        if (symbol < 0) {
+            return ir.variable(name);
+        }
+        if (symbol >= variables.length) {
+            int length = variables.length;
+            variables = Arrays.copyOf(variables, Math.max(symbol + 1, length * 2));
+            Arrays.fill(variables, length, variables.length, -1);
+        }
+        if (variables[symbol] < 0) {
+            variables[symbol] = ir.variable(name);
+        }
+        return variables[symbol];
+    }
+    private int convert(int register, Ir.Type from, Ir.Type to) {
+        if (from == Ir.Type.i32 && to == Ir.Type.f32) {
+            return ir.add(Ir.Op.f32_from_i32, register);
+        }
+        if (from == Ir.Type.f32 && to == Ir.Type.i32) {
+            return ir.add(Ir.Op.i32_from_f32, register);
+        }
+        return register;
+    }
+
+    // whether the f32 value of an expression can be computed in i32 instead
+    private boolean isInteger(Parser.ExpressionNode node) {
+        if (types == null) {
+            return false;
+        }
+        if (node instanceof Parser.NumberLiteralNode) {
+            return TypeInference.isInteger(node);
+        }
+        if (node instanceof Parser.IdentifierNode) {
+            return types.isInteger(node.value);
+        }
+        return integers.contains(node);
+    }
+    // Collects the binary expressions under root that can be computed in i32 into integers,
+    // operands ahead of the expressions reading them, so each is decided once
+    private void findIntegers(Parser.ExpressionNode root) {
+        push(root, null, VISIT);
+        while (workSize > 0) {
+            workSize--;
+            Parser.BinaryExpressionNode binary = (Parser.BinaryExpressionNode) work[workSize];
+            byte state = workStates[workSize];
+            work[workSize] = null;
+            if (state == VISIT) {
+                push(binary, null, FLOAT);
+                if (binary.right instanceof Parser.BinaryExpressionNode) {
+                    push(binary.right, null, VISIT);
+                }
+                if (binary.left instanceof Parser.BinaryExpressionNode) {
+                    push(binary.left, null, VISIT);
+                }
+            } else if (isArithmetic(binary.value) && types.isExact(binary)
+                    && isInteger(binary.left) && isInteger(binary.right)) {
+                integers.add(binary);
+            }
+        }
+    }
+    // the operators an i32 computes exactly like an f32 does, for small enough integers
+    private static boolean isArithmetic(String operator) {
+        return operator.equals("+") || operator.equals("-") || operator.equals("*");
+    }
+    private Ir.Type typeOf(String variable) {
+        return isInteger(types, variable) ? Ir.Type.i32 : Ir.Type.f32;
+    }
+
+    private void statements(Ast ast, Frame top) {
+        ArrayDeque<Frame> frames = new ArrayDeque<>();
+        frames.push(top);
+        while (!frames.isEmpty()) {
+            Frame frame = frames.peek();
+            Frame inner;
+            if (frame.next != Ast.NONE) {
+                int node = frame.next;
+                frame.next = ast.next(node);
+                inner = statement(ast, node);
+            } else {
+                frames.pop();
+                inner = close(ast, frame);
+            }
+            if (inner != null) {
+                frames.push(inner);
+            }
+        }
+    }
+    private Frame statement(Ast ast, int node) {
+        switch (ast.kind(node)) {
+            case print:
+                ir.add(Ir.Op.print, expression(ast, ast.first(node), Ir.Type.f32));
+                return null;
+            case declaration:
+            case assignment:
+                int value = expression(ast, ast.second(node), Ir.Type.f32);
+                ir.add(Ir.Op.set, variable(ast, ast.first(node)), value);
+                return null;
+            case whileLoop:
+            case ifElse:
+                Frame frame = new Frame(node, ast.second(node));
+                frame.start = ir.add(Ir.Op.if_, expression(ast, ast.first(node), Ir.Type.i32));
+                frame.opener = frame.start;
+                if (ast.kind(node) == Ast.Kind.whileLoop) {
+                    frame.loop = ir.add(Ir.Op.loop, 0);
+                }
+                return frame;
+            case setpixel:
+                setpixelArgument(ast, ast.first(node), "x");
+                setpixelArgument(ast, ast.second(node), "y");
+                setpixelArgument(ast, ast.third(node), "color");
+                store();
+                return null;
+            default:
+                throw new IllegalStateException("Unexpected!");
+        }
+    }
+    private Frame close(Ast ast, Frame frame) {
+        int owner = frame.astOwner;
+        if (owner == Ast.NONE) {
+            return null;
+        }
+        if (ast.kind(owner) == Ast.Kind.whileLoop) {
+            ir.add(Ir.Op.br_if, expression(ast, ast.first(owner), Ir.Type.i32), 0, frame.loop);
+            closeLoop(frame);
+            return null;
+        }
+        if (!frame.alternate && ast.third(owner) != Ast.NONE) {
+            openElse(frame);
+            frame.next = ast.third(owner);
+            return frame;
+        }
+        ir.close(frame.opener, ir.add(Ir.Op.end, 0, 0, frame.start));
+        return null;
+    }
+    private void setpixelArgument(Ast ast, int argument, String name) {
+        // an Ast is never optimized, so its constant coordinates are checked here, parsed
+        // statements are checked by Canvas.check ahead of the Optimizer
+        if (ast.kind(argument) == Ast.Kind.number && !name.equals("color")) {
+            canvas.check(name, ast.literal(argument));
+        }
+        if (ast.kind(argument) == Ast.Kind.identifier && ast.variables().get(ast.first(argument)).equals(name)) {
+            ir.variable(name);
+            return;
+        }
+        ir.add(Ir.Op.set, ir.variable(name), expression(ast, argument, Ir.Type.f32));
+    }
+    // the same walk as for parsed statements, with no types to work out
+    private int expression(Ast ast, int root, Ir.Type type) {
+        push(root, type, VISIT);
+        while (workSize > 0) {
+            workSize--;
+            int node = workNodes[workSize];
+            Ir.Type asked = workTypes[workSize];
+            switch (ast.kind(node)) {
+                case number:
+                    value(convert(ir.f32(ast.literal(node)), Ir.Type.f32, asked));
+                    break;
+                case identifier:
+                    value(convert(ir.add(Ir.Op.get_f32, variable(ast, ast.first(node))), Ir.Type.f32, asked));
+                    break;
+                case binary:
+                    Ir.Op op = operatorOps[ast.third(node)];
+                    if (workStates[workSize] == VISIT) {
+                        // && combines the i32 results of comparisons
+                        Ir.Type operands = op == Ir.Op.i32_and ? Ir.Type.i32 : Ir.Type.f32;
+                        push(node, asked, FLOAT);
+                        push(ast.second(node), operands, VISIT);
+                        push(ast.first(node), operands, VISIT);
+                        break;
+                    }
+                    int right = values[--valueCount];
+                    int left = values[--valueCount];
+                    value(convert(ir.add(op, left, right), op.result, asked));
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected!");
+            }
+        }
+        return values[--valueCount];
+    }
+    private int variable(Ast ast, int variable) {
+        return variable(ast.variables().get(variable), variable);
+    }
+}
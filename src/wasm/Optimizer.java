@@ -0,0 +1,618 @@
+package wasm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+// Rewrites a parsed program into a cheaper one that computes the same values. Runs between
+// Parser.parse and Compiler.build and never modifies the tree it is given, rewritten
+// statements are new ones and untouched expressions are shared with the input.
+//
+// Every value is an f32 and folding uses Java float arithmetic, which rounds exactly like the
+// wasm f32 instructions. Identities are only applied where they hold for every f32 input:
+// x * 1, x / 1, x - 0 and x + -0 are x, but x + 0 is not (-0 + 0 is 0) and neither is
+// x * 0 (NaN, infinities and negative x). Strength reduction is held to the same standard,
+// x * 2 becomes x + x and x / 4 becomes x * 0.25.
+//
+// Statements and expressions are walked on explicit stacks rather than by recursion, so
+// programs nest as deep as the parser lets them.
+public class Optimizer {
+
+    public static List<Parser.StatementNode> optimize(List<Parser.StatementNode> nodes) {
+        return DeadStores.eliminate(optimizeFragment(nodes));
+    }
+    /**
+     * Optimizes statements the rest of the program runs around, so every variable they
+     * store to may still be read afterwards and their stores are all kept.
+     */
+    static List<Parser.StatementNode> optimizeFragment(List<Parser.StatementNode> nodes) {
+        return CommonSubexpressions.eliminate(hoist(simplify(nodes)));
+    }
+
+    // folds every expression and drops the statements that can never run
+    private static List<Parser.StatementNode> simplify(List<Parser.StatementNode> nodes) {
+        ArrayDeque<Parser.StatementNode> nested = new ArrayDeque<>();
+        List<Parser.StatementNode> optimized = simplify(nodes, nested);
+        while (!nested.isEmpty()) {
+            Parser.StatementNode statement = nested.pop();
+            if (statement instanceof Parser.WhileStatementNode) {
+                Parser.WhileStatementNode whileNode = (Parser.WhileStatementNode) statement;
+                whileNode.statements = simplify(whileNode.statements, nested);
+            } else {
+                Parser.IfStatementNode ifNode = (Parser.IfStatementNode) statement;
+                ifNode.consequent = simplify(ifNode.consequent, nested);
+                ifNode.alternate = simplify(ifNode.alternate, nested);
+            }
+        }
+        return optimized;
+    }
+    // Simplifies one list of statements, with the branch an if always runs in place of the if.
+    // The whiles and ifs it keeps go to nested, their own statements are not simplified yet.
+    private static List<Parser.StatementNode> simplify(List<Parser.StatementNode> nodes,
+                                                       ArrayDeque<Parser.StatementNode> nested) {
+        List<Parser.StatementNode> optimized = new ArrayList<>(nodes.size());
+        ArrayDeque<Iterator<Parser.StatementNode>> lists = new ArrayDeque<>();
+        lists.push(nodes.iterator());
+        while (!lists.isEmpty()) {
+            if (!lists.peek().hasNext()) {
+                lists.pop();
+                continue;
+            }
+            Parser.StatementNode node = lists.peek().next();
+            if (node instanceof Parser.IfStatementNode) {
+                List<Parser.StatementNode> branch = liveBranch((Parser.IfStatementNode) node);
+                if (branch != null) {
+                    lists.push(branch.iterator());
+                    continue;
+                }
+            } else if (node instanceof Parser.WhileStatementNode && neverRuns((Parser.WhileStatementNode) node)) {
+                continue;
+            }
+            Parser.StatementNode statement = fold(node);
+            if (statement instanceof Parser.WhileStatementNode || statement instanceof Parser.IfStatementNode) {
+                nested.push(statement);
+            }
+            optimized.add(statement);
+        }
+        return optimized;
+    }
+
+    // Loop-invariant code motion. An arithmetic expression inside a loop whose variables are
+    // not assigned anywhere in the loop has the same value on every iteration, so it is
+    // computed once into a temporary ahead of the loop. Expressions have no side effects and
+    // f32 arithmetic never traps, so computing one the loop would have skipped is harmless.
+    // An && inside one may trap, and keeps it in the loop.
+    // Temporaries are named $0, $1.. which no identifier can clash with. They are numbered
+    // afresh for every outermost loop, as those never run at the same time.
+    //
+    // The statements are the ones simplify made, so they are rewritten in place.
+    private static List<Parser.StatementNode> hoist(List<Parser.StatementNode> nodes) {
+        ArrayDeque<Frame> frames = new ArrayDeque<>();
+        Frame program = new Frame(null, nodes, null);
+        frames.push(program);
+        while (!frames.isEmpty()) {
+            Frame frame = frames.peek();
+            if (frame.next < frame.nodes.size()) {
+                Parser.StatementNode node = frame.nodes.get(frame.next++);
+                if (node instanceof Parser.WhileStatementNode) {
+                    Parser.WhileStatementNode whileNode = (Parser.WhileStatementNode) node;
+                    Hoisting hoisting = new Hoisting(frame.temporaries != null ? frame.temporaries : new int[1]);
+                    assignments(List.of(whileNode), hoisting.assigned);
+                    whileNode.value = hoisting.rewrite(whileNode.value);
+                    hoisting.rewrite(whileNode.statements);
+                    frame.hoisted.addAll(hoisting.declarations);
+                    frames.push(new Frame(whileNode, whileNode.statements, hoisting.temporaries));
+                } else if (node instanceof Parser.IfStatementNode) {
+                    frames.push(new Frame(node, ((Parser.IfStatementNode) node).consequent, frame.temporaries));
+                }
+                frame.hoisted.add(node);
+                continue;
+            }
+            if (frame.owner instanceof Parser.WhileStatementNode) {
+                ((Parser.WhileStatementNode) frame.owner).statements = frame.hoisted;
+            } else if (frame.owner instanceof Parser.IfStatementNode) {
+                Parser.IfStatementNode ifNode = (Parser.IfStatementNode) frame.owner;
+                if (!frame.alternate) {
+                    ifNode.consequent = frame.hoisted;
+                    frame.alternate = true;
+                    frame.nodes = ifNode.alternate;
+                    frame.next = 0;
+                    frame.hoisted = new ArrayList<>(frame.nodes.size());
+                    continue;
+                }
+                ifNode.alternate = frame.hoisted;
+            }
+            frames.pop();
+        }
+        return program.hoisted;
+    }
+
+    // a list of statements hoist is going through, the body of a while or a branch of an if
+    private static class Frame {
+        final Parser.StatementNode owner;
+        List<Parser.StatementNode> nodes;
+        int next;
+        // the counter of the temporaries of the outermost loop around, null outside any loop
+        final int[] temporaries;
+        List<Parser.StatementNode> hoisted;
+        boolean alternate;
+
+        Frame(Parser.StatementNode owner, List<Parser.StatementNode> nodes, int[] temporaries) {
+            this.owner = owner;
+            this.nodes = nodes;
+            this.temporaries = temporaries;
+            hoisted = new ArrayList<>(nodes.size());
+        }
+    }
+
+    private static class Hoisting {
+        final int[] temporaries;
+        final Set<String> assigned = new HashSet<>();
+        // the temporary holding each hoisted expression, by its text
+        final Map<String, Parser.IdentifierNode> hoisted = new HashMap<>();
+        final List<Parser.StatementNode> declarations = new ArrayList<>();
+
+        Hoisting(int[] temporaries) {
+            this.temporaries = temporaries;
+        }
+
+        void rewrite(List<Parser.StatementNode> nodes) {
+            ArrayDeque<Iterator<Parser.StatementNode>> lists = new ArrayDeque<>();
+            lists.push(nodes.iterator());
+            while (!lists.isEmpty()) {
+                if (!lists.peek().hasNext()) {
+                    lists.pop();
+                    continue;
+                }
+                Parser.StatementNode node = lists.peek().next();
+                node.value = rewrite(node.value);
+                if (node instanceof Parser.SetPixelStatementNode) {
+                    Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+                    setPixelNode.x = rewrite(setPixelNode.x);
+                    setPixelNode.y = rewrite(setPixelNode.y);
+                } else if (node instanceof Parser.WhileStatementNode) {
+                    lists.push(((Parser.WhileStatementNode) node).statements.iterator());
+                } else if (node instanceof Parser.IfStatementNode) {
+                    lists.push(((Parser.IfStatementNode) node).alternate.iterator());
+                    lists.push(((Parser.IfStatementNode) node).consequent.iterator());
+                }
+            }
+        }
+
+        // hoists the outermost invariant expressions, which takes the ones in them along
+        Parser.ExpressionNode rewrite(Parser.ExpressionNode node) {
+            Set<Parser.ExpressionNode> invariant = Collections.newSetFromMap(new IdentityHashMap<>());
+            boolean arithmetic = false;
+            for (Parser.BinaryExpressionNode binary : postOrder(node)) {
+                if (invariant(binary.left, invariant) && invariant(binary.right, invariant)) {
+                    invariant.add(binary);
+                    arithmetic |= isArithmetic(binary.value);
+                }
+            }
+            if (!arithmetic) {
+                return node;
+            }
+            Facts facts = new Facts();
+            facts.learn(node);
+            return Optimizer.rewrite(node, binary -> {
+                if (!isArithmetic(binary.value) || !invariant.contains(binary) || facts.traps(binary)) {
+                    return null;
+                }
+                String text = text(binary);
+                Parser.IdentifierNode temporary = hoisted.get(text);
+                if (temporary == null) {
+                    String name = "$" + temporaries[0]++;
+                    declarations.add(new Parser.VariableDeclarationNode(name, binary));
+                    temporary = new Parser.IdentifierNode(name);
+                    hoisted.put(text, temporary);
+                }
+                return temporary;
+            }, (binary, left, right) -> left == binary.left && right == binary.right ? binary
+                    : new Parser.BinaryExpressionNode(left, right, binary.value));
+        }
+
+        // whether an operand is invariant, the binary expressions among invariant already are
+        private boolean invariant(Parser.ExpressionNode node, Set<Parser.ExpressionNode> invariant) {
+            if (node instanceof Parser.BinaryExpressionNode) {
+                return invariant.contains(node);
+            }
+            return !(node instanceof Parser.IdentifierNode) || !assigned.contains(node.value);
+        }
+    }
+
+    // the variables the statements write to, setpixel stores its arguments in x, y and color
+    static void assignments(List<Parser.StatementNode> nodes, Set<String> assigned) {
+        ArrayDeque<Iterator<Parser.StatementNode>> lists = new ArrayDeque<>();
+        lists.push(nodes.iterator());
+        while (!lists.isEmpty()) {
+            if (!lists.peek().hasNext()) {
+                lists.pop();
+                continue;
+            }
+            Parser.StatementNode node = lists.peek().next();
+            if (node instanceof Parser.VariableDeclarationNode) {
+                assigned.add(((Parser.VariableDeclarationNode) node).name);
+            } else if (node instanceof Parser.VariableAssignmentNode) {
+                assigned.add(((Parser.VariableAssignmentNode) node).name);
+            } else if (node instanceof Parser.SetPixelStatementNode) {
+                Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+                setpixelStore(setPixelNode.x, "x", assigned);
+                setpixelStore(setPixelNode.y, "y", assigned);
+                setpixelStore(setPixelNode.value, "color", assigned);
+            } else if (node instanceof Parser.WhileStatementNode) {
+                lists.push(((Parser.WhileStatementNode) node).statements.iterator());
+            } else if (node instanceof Parser.IfStatementNode) {
+                lists.push(((Parser.IfStatementNode) node).consequent.iterator());
+                lists.push(((Parser.IfStatementNode) node).alternate.iterator());
+            }
+        }
+    }
+    // an argument that already is the variable it goes into is not stored
+    private static void setpixelStore(Parser.ExpressionNode argument, String name, Set<String> assigned) {
+        if (!(argument instanceof Parser.IdentifierNode && argument.value.equals(name))) {
+            assigned.add(name);
+        }
+    }
+
+    private static String text(Parser.ExpressionNode node) {
+        StringBuilder text = new StringBuilder();
+        // expressions still to write out and the text between them
+        ArrayDeque<Object> work = new ArrayDeque<>();
+        work.push(node);
+        while (!work.isEmpty()) {
+            Object next = work.pop();
+            if (next instanceof Parser.BinaryExpressionNode) {
+                Parser.BinaryExpressionNode binary = (Parser.BinaryExpressionNode) next;
+                work.push(")");
+                work.push(binary.right);
+                work.push(" " + binary.value + " ");
+                work.push(binary.left);
+                work.push("(");
+            } else if (next instanceof Parser.ExpressionNode) {
+                text.append(((Parser.ExpressionNode) next).value);
+            } else {
+                text.append((String) next);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the statements an if statement with a constant condition always runs, or null
+     * when the condition is only known at run time.
+     */
+    static List<Parser.StatementNode> liveBranch(Parser.IfStatementNode node) {
+        Boolean condition = condition(node.value);
+        if (condition == null) {
+            return null;
+        }
+        return condition ? node.consequent : node.alternate;
+    }
+
+    private static boolean neverRuns(Parser.WhileStatementNode node) {
+        return Boolean.FALSE.equals(condition(node.value));
+    }
+    // the value of a condition once folded, null when it depends on run time values
+    private static Boolean condition(Parser.ExpressionNode node) {
+        Facts facts = new Facts();
+        return facts.condition(fold(node, facts));
+    }
+
+    /**
+     * Returns a copy of {@code node} with its own expressions folded. The statement lists
+     * of a while or if are shared with {@code node}, not optimized.
+     */
+    static Parser.StatementNode fold(Parser.StatementNode node) {
+        Parser.StatementNode folded;
+        if (node instanceof Parser.PrintStatementNode) {
+            folded = new Parser.PrintStatementNode(fold(node.value));
+        } else if (node instanceof Parser.VariableDeclarationNode) {
+            Parser.VariableDeclarationNode declaration = (Parser.VariableDeclarationNode) node;
+            folded = new Parser.VariableDeclarationNode(declaration.name, declaration.symbol, fold(node.value));
+        } else if (node instanceof Parser.VariableAssignmentNode) {
+            Parser.VariableAssignmentNode assignment = (Parser.VariableAssignmentNode) node;
+            folded = new Parser.VariableAssignmentNode(assignment.name, assignment.symbol, fold(node.value));
+        } else if (node instanceof Parser.SetPixelStatementNode) {
+            Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+            folded = new Parser.SetPixelStatementNode(fold(setPixelNode.x), fold(setPixelNode.y),
+                    fold(setPixelNode.value));
+        } else if (node instanceof Parser.WhileStatementNode) {
+            Parser.WhileStatementNode whileNode = (Parser.WhileStatementNode) node;
+            Parser.WhileStatementNode copy = new Parser.WhileStatementNode(fold(whileNode.value), whileNode.statements);
+            copy.statementsEnd = whileNode.statementsEnd;
+            folded = copy;
+        } else if (node instanceof Parser.IfStatementNode) {
+            Parser.IfStatementNode ifNode = (Parser.IfStatementNode) node;
+            Parser.IfStatementNode copy = new Parser.IfStatementNode(fold(ifNode.value), ifNode.consequent, ifNode.alternate);
+            copy.consequentEnd = ifNode.consequentEnd;
+            copy.alternateEnd = ifNode.alternateEnd;
+            folded = copy;
+        } else {
+            throw new IllegalStateException("Unexpected!");
+        }
+        folded.start = node.start;
+        return folded;
+    }
+
+    static Parser.ExpressionNode fold(Parser.ExpressionNode node) {
+        return fold(node, new Facts());
+    }
+    private static Parser.ExpressionNode fold(Parser.ExpressionNode node, Facts facts) {
+        return rewrite(node, binary -> null, (binary, left, right) -> facts.learn(fold(binary, left, right, facts)));
+    }
+    // folds a binary expression whose operands are folded already
+    private static Parser.ExpressionNode fold(Parser.BinaryExpressionNode binary, Parser.ExpressionNode left,
+                                              Parser.ExpressionNode right, Facts facts) {
+        String operator = binary.value;
+        if (isLiteral(left) && isLiteral(right) && isArithmetic(operator)) {
+            return literal(evaluate(operator, value(left), value(right)));
+        }
+        switch (operator) {
+            case "*":
+                if (is(right, 1f)) {
+                    return left;
+                }
+                if (is(left, 1f)) {
+                    return right;
+                }
+                // x * 2 and x + x round the same exact result
+                if (is(right, 2f) && left instanceof Parser.IdentifierNode) {
+                    return new Parser.BinaryExpressionNode(left, left, "+");
+                }
+                if (is(left, 2f) && right instanceof Parser.IdentifierNode) {
+                    return new Parser.BinaryExpressionNode(right, right, "+");
+                }
+                break;
+            case "/":
+                if (is(right, 1f)) {
+                    return left;
+                }
+                // dividing by a power of two and multiplying by its reciprocal, which is a float
+                // too, round the same exact result
+                if (isLiteral(right) && hasExactReciprocal(value(right))) {
+                    Parser.ExpressionNode reciprocal = literal(1f / value(right));
+                    return fold(new Parser.BinaryExpressionNode(left, reciprocal, "*"), left, reciprocal, facts);
+                }
+                break;
+            case "-":
+                if (is(right, 0f)) {
+                    return left;
+                }
+                break;
+            case "+":
+                if (is(right, -0f)) {
+                    return left;
+                }
+                if (is(left, -0f)) {
+                    return right;
+                }
+                break;
+            case "&&":
+                // && ands its operands truncated to i32, so a side that is always true, which is
+                // 1, can only go when the other side is 0 or 1 already
+                if (Boolean.TRUE.equals(facts.condition(left)) && facts.isBoolean(right)) {
+                    return right;
+                }
+                if (Boolean.TRUE.equals(facts.condition(right)) && facts.isBoolean(left)) {
+                    return left;
+                }
+                break;
+        }
+        if (left == binary.left && right == binary.right) {
+            return binary;
+        }
+        return new Parser.BinaryExpressionNode(left, right, operator);
+    }
+
+    // makes a binary expression again from its rewritten operands
+    interface Rebuild {
+        Parser.ExpressionNode apply(Parser.BinaryExpressionNode node, Parser.ExpressionNode left,
+                                    Parser.ExpressionNode right);
+    }
+    /**
+     * Rewrites an expression from the operands up on an explicit stack. {@code replace} gives
+     * the rewrite of a binary expression outright, leaving its operands alone, or null for
+     * {@code rebuild} to make it once its operands are rewritten. Left operands go first, and
+     * replace sees an expression before anything in it.
+     */
+    static Parser.ExpressionNode rewrite(Parser.ExpressionNode node,
+                                         Function<Parser.BinaryExpressionNode, Parser.ExpressionNode> replace,
+                                         Rebuild rebuild) {
+        Map<Parser.ExpressionNode, Parser.ExpressionNode> rewritten = new IdentityHashMap<>();
+        ArrayDeque<Parser.ExpressionNode> work = new ArrayDeque<>();
+        // whether the operands of the expression at the same depth of work are rewritten
+        ArrayDeque<Boolean> operandsDone = new ArrayDeque<>();
+        work.push(node);
+        operandsDone.push(false);
+        while (!work.isEmpty()) {
+            Parser.ExpressionNode next = work.pop();
+            boolean done = operandsDone.pop();
+            if (!(next instanceof Parser.BinaryExpressionNode)) {
+                rewritten.put(next, next);
+                continue;
+            }
+            Parser.BinaryExpressionNode binary = (Parser.BinaryExpressionNode) next;
+            if (done) {
+                rewritten.put(binary, rebuild.apply(binary, rewritten.get(binary.left), rewritten.get(binary.right)));
+                continue;
+            }
+            Parser.ExpressionNode replacement = replace.apply(binary);
+            if (replacement != null) {
+                rewritten.put(binary, replacement);
+                continue;
+            }
+            work.push(binary);
+            operandsDone.push(true);
+            work.push(binary.right);
+            operandsDone.push(false);
+            work.push(binary.left);
+            operandsDone.push(false);
+        }
+        return rewritten.get(node);
+    }
+    // the binary expressions in an expression, each once and after its operands
+    static List<Parser.BinaryExpressionNode> postOrder(Parser.ExpressionNode node) {
+        List<Parser.BinaryExpressionNode> order = new ArrayList<>();
+        Set<Parser.ExpressionNode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<Parser.ExpressionNode> work = new ArrayDeque<>();
+        work.push(node);
+        while (!work.isEmpty()) {
+            Parser.ExpressionNode next = work.peek();
+            if (!(next instanceof Parser.BinaryExpressionNode) || seen.contains(next)) {
+                work.pop();
+                continue;
+            }
+            Parser.BinaryExpressionNode binary = (Parser.BinaryExpressionNode) next;
+            if (binary.left instanceof Parser.BinaryExpressionNode && !seen.contains(binary.left)) {
+                work.push(binary.left);
+            } else if (binary.right instanceof Parser.BinaryExpressionNode && !seen.contains(binary.right)) {
+                work.push(binary.right);
+            } else {
+                work.pop();
+                seen.add(binary);
+                order.add(binary);
+            }
+        }
+        return order;
+    }
+
+    // What is known of expressions without running them, worked out once for every binary
+    // expression from what is known of its operands
+    private static class Facts {
+        // computing it may trap
+        private static final int TRAPS = 1;
+        // it is always 0 or 1, a comparison or an && of them
+        private static final int BOOLEAN = 2;
+        // the value of a folded i32 condition, when it does not depend on run time values
+        private static final int TRUE = 4;
+        private static final int FALSE = 8;
+
+        private final Map<Parser.ExpressionNode, Integer> known = new IdentityHashMap<>();
+
+        // learns the facts of an expression and everything in it, returning the expression
+        Parser.ExpressionNode learn(Parser.ExpressionNode node) {
+            ArrayDeque<Parser.ExpressionNode> work = new ArrayDeque<>();
+            work.push(node);
+            while (!work.isEmpty()) {
+                Parser.ExpressionNode next = work.peek();
+                if (!(next instanceof Parser.BinaryExpressionNode) || known.containsKey(next)) {
+                    work.pop();
+                    continue;
+                }
+                Parser.BinaryExpressionNode binary = (Parser.BinaryExpressionNode) next;
+                if (binary.left instanceof Parser.BinaryExpressionNode && !known.containsKey(binary.left)) {
+                    work.push(binary.left);
+                } else if (binary.right instanceof Parser.BinaryExpressionNode && !known.containsKey(binary.right)) {
+                    work.push(binary.right);
+                } else {
+                    work.pop();
+                    known.put(binary, facts(binary));
+                }
+            }
+            return node;
+        }
+
+        // f32 arithmetic and comparisons never trap, but && truncates its operands to i32. A
+        // side of && that is always false only decides it when truncating the other side
+        // cannot trap.
+        private int facts(Parser.BinaryExpressionNode binary) {
+            Parser.ExpressionNode left = binary.left;
+            Parser.ExpressionNode right = binary.right;
+            switch (binary.value) {
+                case "&&":
+                    int facts = truncationTraps(left) || truncationTraps(right) ? TRAPS : 0;
+                    if (isBoolean(left) && isBoolean(right)) {
+                        facts |= BOOLEAN;
+                    }
+                    Boolean a = condition(left);
+                    Boolean b = condition(right);
+                    if (Boolean.FALSE.equals(a) && !truncationTraps(right) || Boolean.FALSE.equals(b) && !truncationTraps(left)) {
+                        facts |= FALSE;
+                    } else if (a != null && b != null) {
+                        facts |= TRUE;
+                    }
+                    return facts;
+                case "==":
+                case "<":
+                case ">":
+                    facts = (traps(left) || traps(right) ? TRAPS : 0) | BOOLEAN;
+                    if (isLiteral(left) && isLiteral(right)) {
+                        float x = value(left);
+                        float y = value(right);
+                        boolean holds = binary.value.equals("==") ? x == y : binary.value.equals("<") ? x < y : x > y;
+                        facts |= holds ? TRUE : FALSE;
+                    }
+                    return facts;
+                default:
+                    return traps(left) || traps(right) ? TRAPS : 0;
+            }
+        }
+
+        private boolean is(Parser.ExpressionNode node, int fact) {
+            return (known.getOrDefault(node, 0) & fact) != 0;
+        }
+        boolean traps(Parser.ExpressionNode node) {
+            return is(node, TRAPS);
+        }
+        // Comparisons and && are i32 already, anything else but a constant in the i32 range
+        // may truncate to a trap
+        boolean truncationTraps(Parser.ExpressionNode node) {
+            if (isLiteral(node)) {
+                return !(value(node) >= -2147483648f && value(node) < 2147483648f);
+            }
+            if (node instanceof Parser.BinaryExpressionNode
+                    && (node.value.equals("&&") || node.value.equals("==") || node.value.equals("<") || node.value.equals(">"))) {
+                return traps(node);
+            }
+            return true;
+        }
+        boolean isBoolean(Parser.ExpressionNode node) {
+            return is(node, BOOLEAN);
+        }
+        Boolean condition(Parser.ExpressionNode node) {
+            return is(node, TRUE) ? Boolean.TRUE : is(node, FALSE) ? Boolean.FALSE : null;
+        }
+    }
+
+    private static boolean isArithmetic(String operator) {
+        return operator.equals("+") || operator.equals("-") || operator.equals("*") || operator.equals("/");
+    }
+    private static float evaluate(String operator, float a, float b) {
+        switch (operator) {
+            case "+":
+                return a + b;
+            case "-":
+                return a - b;
+            case "*":
+                return a * b;
+            default:
+                return a / b;
+        }
+    }
+    private static boolean isLiteral(Parser.ExpressionNode node) {
+        return node instanceof Parser.NumberLiteralNode;
+    }
+    private static float value(Parser.ExpressionNode node) {
+        return Float.parseFloat(node.value);
+    }
+    // only powers of two have one, the product is exact in double
+    private static boolean hasExactReciprocal(float value) {
+        return (double) (1f / value) * value == 1.0;
+    }
+    // compares bits, so 0 and -0 are told apart
+    private static boolean is(Parser.ExpressionNode node, float constant) {
+        return isLiteral(node) && Float.floatToIntBits(value(node)) == Float.floatToIntBits(constant);
+    }
+    // Float.toString gives the shortest text that parses back to the same float
+    private static Parser.NumberLiteralNode literal(float value) {
+        return new Parser.NumberLiteralNode(Float.toString(value));
+    }
+}
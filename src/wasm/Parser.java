@@ -1,6 +1,8 @@
 package wasm;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -20,6 +22,8 @@ public class Parser {
     }
     public static class StatementNode extends ProgramNode{
         ExpressionNode value;
+        // source offset of the statement's first token
+        int start;
         public StatementNode(String type, ExpressionNode value) {
             super(type);
             this.value = value;
@@ -40,8 +44,14 @@ public class Parser {
         }
     }
     public static class IdentifierNode extends ExpressionNode {
+        // the variable's id in the Symbols of the Tokenizer, -1 for nodes made up by passes
+        public final int symbol;
         IdentifierNode(String value) {
+            this(value, -1);
+        }
+        IdentifierNode(String value, int symbol) {
             super("identifier", value);
+            this.symbol = symbol;
         }
     }
     public static class PrintStatementNode extends StatementNode {
@@ -60,6 +70,8 @@ public class Parser {
     }
     public static class WhileStatementNode extends StatementNode {
         List<StatementNode> statements;
+        // source offset of endwhile
+        int statementsEnd;
         WhileStatementNode(ExpressionNode value, List<StatementNode> statements) {
             super("whileStatement", value);
             this.statements = statements;
@@ -68,6 +80,9 @@ public class Parser {
     public static class IfStatementNode extends StatementNode {
         List<StatementNode> consequent;
         List<StatementNode> alternate;
+        // source offsets of the else, or endif when there is none, and of endif
+        int consequentEnd;
+        int alternateEnd;
         IfStatementNode(ExpressionNode expression, List<StatementNode> consequent, List<StatementNode> alternate) {
             super("ifStatement", expression);
             this.consequent = consequent;
@@ -76,38 +91,83 @@ public class Parser {
     }
     public static class VariableDeclarationNode extends StatementNode {
         public final String name;
+        public final int symbol;
         VariableDeclarationNode(String name, ExpressionNode initializer) {
+            this(name, -1, initializer);
+        }
+        VariableDeclarationNode(String name, int symbol, ExpressionNode initializer) {
             super("variableDeclaration", initializer);
             this.name = name;
+            this.symbol = symbol;
         }
     }
     public static class VariableAssignmentNode extends StatementNode {
         public final String name;
+        public final int symbol;
         VariableAssignmentNode(String name, ExpressionNode initializer) {
+            this(name, -1, initializer);
+        }
+        VariableAssignmentNode(String name, int symbol, ExpressionNode initializer) {
             super("variableAssignment", initializer);
             this.name = name;
+            this.symbol = symbol;
+        }
+    }
+    // a while or if whose statements are still being parsed
+    private static class Block {
+        final boolean isWhile;
+        // the node, for Steps
+        StatementNode node;
+        // the condition and the first and last statements of the list, for parseAst
+        int condition;
+        int head = Ast.NONE;
+        int last = Ast.NONE;
+        int consequent = Ast.NONE;
+        // whether the else has been met
+        boolean alternate;
+        Block(boolean isWhile) {
+            this.isWhile = isWhile;
         }
     }
+
+    // Parses an expression in prefix order without recursing. The binary expressions still
+    // open are kept with their left operand, null until it is parsed, and an operand closes
+    // every one of them it is the right operand of.
     private static ExpressionNode parseExpression(Iterator<Tokenizer.Token> iterator) {
-        Tokenizer.Token token = iterator.next();
-        ExpressionNode node = null;
-        switch(token.type) {
-            case number:
-                node = new NumberLiteralNode(token.value);
-                break;
-            case identifier:
-                node = new IdentifierNode(token.value);
-                break;
-            case parens:
-                ExpressionNode left = parseExpression(iterator);
-                String operator = iterator.next().value;
-                ExpressionNode right = parseExpression(iterator);
-                node = new BinaryExpressionNode(left, right, operator);
-                break;
-            default:
-                throw new IllegalStateException("Unexpected!");
+        List<ExpressionNode> lefts = null;
+        List<String> operators = null;
+        while (true) {
+            Tokenizer.Token token = iterator.next();
+            ExpressionNode node;
+            switch (token.type) {
+                case number:
+                    node = new NumberLiteralNode(token.value());
+                    break;
+                case identifier:
+                    node = new IdentifierNode(token.value(), token.symbol);
+                    break;
+                case parens:
+                    if (lefts == null) {
+                        lefts = new ArrayList<>();
+                        operators = new ArrayList<>();
+                    }
+                    lefts.add(null);
+                    operators.add(null);
+                    continue;
+                default:
+                    throw new IllegalStateException("Unexpected!");
+            }
+            int open = lefts == null ? 0 : lefts.size();
+            while (open > 0 && lefts.get(open - 1) != null) {
+                open--;
+                node = new BinaryExpressionNode(lefts.remove(open), node, operators.remove(open));
+            }
+            if (open == 0) {
+                return node;
+            }
+            lefts.set(open - 1, node);
+            operators.set(open - 1, iterator.next().value());
         }
-        return node;
     }
     private static Parser.StatementNode parsePrintStatement(Iterator<Tokenizer.Token> iterator) {
         return new PrintStatementNode(parseExpression(iterator));
@@ -116,84 +176,273 @@ public class Parser {
         return new SetPixelStatementNode(parseExpression(iterator), parseExpression(iterator), parseExpression(iterator));
     }
     private static Parser.StatementNode parseVariableDeclarationStatement(Iterator<Tokenizer.Token> iterator) {
-        String name = iterator.next().value;
-        String equals = iterator.next().value;
-        return new VariableDeclarationNode(name, parseExpression(iterator));
-    }
-    private static Parser.StatementNode parseIfStatement(Iterator<Tokenizer.Token> iterator) {
-        ExpressionNode expression = parseExpression(iterator);
-        boolean elseStatements = false;
-        List<StatementNode> consequent = new ArrayList<>();
-        List<StatementNode> alternate = new ArrayList<>();
-        Tokenizer.Token token = iterator.next();
-        while (!(token.value.equals("endif") && token.type.equals(Tokenizer.TokenType.keyword))) {
-            if (token.value.equals("else") && token.type.equals(Tokenizer.TokenType.keyword)) {
-                elseStatements = true;
-                token = iterator.next();
-            }
-            if (elseStatements) {
-                alternate.add(parseStatement(token, iterator));
-            } else {
-                consequent.add(parseStatement(token, iterator));
-            }
-            token = iterator.next();
-        }
-        return new IfStatementNode(expression, consequent, alternate);
-    }
-    private static  Parser.StatementNode parseWhileStatement(Iterator<Tokenizer.Token> iterator) {
-        ExpressionNode expression = parseExpression(iterator);
-        List<StatementNode> statements = new ArrayList<>();
-        Tokenizer.Token token = iterator.next();
-        while (!(token.value.equals("endwhile")
-                && token.type.equals(Tokenizer.TokenType.keyword))) {
-            statements.add(parseStatement(token, iterator));
-            token = iterator.next();
-        }
-        return new WhileStatementNode(expression, statements);
+        Tokenizer.Token name = iterator.next();
+        Tokenizer.Token equals = iterator.next();
+        return new VariableDeclarationNode(name.value(), name.symbol, parseExpression(iterator));
     }
-    private static Parser.StatementNode parseVariableAssignment(String name, Iterator<Tokenizer.Token> iterator) {
-        String equals = iterator.next().value;
-        return new VariableAssignmentNode(name, parseExpression(iterator));
-    }
-    private static Parser.StatementNode parseStatement(Iterator<Tokenizer.Token> iterator) {
-        Tokenizer.Token token = iterator.next();
-        return parseStatement(token, iterator);
+    private static Parser.StatementNode parseVariableAssignment(Tokenizer.Token name, Iterator<Tokenizer.Token> iterator) {
+        Tokenizer.Token equals = iterator.next();
+        return new VariableAssignmentNode(name.value(), name.symbol, parseExpression(iterator));
     }
     private static Parser.StatementNode parseStatement(Tokenizer.Token token, Iterator<Tokenizer.Token> iterator) {
         Parser.StatementNode node = null;
         if(token.type.equals(Tokenizer.TokenType.keyword)) {
-            switch(token.value) {
+            switch(token.value()) {
                 case "print" :
                     node = parsePrintStatement(iterator);
                     break;
                 case "var" :
                     node = parseVariableDeclarationStatement(iterator);
                     break;
-                case "while":
-                    node = parseWhileStatement(iterator);
-                    break;
-                case "if":
-                    node = parseIfStatement(iterator);
-                    break;
                 case "setpixel":
                     node = parseSetpixelStatement(iterator);
                     break;
             }
         } else if (token.type.equals(Tokenizer.TokenType.identifier)) {
-            node = parseVariableAssignment(token.value, iterator);
+            node = parseVariableAssignment(token, iterator);
         }
         if(node==null){
             throw new IllegalStateException("Unexpected!");
         }
+        node.start = token.start;
         return node;
     }
 
+    private static boolean isKeyword(Tokenizer.Token token, String keyword) {
+        return token.type.equals(Tokenizer.TokenType.keyword) && token.is(keyword);
+    }
+
     public static List<Parser.StatementNode> parse(List<Tokenizer.Token> tokens) {
         List<Parser.StatementNode> nodes = new ArrayList<>();
-        Iterator<Tokenizer.Token> iterator = tokens.iterator();
-        while(iterator.hasNext()) {
-            nodes.add(parseStatement(iterator));
+        // the lists the statements of the open while and if statements go to
+        ArrayDeque<List<StatementNode>> lists = new ArrayDeque<>();
+        Steps steps = new Steps(tokens.iterator());
+        for (Steps.Step step = steps.next(); step != Steps.Step.end; step = steps.next()) {
+            StatementNode node = steps.node();
+            switch (step) {
+                case statement:
+                    (lists.isEmpty() ? nodes : lists.peek()).add(node);
+                    break;
+                case open:
+                    (lists.isEmpty() ? nodes : lists.peek()).add(node);
+                    lists.push(node instanceof WhileStatementNode
+                            ? ((WhileStatementNode) node).statements : ((IfStatementNode) node).consequent);
+                    break;
+                case alternate:
+                    lists.pop();
+                    lists.push(((IfStatementNode) node).alternate);
+                    break;
+                case close:
+                    lists.pop();
+                    break;
+            }
         }
         return nodes;
     }
+
+    // Parses a program a step at a time for callers that do not want to hold all of it, parse
+    // builds the whole program from the steps. A while or if is a step of its own as it opens,
+    // with its lists still empty, followed by the steps of its statements, an alternate step
+    // at the else of an if and a close step at the end.
+    //
+    // Statements are parsed in a loop, with the while and if statements still open on a
+    // stack rather than on the call stack, so generated programs may nest as deep as they
+    // like. A keyword closing anything but the innermost open statement is an error.
+    static class Steps {
+        enum Step {
+            statement, open, alternate, close, end
+        }
+
+        private final Iterator<Tokenizer.Token> iterator;
+        private final ArrayDeque<Block> blocks = new ArrayDeque<>();
+        private StatementNode node;
+        // whether a statement has to come next, as it does after an else
+        private boolean statementDue;
+
+        Steps(Iterator<Tokenizer.Token> iterator) {
+            this.iterator = iterator;
+        }
+
+        // the statement parsed by the last step, the while or if for the others
+        StatementNode node() {
+            return node;
+        }
+
+        Step next() {
+            while (true) {
+                if (blocks.isEmpty() && !iterator.hasNext()) {
+                    node = null;
+                    return Step.end;
+                }
+                Tokenizer.Token token = iterator.next();
+                Block block = statementDue ? null : blocks.peek();
+                statementDue = false;
+                if (block != null && isKeyword(token, block.isWhile ? "endwhile" : "endif")) {
+                    blocks.pop();
+                    if (block.isWhile) {
+                        ((WhileStatementNode) block.node).statementsEnd = token.start;
+                    } else {
+                        IfStatementNode ifNode = (IfStatementNode) block.node;
+                        if (!block.alternate) {
+                            ifNode.consequentEnd = token.start;
+                        }
+                        ifNode.alternateEnd = token.start;
+                    }
+                    node = block.node;
+                    return Step.close;
+                }
+                if (block != null && !block.isWhile && isKeyword(token, "else")) {
+                    // a statement follows every else, a second one is skipped
+                    statementDue = true;
+                    if (block.alternate) {
+                        continue;
+                    }
+                    ((IfStatementNode) block.node).consequentEnd = token.start;
+                    block.alternate = true;
+                    node = block.node;
+                    return Step.alternate;
+                }
+                if (isKeyword(token, "while") || isKeyword(token, "if")) {
+                    Block inner = new Block(token.is("while"));
+                    ExpressionNode expression = parseExpression(iterator);
+                    if (inner.isWhile) {
+                        node = new WhileStatementNode(expression, new ArrayList<>());
+                    } else {
+                        node = new IfStatementNode(expression, new ArrayList<>(), new ArrayList<>());
+                    }
+                    node.start = token.start;
+                    inner.node = node;
+                    blocks.push(inner);
+                    return Step.open;
+                }
+                node = parseStatement(token, iterator);
+                return Step.statement;
+            }
+        }
+    }
+    /**
+     * Parses the tokens into an Ast, without an object per node. Tokens are taken as they
+     * come, so from Tokenizer.tokenize(Reader) only a chunk of them is held at a time.
+     */
+    public static Ast parseAst(Iterator<Tokenizer.Token> iterator) {
+        Ast ast = new Ast();
+        ArrayDeque<Block> blocks = new ArrayDeque<>();
+        Block program = new Block(false);
+        // whether a statement has to come next, as it does after an else, like in Steps
+        boolean statementDue = false;
+        while (!blocks.isEmpty() || iterator.hasNext()) {
+            Tokenizer.Token token = iterator.next();
+            Block block = blocks.isEmpty() ? program : blocks.peek();
+            boolean closable = !blocks.isEmpty() && !statementDue;
+            statementDue = false;
+            int statement;
+            if (closable && isKeyword(token, block.isWhile ? "endwhile" : "endif")) {
+                blocks.pop();
+                if (block.isWhile) {
+                    statement = ast.add(Ast.Kind.whileLoop, block.condition, block.head, Ast.NONE);
+                } else if (block.alternate) {
+                    statement = ast.add(Ast.Kind.ifElse, block.condition, block.consequent, block.head);
+                } else {
+                    statement = ast.add(Ast.Kind.ifElse, block.condition, block.head, Ast.NONE);
+                }
+                block = blocks.isEmpty() ? program : blocks.peek();
+            } else if (closable && !block.isWhile && isKeyword(token, "else")) {
+                // a statement follows every else, a second one is skipped
+                statementDue = true;
+                if (block.alternate) {
+                    continue;
+                }
+                block.consequent = block.head;
+                block.head = Ast.NONE;
+                block.last = Ast.NONE;
+                block.alternate = true;
+                continue;
+            } else if (isKeyword(token, "while") || isKeyword(token, "if")) {
+                Block inner = new Block(token.is("while"));
+                inner.condition = parseExpression(ast, iterator);
+                blocks.push(inner);
+                continue;
+            } else {
+                statement = parseStatement(ast, token, iterator);
+            }
+            if (block.last == Ast.NONE) {
+                block.head = statement;
+            } else {
+                ast.link(block.last, statement);
+            }
+            block.last = statement;
+        }
+        ast.program = program.head;
+        ast.trim();
+        return ast;
+    }
+    // the same walk as parseExpression, with an open binary expression waiting for its left
+    // operand held as NONE
+    private static int parseExpression(Ast ast, Iterator<Tokenizer.Token> iterator) {
+        int[] lefts = null;
+        int[] operators = null;
+        int open = 0;
+        while (true) {
+            Tokenizer.Token token = iterator.next();
+            int node;
+            switch (token.type) {
+                case number:
+                    node = ast.number(Float.parseFloat(token.value()));
+                    break;
+                case identifier:
+                    node = ast.add(Ast.Kind.identifier, ast.variable(token), Ast.NONE, Ast.NONE);
+                    break;
+                case parens:
+                    if (lefts == null || open == lefts.length) {
+                        lefts = lefts == null ? new int[8] : Arrays.copyOf(lefts, open * 2);
+                        operators = operators == null ? new int[8] : Arrays.copyOf(operators, open * 2);
+                    }
+                    lefts[open++] = Ast.NONE;
+                    continue;
+                default:
+                    throw new IllegalStateException("Unexpected!");
+            }
+            while (open > 0 && lefts[open - 1] != Ast.NONE) {
+                open--;
+                node = ast.add(Ast.Kind.binary, lefts[open], node, operators[open]);
+            }
+            if (open == 0) {
+                return node;
+            }
+            lefts[open - 1] = node;
+            operators[open - 1] = operatorIndex(iterator.next());
+        }
+    }
+    private static int operatorIndex(Tokenizer.Token token) {
+        for (int i = 0; i < Tokenizer.operators.length; i++) {
+            if (token.is(Tokenizer.operators[i])) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Unexpected!");
+    }
+    private static int parseStatement(Ast ast, Tokenizer.Token token, Iterator<Tokenizer.Token> iterator) {
+        if (token.type.equals(Tokenizer.TokenType.identifier)) {
+            int variable = ast.variable(token);
+            iterator.next();
+            return ast.add(Ast.Kind.assignment, variable, parseExpression(ast, iterator), Ast.NONE);
+        }
+        if (!token.type.equals(Tokenizer.TokenType.keyword)) {
+            throw new IllegalStateException("Unexpected!");
+        }
+        switch (token.value()) {
+            case "print":
+                return ast.add(Ast.Kind.print, parseExpression(ast, iterator), Ast.NONE, Ast.NONE);
+            case "var":
+                int variable = ast.variable(iterator.next());
+                iterator.next();
+                return ast.add(Ast.Kind.declaration, variable, parseExpression(ast, iterator), Ast.NONE);
+            case "setpixel":
+                int x = parseExpression(ast, iterator);
+                int y = parseExpression(ast, iterator);
+                return ast.add(Ast.Kind.setpixel, x, y, parseExpression(ast, iterator));
+            default:
+                throw new IllegalStateException("Unexpected!");
+        }
+    }
 }
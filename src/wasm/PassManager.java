@@ -0,0 +1,57 @@
+package wasm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs a sequence of passes over the Ir of a function, in the order they were added. A pass
+// rewrites the instructions in place, replacing the ones it drops with nop, which are
+// compacted away after every pass so the next one sees dense arrays again.
+public class PassManager {
+
+    public interface Pass {
+        void run(Ir ir);
+    }
+
+    private final List<Pass> passes = new ArrayList<>();
+
+    public PassManager add(Pass pass) {
+        passes.add(pass);
+        return this;
+    }
+
+    public void run(Ir ir) {
+        for (Pass pass : passes) {
+            pass.run(ir);
+            ir.compact();
+        }
+    }
+
+    // the passes run at optimization level 1
+    static PassManager standard() {
+        return new PassManager().add(PassManager::foldConversions);
+    }
+
+    // Converts constants at compile time rather than at run time. Java rounds an int cast to
+    // float to nearest like f32.convert_i32_s does, and truncates a float like
+    // i32.trunc_f32_s, except that the wasm instruction traps on NaN and values out of the
+    // i32 range, so those are left for run time.
+    static void foldConversions(Ir ir) {
+        for (int i = 0; i < ir.size(); i++) {
+            Ir.Op op = ir.op(i);
+            if (op != Ir.Op.f32_from_i32 && op != Ir.Op.i32_from_f32) {
+                continue;
+            }
+            int operand = ir.a(i);
+            if (op == Ir.Op.f32_from_i32 && ir.op(operand) == Ir.Op.i32_const) {
+                ir.set(i, Ir.Op.f32_const, 0, 0, Float.floatToRawIntBits((float) ir.imm(operand)));
+                ir.remove(operand);
+            } else if (op == Ir.Op.i32_from_f32 && ir.op(operand) == Ir.Op.f32_const) {
+                float value = ir.constant(operand);
+                if (value >= -2147483648f && value < 2147483648f) {
+                    ir.set(i, Ir.Op.i32_const, 0, 0, (int) value);
+                    ir.remove(operand);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package wasm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shrinks emitted code by decoding it into instructions, rewriting short instruction
+// sequences and encoding the result again. Each instruction is appended to the rewritten
+// list and then matched against the rules at its tail, so one rewrite can enable another.
+//
+// Branches point at the block, loop or if they leave rather than carrying a depth, depths
+// are worked out again when encoding, so a rule removing a block cannot break a branch.
+// Hit counts are kept per rule across every function a Peephole rewrites.
+public class Peephole {
+
+    public enum Rule {
+        // set_local n, get_local n -> tee_local n
+        tee_local,
+        // tee_local n, set_local n -> set_local n
+        redundant_tee,
+        // get_local n, set_local n -> nothing
+        self_assignment,
+        // i32.const c, br_if l -> br l, or nothing when c is 0
+        constant_branch,
+        // block, end and loop, end -> nothing
+        empty_block,
+        // if, end -> drop
+        empty_if,
+        // get_local n or a constant, drop -> nothing
+        dropped_value
+    }
+
+    private static class Instruction {
+        final Compiler.Opcodes opcode;
+        // the local, function or constant, or a store's alignment
+        int immediate;
+        // the offset of a store
+        int offset;
+        float constant;
+        // the block, loop or if a branch leaves
+        Instruction target;
+
+        Instruction(Compiler.Opcodes opcode) {
+            this.opcode = opcode;
+        }
+        Instruction(Compiler.Opcodes opcode, int immediate) {
+            this.opcode = opcode;
+            this.immediate = immediate;
+        }
+    }
+
+    private static final Compiler.Opcodes[] opcodes = new Compiler.Opcodes[256];
+    static {
+        for (Compiler.Opcodes opcode : Compiler.Opcodes.values()) {
+            opcodes[opcode.val & 0xff] = opcode;
+        }
+    }
+
+    private final LongAdder[] hits = new LongAdder[Rule.values().length];
+
+    public Peephole() {
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Rewrites the instructions in {@code code}, which must be balanced, into {@code out}.
+     */
+    void optimize(ByteBuffer code, WasmWriter out) {
+        encode(rewrite(decode(code)), out);
+    }
+
+    public long hits(Rule rule) {
+        return hits[rule.ordinal()].sum();
+    }
+    public Map<Rule, Long> hits() {
+        Map<Rule, Long> all = new LinkedHashMap<>();
+        for (Rule rule : Rule.values()) {
+            all.put(rule, hits(rule));
+        }
+        return all;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Rule rule : Rule.values()) {
+            text.append(text.length() == 0 ? "" : " ").append(rule).append('=').append(hits(rule));
+        }
+        return text.toString();
+    }
+
+    // https://webassembly.github.io/spec/core/binary/instructions.html
+    private static List<Instruction> decode(ByteBuffer code) {
+        List<Instruction> instructions = new ArrayList<>();
+        List<Instruction> open = new ArrayList<>();
+        while (code.hasRemaining()) {
+            Compiler.Opcodes opcode = opcodes[code.get() & 0xff];
+            if (opcode == null) {
+                throw new IllegalStateException("Unexpected opcode at " + (code.position() - 1));
+            }
+            Instruction instruction = new Instruction(opcode);
+            switch (opcode) {
+                case block:
+                case loop:
+                case if_:
+                    instruction.immediate = code.get();
+                    open.add(instruction);
+                    break;
+                case end:
+                    open.remove(open.size() - 1);
+                    break;
+                case br:
+                case br_if:
+                    instruction.target = open.get(open.size() - 1 - Leb128.readUnsignedLeb128(code));
+                    break;
+                case call:
+                case get_local:
+                case set_local:
+                case tee_local:
+                    instruction.immediate = Leb128.readUnsignedLeb128(code);
+                    break;
+                case i32_const:
+                    instruction.immediate = Leb128.readSignedLeb128(code);
+                    break;
+                case f32_const:
+                    instruction.constant = Float.intBitsToFloat(Integer.reverseBytes(code.getInt()));
+                    break;
+                case i32_store:
+                case i32_store_8:
+                case i32_store_16:
+                    instruction.immediate = Leb128.readUnsignedLeb128(code);
+                    instruction.offset = Leb128.readUnsignedLeb128(code);
+                    break;
+                default:
+                    break;
+            }
+            instructions.add(instruction);
+        }
+        return instructions;
+    }
+
+    private List<Instruction> rewrite(List<Instruction> instructions) {
+        List<Instruction> rewritten = new ArrayList<>(instructions.size());
+        for (Instruction instruction : instructions) {
+            rewritten.add(instruction);
+            while (apply(rewritten)) {
+                // a rewrite may have made another one possible
+            }
+        }
+        return rewritten;
+    }
+
+    // tries the rules against the tail of the list, applying the first that matches
+    private boolean apply(List<Instruction> list) {
+        int size = list.size();
+        if (size < 2) {
+            return false;
+        }
+        Instruction last = list.get(size - 1);
+        Instruction previous = list.get(size - 2);
+        switch (last.opcode) {
+            case get_local:
+                if (previous.opcode == Compiler.Opcodes.set_local && previous.immediate == last.immediate) {
+                    replace(list, Rule.tee_local, new Instruction(Compiler.Opcodes.tee_local, last.immediate));
+                    return true;
+                }
+                break;
+            case set_local:
+                if (previous.opcode == Compiler.Opcodes.tee_local && previous.immediate == last.immediate) {
+                    replace(list, Rule.redundant_tee, last);
+                    return true;
+                }
+                if (previous.opcode == Compiler.Opcodes.get_local && previous.immediate == last.immediate) {
+                    replace(list, Rule.self_assignment);
+                    return true;
+                }
+                break;
+            case br_if:
+                if (previous.opcode == Compiler.Opcodes.i32_const) {
+                    if (previous.immediate == 0) {
+                        replace(list, Rule.constant_branch);
+                    } else {
+                        Instruction branch = new Instruction(Compiler.Opcodes.br);
+                        branch.target = last.target;
+                        replace(list, Rule.constant_branch, branch);
+                    }
+                    return true;
+                }
+                break;
+            case end:
+                // nothing can branch to a block that holds no instructions
+                if (previous.opcode == Compiler.Opcodes.block || previous.opcode == Compiler.Opcodes.loop) {
+                    replace(list, Rule.empty_block);
+                    return true;
+                }
+                if (previous.opcode == Compiler.Opcodes.if_) {
+                    replace(list, Rule.empty_if, new Instruction(Compiler.Opcodes.drop));
+                    return true;
+                }
+                break;
+            case drop:
+                if (previous.opcode == Compiler.Opcodes.get_local || previous.opcode == Compiler.Opcodes.i32_const
+                        || previous.opcode == Compiler.Opcodes.f32_const) {
+                    replace(list, Rule.dropped_value);
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+        return false;
+    }
+
+    // replaces the last two instructions
+    private void replace(List<Instruction> list, Rule rule, Instruction... replacement) {
+        hits[rule.ordinal()].increment();
+        list.remove(list.size() - 1);
+        list.remove(list.size() - 1);
+        for (Instruction instruction : replacement) {
+            list.add(instruction);
+        }
+    }
+
+    private static void encode(List<Instruction> instructions, WasmWriter out) {
+        List<Instruction> open = new ArrayList<>();
+        for (Instruction instruction : instructions) {
+            out.write(instruction.opcode.val);
+            switch (instruction.opcode) {
+                case block:
+                case loop:
+                case if_:
+                    out.write((byte) instruction.immediate);
+                    open.add(instruction);
+                    break;
+                case end:
+                    open.remove(open.size() - 1);
+                    break;
+                case br:
+                case br_if:
+                    out.writeUnsignedLeb128(open.size() - 1 - open.lastIndexOf(instruction.target));
+                    break;
+                case call:
+                case get_local:
+                case set_local:
+                case tee_local:
+                    out.writeUnsignedLeb128(instruction.immediate);
+                    break;
+                case i32_const:
+                    out.writeSignedLeb128(instruction.immediate);
+                    break;
+                case f32_const:
+                    out.writeFloat(instruction.constant);
+                    break;
+                case i32_store:
+                case i32_store_8:
+                case i32_store_16:
+                    out.writeUnsignedLeb128(instruction.immediate);
+                    out.writeUnsignedLeb128(instruction.offset);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
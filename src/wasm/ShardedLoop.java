@@ -0,0 +1,304 @@
+package wasm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+// Finds a program ending in a loop whose iterations can run in any order, or all at once,
+// so the rows a loop like the fractal's draws can be split between workers. The loop counts
+// a variable up by 1 from an integer to a constant and draws the row of that variable:
+//
+//     var y = 0 while ( y < 100 ) y = ( y + 1 ) ... setpixel x y c endwhile
+//
+// Nothing may carry from one iteration to the next: every other variable the loop writes is
+// written before it is read in each iteration, and the only side effects are setpixel. The
+// statements ahead of the loop are run again by every range, so they may have none at all.
+//
+// run_range(start, end) runs the statements ahead of the loop and then the iterations that
+// start with the variable from start up to end, as f32s, so ranges splitting first to limit
+// between them draw what run does. An iteration writing a pixel out of its row, with an x
+// outside the width of the canvas, races with the one drawing that row.
+//
+// Like the level 1 passes the analysis walks into while and if statements on explicit stacks.
+class ShardedLoop {
+
+    // the parameters of run_range, not names a program can use
+    static final String START = "$start";
+    static final String END = "$end";
+
+    final String variable;
+    // the value the variable starts from and the one it counts up to
+    final float first;
+    final float limit;
+    private final List<Parser.StatementNode> prefix;
+    private final Parser.WhileStatementNode loop;
+
+    private ShardedLoop(String variable, float first, float limit, List<Parser.StatementNode> prefix,
+                        Parser.WhileStatementNode loop) {
+        this.variable = variable;
+        this.first = first;
+        this.limit = limit;
+        this.prefix = prefix;
+        this.loop = loop;
+    }
+
+    // the loop ending the program, null when there is none whose iterations are independent
+    static ShardedLoop find(List<Parser.StatementNode> program) {
+        if (program.isEmpty() || !(program.get(program.size() - 1) instanceof Parser.WhileStatementNode)) {
+            return null;
+        }
+        Parser.WhileStatementNode loop = (Parser.WhileStatementNode) program.get(program.size() - 1);
+        if (!isBinary(loop.value, "<") || !(left(loop.value) instanceof Parser.IdentifierNode)
+                || !(right(loop.value) instanceof Parser.NumberLiteralNode)) {
+            return null;
+        }
+        String variable = left(loop.value).value;
+        List<Parser.StatementNode> prefix = program.subList(0, program.size() - 1);
+        Float first = first(prefix, variable);
+        if (first == null || sideEffects(prefix) || !isIndependent(loop.statements, variable)) {
+            return null;
+        }
+        return new ShardedLoop(variable, first, Float.parseFloat(right(loop.value).value), prefix, loop);
+    }
+
+    // The statements of run_range: those ahead of the loop, then the loop starting from the
+    // start parameter and stopping at end too
+    List<Parser.StatementNode> range() {
+        List<Parser.StatementNode> statements = new ArrayList<>(prefix);
+        statements.add(new Parser.VariableAssignmentNode(variable, new Parser.IdentifierNode(START)));
+        Parser.ExpressionNode condition = new Parser.BinaryExpressionNode(loop.value,
+                new Parser.BinaryExpressionNode(new Parser.IdentifierNode(variable), new Parser.IdentifierNode(END), "<"),
+                "&&");
+        statements.add(new Parser.WhileStatementNode(condition, loop.statements));
+        return statements;
+    }
+
+    // The integer the statements ahead of the loop leave in the variable, null for anything
+    // else. Locals start at 0.
+    private static Float first(List<Parser.StatementNode> prefix, String variable) {
+        float first = 0;
+        for (Parser.StatementNode node : prefix) {
+            if (name(node) != null && name(node).equals(variable)) {
+                if (!(node.value instanceof Parser.NumberLiteralNode)) {
+                    return null;
+                }
+                first = Float.parseFloat(node.value.value);
+            } else if (writes(List.of(node)).contains(variable)) {
+                return null;
+            }
+        }
+        return first == Math.rint(first) ? first : null;
+    }
+
+    private static boolean isIndependent(List<Parser.StatementNode> body, String variable) {
+        if (sideEffects(body, true) || !rowsOf(body, variable)) {
+            return false;
+        }
+        // the variable counts up once, anywhere in the body but not inside anything nested
+        int counts = 0;
+        List<Parser.StatementNode> others = new ArrayList<>();
+        for (Parser.StatementNode node : body) {
+            if (variable.equals(name(node))) {
+                Parser.ExpressionNode value = node.value;
+                boolean count = isBinary(value, "+") && (isVariable(left(value), variable) && isOne(right(value))
+                        || isOne(left(value)) && isVariable(right(value), variable));
+                if (!count) {
+                    return false;
+                }
+                counts++;
+            } else {
+                others.add(node);
+            }
+        }
+        Set<String> written = writes(others);
+        if (counts != 1 || written.contains(variable)) {
+            return false;
+        }
+        written.add(variable);
+        Set<String> defined = new HashSet<>();
+        defined.add(variable);
+        return readsDefined(body, written, defined);
+    }
+
+    // Whether each read of a variable the loop writes comes after the variable was written in
+    // the same iteration. defined holds the variables written for certain so far and gains
+    // those the statements write for certain.
+    private static boolean readsDefined(List<Parser.StatementNode> statements, Set<String> written, Set<String> defined) {
+        ArrayDeque<Frame> frames = new ArrayDeque<>();
+        frames.push(new Frame(null, statements, defined));
+        while (!frames.isEmpty()) {
+            Frame frame = frames.peek();
+            if (!frame.statements.hasNext()) {
+                if (frame.owner instanceof Parser.IfStatementNode) {
+                    if (frame.consequent == null) {
+                        frame.consequent = frame.defined;
+                        frame.defined = new HashSet<>(frame.before);
+                        frame.statements = ((Parser.IfStatementNode) frame.owner).alternate.iterator();
+                        continue;
+                    }
+                    frame.consequent.retainAll(frame.defined);
+                    frame.before.addAll(frame.consequent);
+                }
+                frames.pop();
+                continue;
+            }
+            Parser.StatementNode node = frame.statements.next();
+            if (node instanceof Parser.WhileStatementNode) {
+                // the body may run no times at all, so nothing it writes is certain after it
+                if (!reads(node.value, written, frame.defined)) {
+                    return false;
+                }
+                frames.push(new Frame(node, ((Parser.WhileStatementNode) node).statements, frame.defined));
+            } else if (node instanceof Parser.IfStatementNode) {
+                if (!reads(node.value, written, frame.defined)) {
+                    return false;
+                }
+                frames.push(new Frame(node, ((Parser.IfStatementNode) node).consequent, frame.defined));
+            } else if (node instanceof Parser.SetPixelStatementNode) {
+                Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+                if (!reads(setPixelNode.x, written, frame.defined)) {
+                    return false;
+                }
+                frame.defined.add("x");
+                if (!reads(setPixelNode.y, written, frame.defined)) {
+                    return false;
+                }
+                frame.defined.add("y");
+                if (!reads(setPixelNode.value, written, frame.defined)) {
+                    return false;
+                }
+                frame.defined.add("color");
+            } else {
+                if (!reads(node.value, written, frame.defined)) {
+                    return false;
+                }
+                if (name(node) != null) {
+                    frame.defined.add(name(node));
+                }
+            }
+        }
+        return true;
+    }
+    // the statements of the loop body or of a while or if inside it, as readsDefined goes through them
+    private static class Frame {
+        final Parser.StatementNode owner;
+        Iterator<Parser.StatementNode> statements;
+        // the variables written for certain so far, and those the statements around the frame had
+        Set<String> defined;
+        final Set<String> before;
+        // what the consequent of an if wrote for certain, once the alternate is being read
+        Set<String> consequent;
+
+        Frame(Parser.StatementNode owner, List<Parser.StatementNode> statements, Set<String> before) {
+            this.owner = owner;
+            this.statements = statements.iterator();
+            this.before = before;
+            defined = owner == null ? before : new HashSet<>(before);
+        }
+    }
+    private static boolean reads(Parser.ExpressionNode node, Set<String> written, Set<String> defined) {
+        ArrayDeque<Parser.ExpressionNode> work = new ArrayDeque<>();
+        work.push(node);
+        while (!work.isEmpty()) {
+            Parser.ExpressionNode next = work.pop();
+            if (next instanceof Parser.BinaryExpressionNode) {
+                work.push(right(next));
+                work.push(left(next));
+            } else if (next instanceof Parser.IdentifierNode && written.contains(next.value) && !defined.contains(next.value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // every variable the statements may write, setpixel writes x, y and color
+    private static Set<String> writes(List<Parser.StatementNode> statements) {
+        Set<String> written = new HashSet<>();
+        writes(statements, written);
+        return written;
+    }
+    private static void writes(List<Parser.StatementNode> statements, Set<String> written) {
+        for (Parser.StatementNode node : nested(statements)) {
+            if (name(node) != null) {
+                written.add(name(node));
+            } else if (node instanceof Parser.SetPixelStatementNode) {
+                Parser.SetPixelStatementNode setPixelNode = (Parser.SetPixelStatementNode) node;
+                // an argument that is the variable already is left in place
+                if (!isVariable(setPixelNode.x, "x")) {
+                    written.add("x");
+                }
+                if (!isVariable(setPixelNode.y, "y")) {
+                    written.add("y");
+                }
+                written.add("color");
+            }
+        }
+    }
+
+    // whether the statements print, or draw when the loop is not the one drawing
+    private static boolean sideEffects(List<Parser.StatementNode> statements) {
+        return sideEffects(statements, false);
+    }
+    private static boolean sideEffects(List<Parser.StatementNode> statements, boolean draws) {
+        for (Parser.StatementNode node : nested(statements)) {
+            if (node instanceof Parser.PrintStatementNode || node instanceof Parser.SetPixelStatementNode && !draws) {
+                return true;
+            }
+        }
+        return false;
+    }
+    // whether every setpixel draws in the row of the variable
+    private static boolean rowsOf(List<Parser.StatementNode> statements, String variable) {
+        for (Parser.StatementNode node : nested(statements)) {
+            if (node instanceof Parser.SetPixelStatementNode && !isVariable(((Parser.SetPixelStatementNode) node).y, variable)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    // the statements and all those inside the whiles and ifs among them
+    private static List<Parser.StatementNode> nested(List<Parser.StatementNode> statements) {
+        List<Parser.StatementNode> nested = new ArrayList<>();
+        ArrayDeque<Parser.StatementNode> work = new ArrayDeque<>(statements);
+        while (!work.isEmpty()) {
+            Parser.StatementNode node = work.pop();
+            nested.add(node);
+            if (node instanceof Parser.WhileStatementNode) {
+                work.addAll(((Parser.WhileStatementNode) node).statements);
+            } else if (node instanceof Parser.IfStatementNode) {
+                work.addAll(((Parser.IfStatementNode) node).consequent);
+                work.addAll(((Parser.IfStatementNode) node).alternate);
+            }
+        }
+        return nested;
+    }
+
+    // the variable a declaration or assignment writes, null for other statements
+    private static String name(Parser.StatementNode node) {
+        if (node instanceof Parser.VariableDeclarationNode) {
+            return ((Parser.VariableDeclarationNode) node).name;
+        }
+        if (node instanceof Parser.VariableAssignmentNode) {
+            return ((Parser.VariableAssignmentNode) node).name;
+        }
+        return null;
+    }
+    private static boolean isBinary(Parser.ExpressionNode node, String operator) {
+        return node instanceof Parser.BinaryExpressionNode && node.value.equals(operator);
+    }
+    private static Parser.ExpressionNode left(Parser.ExpressionNode node) {
+        return ((Parser.BinaryExpressionNode) node).left;
+    }
+    private static Parser.ExpressionNode right(Parser.ExpressionNode node) {
+        return ((Parser.BinaryExpressionNode) node).right;
+    }
+    private static boolean isVariable(Parser.ExpressionNode node, String variable) {
+        return node instanceof Parser.IdentifierNode && node.value.equals(variable);
+    }
+    private static boolean isOne(Parser.ExpressionNode node) {
+        return node instanceof Parser.NumberLiteralNode && Float.parseFloat(node.value) == 1;
+    }
+}
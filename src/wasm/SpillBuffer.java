@@ -0,0 +1,118 @@
+package wasm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Bytes appended in order and written out once, for output whose size is not known until it
+// is complete. The first bytes are held in memory in fixed-size chunks, past the memory
+// limit the rest go to a temporary file, deleted on close.
+public class SpillBuffer implements Closeable {
+
+    public static final int DEFAULT_MEMORY_LIMIT = 1 << 20;
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final int memoryLimit;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private FileChannel spill;
+    private long size;
+
+    public SpillBuffer() {
+        this(DEFAULT_MEMORY_LIMIT);
+    }
+    public SpillBuffer(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    public long size() {
+        return size;
+    }
+    // whether bytes have gone to the file
+    public boolean spilled() {
+        return spill != null;
+    }
+
+    // appends the remaining bytes, leaving the buffer consumed
+    public void write(ByteBuffer bytes) throws IOException {
+        size += bytes.remaining();
+        while (bytes.hasRemaining() && spill == null) {
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                if ((long) (chunks.size() + 1) * CHUNK_SIZE > memoryLimit) {
+                    spill = FileChannel.open(Files.createTempFile("chasm", ".spill"), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                    break;
+                }
+                chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                chunks.add(chunk);
+            }
+            int length = Math.min(chunk.remaining(), bytes.remaining());
+            chunk.put(bytes.slice().limit(length));
+            bytes.position(bytes.position() + length);
+        }
+        while (bytes.hasRemaining()) {
+            spill.write(bytes);
+        }
+    }
+
+    /**
+     * Writes {@code head}, the bytes appended and {@code tail} to {@code out}. The bytes in
+     * memory go out in one gathering write together with head, and tail unless there is a
+     * file, whose bytes are transferred to out by the file system where it can.
+     */
+    public void writeTo(WritableByteChannel out, ByteBuffer head, ByteBuffer tail) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>(chunks.size() + 2);
+        buffers.add(head);
+        for (ByteBuffer chunk : chunks) {
+            buffers.add(chunk.duplicate().flip());
+        }
+        if (spill == null) {
+            buffers.add(tail);
+            writeFully(out, buffers.toArray(new ByteBuffer[0]));
+            return;
+        }
+        writeFully(out, buffers.toArray(new ByteBuffer[0]));
+        long length = spill.size();
+        for (long position = 0; position < length; ) {
+            position += spill.transferTo(position, length - position, out);
+        }
+        writeFully(out, tail);
+    }
+    private static void writeFully(WritableByteChannel out, ByteBuffer... buffers) throws IOException {
+        if (out instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) out;
+            // a gathering write may stop short like any other
+            while (remaining(buffers)) {
+                gathering.write(buffers);
+            }
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+    private static boolean remaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+}
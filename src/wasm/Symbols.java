@@ -0,0 +1,72 @@
+package wasm;
+
+import java.util.Arrays;
+
+// Interns identifiers to dense ids, 0 for the first name met, 1 for the next and so on. A name
+// is looked up straight from the source text, so an identifier seen before costs a hash and a
+// compare but no String. Ids are only meaningful within the table that gave them out, every
+// node of a program carries ids from the Tokenizer that scanned it.
+public class Symbols {
+
+    private String[] names = new String[16];
+    private int[] hashes = new int[16];
+    // open addressing, holding id + 1, 0 marks a free slot
+    private int[] slots = new int[32];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int intern(String name) {
+        return intern(name, 0, name.length());
+    }
+    public int intern(String source, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return add(source.substring(start, start + length), hash, slot);
+            }
+            String name = names[id];
+            if (hashes[id] == hash && name.length() == length && source.regionMatches(start, name, 0, length)) {
+                return id;
+            }
+        }
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        hashes[id] = hash;
+        slots[slot] = id + 1;
+        // kept at most half full
+        if (size * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int i = 0; i < size; i++) {
+                int free = mix(hashes[i]) & mask;
+                while (slots[free] != 0) {
+                    free = (free + 1) & mask;
+                }
+                slots[free] = i + 1;
+            }
+        }
+        return id;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
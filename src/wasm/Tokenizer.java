@@ -1,9 +1,13 @@
 package wasm;
 
-import java.util.*;
-import java.util.function.BiFunction;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 public class Tokenizer {
     public enum TokenType {
@@ -16,78 +20,338 @@ public class Tokenizer {
         identifier,
         assignment;
     }
-    public class Token {
-        public TokenType type;
-        public String value;
-        public int line;
-        public int character;
-        public Token(TokenType type, String value, int line, int character) {
+    // A token is a (type, start, length) window onto the source it was scanned from,
+    // the text is only materialised when value() is asked for. An identifier carries the id
+    // the Tokenizer's Symbols gave its name, and value() is the interned name.
+    public static class Token {
+        public final TokenType type;
+        public final int start;
+        public final int length;
+        public final int line;
+        public final int character;
+        // -1 for tokens other than identifiers
+        public final int symbol;
+        private final String source;
+        private final String name;
+        public Token(TokenType type, String source, int start, int length, int line, int character) {
+            this(type, source, start, length, line, character, -1, null);
+        }
+        Token(TokenType type, String source, int start, int length, int line, int character, int symbol, String name) {
             this.type = type;
-            this.value = value;
+            this.source = source;
+            this.start = start;
+            this.length = length;
             this.line = line;
             this.character = character;
+            this.symbol = symbol;
+            this.name = name;
+        }
+        public String value() {
+            return name != null ? name : source.substring(start, start + length);
+        }
+        public boolean is(String text) {
+            return text.length() == length && source.regionMatches(start, text, 0, length);
+        }
+        public char charAt(int offset) {
+            return source.charAt(start + offset);
+        }
+        @Override
+        public String toString() {
+            return type + " '" + value() + "' at " + line + ":" + character;
         }
     }
     public static final String[] keywords = {"print", "var", "while", "endwhile", "setpixel", "if", "endif", "else"};
     public static final String[] operators = {"+", "-", "*", "/", "==", "<", ">", "&&"};
 
-    private List<BiFunction<String, Integer, Optional<Token>>> matchers = new ArrayList<>();
+    // character classes driving the scanner
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte NEWLINE = 2;
+    private static final byte DIGIT = 3;
+    private static final byte DOT = 4;
+    private static final byte LETTER = 5;
+    private static final byte OPEN = 6;
+    private static final byte CLOSE = 7;
+    private static final byte MINUS = 8;
+    private static final byte OPERATOR = 9;
+    private static final byte EQUALS = 10;
+    private static final byte AMPERSAND = 11;
+
+    private static final byte[] charClass = new byte[128];
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            charClass[c] = LETTER;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            charClass[c] = LETTER;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            charClass[c] = DIGIT;
+        }
+        charClass[' '] = SPACE;
+        charClass['\t'] = SPACE;
+        charClass['\r'] = SPACE;
+        charClass['\f'] = SPACE;
+        charClass['\n'] = NEWLINE;
+        charClass['.'] = DOT;
+        charClass['('] = OPEN;
+        charClass[')'] = CLOSE;
+        charClass['-'] = MINUS;
+        charClass['+'] = OPERATOR;
+        charClass['*'] = OPERATOR;
+        charClass['/'] = OPERATOR;
+        charClass['<'] = OPERATOR;
+        charClass['>'] = OPERATOR;
+        charClass['='] = EQUALS;
+        charClass['&'] = AMPERSAND;
+    }
+    private static byte classOf(String input, int index, int end) {
+        if (index >= end) {
+            return OTHER;
+        }
+        char c = input.charAt(index);
+        return c < 128 ? charClass[c] : OTHER;
+    }
+
+    private final Symbols symbols;
+
     public Tokenizer() {
-        matchers.add(regexMatcher("^-?[.0-9]+([eE]-?[0-9]{2})?", TokenType.number));
+        this(new Symbols());
+    }
+    public Tokenizer(Symbols symbols) {
+        this.symbols = symbols;
+    }
+    // the names of every identifier this Tokenizer has met
+    public Symbols symbols() {
+        return symbols;
+    }
 
-        matchers.add(regexMatcher("^(" + Arrays.stream(keywords).collect(Collectors.joining("|")) + ")", TokenType.keyword));
-        matchers.add(regexMatcher("^\\s+", TokenType.whitespace));
+    // single pass over the input, each character is classified once and consumed by exactly one token
+    public List<Token> tokenize(String input) {
+        return tokenize(input, 0, input.length());
+    }
+    /**
+     * Tokenizes {@code input} between {@code start} and {@code end} only, as if nothing
+     * followed {@code end}. Token offsets are into the whole input, lines and characters
+     * count from {@code start}. The caller makes sure no token straddles either bound.
+     */
+    public List<Token> tokenize(String input, int start, int end) {
+        List<Token> tokens = new ArrayList<>();
+        scan(input, start, end, 1, start, tokens);
+        return tokens;
+    }
+    /**
+     * Tokenizes a program as it is read, a chunk at a time, so only the chunk being scanned
+     * is held in memory. Token offsets are into their chunk rather than the whole program,
+     * lines and characters count from the start of the program. A failure to read is
+     * thrown as an UncheckedIOException.
+     */
+    public Iterator<Token> tokenize(Reader reader) {
+        return new ReaderTokens(reader);
+    }
+
+    // chunks are cut just before a whitespace character, so no token straddles two of them
+    // and a '-' starting a chunk always follows a space, like it does in the whole program
+    private class ReaderTokens implements Iterator<Token> {
+        private static final int CHUNK_SIZE = 1 << 16;
 
-        //should be something like List<String> escapedOperators = Arrays.stream(operators).map(str -> str.replace("[-[\]{}()*+?.,\\^$|#\s]", "\\$&")).collect(Collectors.toList());
-        String escapedOperators = Arrays.stream(operators).map(str -> Pattern.quote(str)).collect(Collectors.joining("|"));
-        matchers.add(regexMatcher("^(" + escapedOperators + ")", TokenType.operator));
-        matchers.add(regexMatcher("^[a-zA-Z]+", TokenType.identifier));
+        private final Reader reader;
+        private char[] buffer = new char[CHUNK_SIZE];
+        private int length;
+        private boolean finished;
+        private final List<Token> tokens = new ArrayList<>();
+        private int next;
+        private int line = 1;
+        // the characters since the last newline before the chunk
+        private int column;
 
-        matchers.add(regexMatcher("^=", TokenType.assignment));
-        matchers.add(regexMatcher("\\([^\\[]*", TokenType.parens));
-        matchers.add(regexMatcher("[^\\[]*\\)", TokenType.parensClose));
-    }
-    private BiFunction<String, Integer, Optional<Token>> regexMatcher(String regex, TokenType type) {
-        BiFunction<String, Integer, Optional<Token>> func = (input, index) -> {
-            String substr = input.substring(index);
-            int spaceIndex = substr.indexOf(" ");
-            if(spaceIndex > -1) {
-                substr = substr.substring(0, spaceIndex);
+        ReaderTokens(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == tokens.size()) {
+                if (finished && length == 0) {
+                    return false;
+                }
+                scanChunk();
             }
-            StringTokenizer st = new StringTokenizer(substr, " ");
-            if(! st.hasMoreTokens()) {
-                return Optional.empty();
+            return true;
+        }
+        @Override
+        public Token next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
-            String token = st.nextToken();
+            return tokens.get(next++);
+        }
+
+        private void scanChunk() {
             try {
-                if (token.matches(regex)) {
-                    return Optional.of(new Token(type, substr, 0, index));
-                } else {
-                    return Optional.empty();
+                while (length < buffer.length && !finished) {
+                    int read = reader.read(buffer, length, buffer.length - length);
+                    if (read < 0) {
+                        finished = true;
+                    } else {
+                        length += read;
+                    }
                 }
-            }catch(Exception e){
-                throw new IllegalArgumentException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-        };
-        return func;
+            int cut = length;
+            if (!finished) {
+                cut--;
+                while (cut > 0 && !isWhitespace(buffer[cut])) {
+                    cut--;
+                }
+                if (cut == 0) {
+                    // a single token fills the buffer
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    return;
+                }
+            }
+            String chunk = new String(buffer, 0, cut);
+            tokens.clear();
+            next = 0;
+            line = scan(chunk, 0, cut, line, -column, tokens);
+            int newline = chunk.lastIndexOf('\n');
+            column = newline < 0 ? column + cut : cut - newline - 1;
+            System.arraycopy(buffer, cut, buffer, 0, length - cut);
+            length -= cut;
+        }
     }
-    public List<Token> tokenize(String input) {
-        List<Token> tokens = new ArrayList<>();
-        int index = 0;
-        while(index < input.length()) {
-            final int indexParam = index;
-            List<Token> found = matchers.stream().map(m -> m.apply(input, indexParam))
-                    .filter(res -> res.isPresent())
-                    .map(opt -> opt.get())
-                    .collect(Collectors.toList());
-            if(found.size() > 0) {
-                Token token = found.get(0);
-                if(token.type != TokenType.whitespace && token.type != TokenType.parensClose) {
-                    tokens.add(token);
+
+    // whether the scanner takes c for whitespace between tokens, only spaces, tabs, carriage
+    // returns, form feeds and newlines are
+    static boolean isWhitespace(char c) {
+        return c < 128 && (charClass[c] == SPACE || charClass[c] == NEWLINE);
+    }
+
+    // Scans input between start and end into tokens, starting on the given line, which
+    // started at lineStart. Returns the line scanning ended on.
+    private int scan(String input, int start, int end, int line, int lineStart, List<Token> tokens) {
+        int index = start;
+        // the last significant token, including the parensClose tokens that are not emitted
+        TokenType previous = start > 0 && input.charAt(start - 1) == ')' ? TokenType.parensClose : null;
+        while (index < end) {
+            byte cls = classOf(input, index, end);
+            int from = index;
+            TokenType type;
+            switch (cls) {
+                case NEWLINE:
+                    index++;
+                    line++;
+                    lineStart = index;
+                    continue;
+                case SPACE:
+                    index++;
+                    continue;
+                case DIGIT:
+                case DOT:
+                    index = scanNumber(input, index, end);
+                    type = TokenType.number;
+                    break;
+                case MINUS:
+                    if (startsNumber(input, index + 1, end) && (!endsOperand(previous) || followsSpace(input, index, end))) {
+                        index = scanNumber(input, index + 1, end);
+                        type = TokenType.number;
+                    } else {
+                        index++;
+                        type = TokenType.operator;
+                    }
+                    break;
+                case LETTER:
+                    do {
+                        index++;
+                    } while (classOf(input, index, end) == LETTER);
+                    type = isKeyword(input, from, index - from) ? TokenType.keyword : TokenType.identifier;
+                    break;
+                case OPEN:
+                    index++;
+                    type = TokenType.parens;
+                    break;
+                case CLOSE:
+                    index++;
+                    type = TokenType.parensClose;
+                    break;
+                case OPERATOR:
+                    index++;
+                    type = TokenType.operator;
+                    break;
+                case EQUALS:
+                    index++;
+                    if (classOf(input, index, end) == EQUALS) {
+                        index++;
+                        type = TokenType.operator;
+                    } else {
+                        type = TokenType.assignment;
+                    }
+                    break;
+                case AMPERSAND:
+                    if (classOf(input, index + 1, end) != AMPERSAND) {
+                        throw unexpected(input, from, line, lineStart);
+                    }
+                    index += 2;
+                    type = TokenType.operator;
+                    break;
+                default:
+                    throw unexpected(input, from, line, lineStart);
+            }
+            previous = type;
+            if (type == TokenType.identifier) {
+                int symbol = symbols.intern(input, from, index - from);
+                tokens.add(new Token(type, input, from, index - from, line, from - lineStart + 1,
+                        symbol, symbols.name(symbol)));
+            } else if (type != TokenType.parensClose) {
+                tokens.add(new Token(type, input, from, index - from, line, from - lineStart + 1));
+            }
+        }
+        return line;
+    }
+    private static IllegalStateException unexpected(String input, int from, int line, int lineStart) {
+        return new IllegalStateException("Unexpected character '" + input.charAt(from) + "' at "
+                + line + ":" + (from - lineStart + 1));
+    }
+    // [.0-9]+([eE]-?[0-9]+)?
+    private static int scanNumber(String input, int index, int end) {
+        byte cls = classOf(input, index, end);
+        while (cls == DIGIT || cls == DOT) {
+            cls = classOf(input, ++index, end);
+        }
+        if (index < end && (input.charAt(index) == 'e' || input.charAt(index) == 'E')) {
+            int exponent = index + 1;
+            if (classOf(input, exponent, end) == MINUS) {
+                exponent++;
+            }
+            if (classOf(input, exponent, end) == DIGIT) {
+                index = exponent;
+                while (classOf(input, index, end) == DIGIT) {
+                    index++;
                 }
-                index = index + token.value.length() +1;
             }
         }
-        return tokens;
+        return index;
+    }
+    private static boolean startsNumber(String input, int index, int end) {
+        byte cls = classOf(input, index, end);
+        return cls == DIGIT || cls == DOT;
+    }
+    // a '-' glued to the preceding operand is subtraction, "( x - 1 )" and "(x-1)" both subtract
+    // whereas "( f + -1 )" and "setpixel 1 -2 3" carry a negative literal
+    private static boolean endsOperand(TokenType previous) {
+        return previous == TokenType.number || previous == TokenType.identifier || previous == TokenType.parensClose;
+    }
+    private static boolean followsSpace(String input, int index, int end) {
+        return index > 0 && (classOf(input, index - 1, end) == SPACE || classOf(input, index - 1, end) == NEWLINE);
+    }
+    private static boolean isKeyword(String input, int start, int length) {
+        for (String keyword : keywords) {
+            if (keyword.length() == length && input.regionMatches(start, keyword, 0, length)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
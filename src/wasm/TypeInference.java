@@ -0,0 +1,453 @@
+package wasm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Finds the variables that only ever hold integers small enough for f32 arithmetic on them
+// to be exact, so they can live in i32 locals and be computed with i32 instructions without
+// changing a single result.
+//
+// An abstract interpretation tracks the range of every variable through the blocks of the
+// program's Cfg, narrowing it on the edges out of a branch by its condition. A variable is an integer when
+// every value stored into it is an integer within +-2^24 and never -0. Locals start at 0,
+// so a variable that is only ever read is an integer too. Demoting a variable can demote
+// others, the analysis repeats until none is demoted.
+//
+// Additions, subtractions and multiplications whose result may leave the range, or may be
+// -0, are recorded as inexact and stay f32. Divisions always do.
+public class TypeInference {
+
+    // every integer up to 2^24 is an f32
+    private static final long LIMIT = 1 << 24;
+    // loop iterations after which ranges that keep growing are widened to the limit
+    private static final int WIDEN_AFTER = 3;
+    private static final int NARROWINGS = 2;
+
+    public static class Types {
+        private final Set<String> integers;
+        private final Set<Parser.ExpressionNode> inexact;
+
+        Types(Set<String> integers, Set<Parser.ExpressionNode> inexact) {
+            this.integers = integers;
+            this.inexact = inexact;
+        }
+        public boolean isInteger(String variable) {
+            return integers.contains(variable);
+        }
+        // false for arithmetic that has to be done in f32
+        public boolean isExact(Parser.ExpressionNode node) {
+            return !inexact.contains(node);
+        }
+        public Set<String> integers() {
+            return Collections.unmodifiableSet(integers);
+        }
+    }
+
+    // the integers a value may take, null stands for a value that may be anything else
+    private static class Range {
+        final long low;
+        final long high;
+        Range(long low, long high) {
+            this.low = low;
+            this.high = high;
+        }
+        boolean contains(long value) {
+            return low <= value && value <= high;
+        }
+    }
+
+    // The range of every candidate variable, by its index. A variable that may hold a value
+    // other than a small integer has an empty range.
+    private static class State {
+        final long[] low;
+        final long[] high;
+        State(int variables) {
+            low = new long[variables];
+            high = new long[variables];
+        }
+        State(State state) {
+            low = state.low.clone();
+            high = state.high.clone();
+        }
+        Range get(int variable) {
+            return low[variable] > high[variable] ? null : new Range(low[variable], high[variable]);
+        }
+        void set(int variable, Range range) {
+            low[variable] = range == null ? 1 : range.low;
+            high[variable] = range == null ? 0 : range.high;
+        }
+        boolean sameAs(State other) {
+            return Arrays.equals(low, other.low) && Arrays.equals(high, other.high);
+        }
+    }
+
+    private final Cfg cfg;
+    // whether each variable, by its index in the Cfg, may still be an integer
+    private final boolean[] candidates;
+    private final boolean[] demoted;
+    private final Set<Parser.ExpressionNode> inexact = Collections.newSetFromMap(new IdentityHashMap<>());
+    // the range of every register as last computed, null for values that may be anything else
+    private final Range[] ranges;
+
+    private TypeInference(Cfg cfg, boolean[] candidates) {
+        this.cfg = cfg;
+        this.candidates = candidates;
+        this.demoted = new boolean[candidates.length];
+        this.ranges = new Range[cfg.size()];
+    }
+
+    public static Types infer(List<Parser.StatementNode> nodes) {
+        return infer(Cfg.build(nodes));
+    }
+    public static Types infer(Cfg cfg) {
+        boolean[] candidates = new boolean[cfg.variables().size()];
+        Arrays.fill(candidates, true);
+        demoteByShape(cfg, candidates);
+        while (true) {
+            TypeInference inference = new TypeInference(cfg, candidates);
+            State[] entries = inference.solve();
+            boolean demoted = false;
+            for (int block = 0; block < cfg.blocks(); block++) {
+                if (entries[block] != null) {
+                    inference.run(block, new State(entries[block]), true);
+                }
+            }
+            for (int variable = 0; variable < candidates.length; variable++) {
+                if (inference.demoted[variable]) {
+                    candidates[variable] = false;
+                    demoted = true;
+                }
+            }
+            if (!demoted) {
+                Set<String> integers = new HashSet<>();
+                for (int variable = 0; variable < candidates.length; variable++) {
+                    if (candidates[variable]) {
+                        integers.add(cfg.variables().get(variable));
+                    }
+                }
+                return new Types(integers, inference.inexact);
+            }
+        }
+    }
+
+    // Demotes the variables given a value that is no integer whatever the ranges, a division
+    // or a fraction, before the costlier range analysis runs
+    private static void demoteByShape(Cfg cfg, boolean[] candidates) {
+        boolean[] integral = new boolean[cfg.size()];
+        boolean demoted = true;
+        while (demoted) {
+            demoted = false;
+            for (int i = 0; i < cfg.size(); i++) {
+                switch (cfg.op(i)) {
+                    case constant:
+                        integral[i] = literal(cfg.constant(i)) != null;
+                        break;
+                    case get:
+                        integral[i] = candidates[cfg.a(i)];
+                        break;
+                    case add:
+                    case sub:
+                    case mul:
+                        integral[i] = integral[cfg.a(i)] && integral[cfg.b(i)];
+                        break;
+                    case set:
+                        if (candidates[cfg.a(i)] && !integral[cfg.b(i)]) {
+                            candidates[cfg.a(i)] = false;
+                            demoted = true;
+                        }
+                        break;
+                    default:
+                        integral[i] = false;
+                        break;
+                }
+            }
+        }
+    }
+
+    // The state every block is entered in, null for blocks that are never reached. Blocks are
+    // run in order from a worklist until their states stop changing. The state each time the
+    // condition of a loop is tested at the bottom only ever grows, and is widened after a few
+    // rounds. Then every block is run again a few times, each time still holding every state
+    // the code can reach.
+    private State[] solve() {
+        State initial = new State(candidates.length);
+        for (int variable = 0; variable < candidates.length; variable++) {
+            // every local starts out as 0, the others may hold anything
+            initial.set(variable, candidates[variable] ? new Range(0, 0) : null);
+        }
+        State[] entries = new State[cfg.blocks()];
+        State[] exits = new State[cfg.blocks()];
+        int[] rounds = new int[cfg.blocks()];
+        BitSet work = new BitSet();
+        work.set(0);
+        for (int block = work.nextSetBit(0); block >= 0; block = work.nextSetBit(0)) {
+            work.clear(block);
+            State entry = block == 0 ? initial : entry(block, exits);
+            if (entry == null) {
+                continue;
+            }
+            entries[block] = entry;
+            State exit = run(block, new State(entry), false);
+            State previous = exits[block];
+            if (previous != null) {
+                if (isBottom(block)) {
+                    exit = join(previous, exit);
+                    if (rounds[block]++ >= WIDEN_AFTER) {
+                        exit = widen(previous, exit);
+                    }
+                }
+                if (exit.sameAs(previous)) {
+                    continue;
+                }
+            }
+            exits[block] = exit;
+            if (cfg.taken(block) >= 0) {
+                work.set(cfg.taken(block));
+            }
+            if (cfg.notTaken(block) >= 0) {
+                work.set(cfg.notTaken(block));
+            }
+        }
+        for (int i = 0; i < NARROWINGS; i++) {
+            for (int block = 1; block < cfg.blocks(); block++) {
+                entries[block] = entry(block, exits);
+                exits[block] = entries[block] == null ? null : run(block, new State(entries[block]), false);
+            }
+        }
+        return entries;
+    }
+
+    // whether a block ends in the test at the bottom of a loop, which branches back
+    private boolean isBottom(int block) {
+        return cfg.notTaken(block) >= 0 && cfg.taken(block) <= block;
+    }
+
+    // joins the states the predecessors of a block leave it, each narrowed by the branch taken
+    private State entry(int block, State[] exits) {
+        State entry = null;
+        for (int predecessor : cfg.predecessors(block)) {
+            State exit = exits[predecessor];
+            int condition = cfg.condition(predecessor);
+            if (condition < 0) {
+                entry = join(entry, exit);
+                continue;
+            }
+            if (cfg.taken(predecessor) == block) {
+                entry = join(entry, refine(exit, condition, true));
+            }
+            if (cfg.notTaken(predecessor) == block) {
+                entry = join(entry, refine(exit, condition, false));
+            }
+        }
+        return entry;
+    }
+
+    // Runs the instructions of a block from state, which they update, and returns it. Findings
+    // are only recorded when record is set, once the states of all blocks are known.
+    private State run(int block, State state, boolean record) {
+        for (int i = cfg.start(block); i < cfg.end(block); i++) {
+            if (cfg.op(i) == Cfg.Op.set) {
+                assign(state, cfg.a(i), ranges[cfg.b(i)], record);
+            } else {
+                evaluate(i, state, record);
+            }
+        }
+        return state;
+    }
+
+    private void assign(State state, int variable, Range value, boolean record) {
+        if (!candidates[variable]) {
+            return;
+        }
+        if (value == null && record) {
+            demoted[variable] = true;
+        }
+        state.set(variable, value);
+    }
+
+    // works out the range of the value of an instruction from those of its operands
+    private void evaluate(int instruction, State state, boolean record) {
+        Range left = null;
+        Range right = null;
+        switch (cfg.op(instruction)) {
+            case constant:
+                ranges[instruction] = literal(cfg.constant(instruction));
+                return;
+            case get:
+                ranges[instruction] = state.get(cfg.a(instruction));
+                return;
+            case add:
+            case sub:
+            case mul:
+                left = ranges[cfg.a(instruction)];
+                right = ranges[cfg.b(instruction)];
+                break;
+            case div:
+                break;
+            default:
+                // comparisons and && give i32 truth values, not f32 ones
+                ranges[instruction] = null;
+                return;
+        }
+        Range result = null;
+        if (left != null && right != null) {
+            switch (cfg.op(instruction)) {
+                case add:
+                    result = range(left.low + right.low, left.high + right.high);
+                    break;
+                case sub:
+                    result = range(left.low - right.high, left.high - right.low);
+                    break;
+                default:
+                    result = multiply(left, right);
+                    break;
+            }
+        }
+        if (result == null && record) {
+            inexact.add(cfg.expression(instruction));
+        }
+        ranges[instruction] = result;
+    }
+    // the range of the value a register holds, computed again from state
+    private Range evaluate(int register, State state) {
+        for (int i = cfg.first(register); i <= register; i++) {
+            evaluate(i, state, false);
+        }
+        return ranges[register];
+    }
+
+    // whether a number literal is an integer an i32 constant can stand in for
+    static boolean isInteger(Parser.ExpressionNode literal) {
+        return literal(Float.parseFloat(literal.value)) != null;
+    }
+
+    private static Range literal(float value) {
+        if (value != Math.rint(value) || Math.abs(value) > LIMIT || Float.floatToIntBits(value) == Float.floatToIntBits(-0f)) {
+            return null;
+        }
+        return new Range((long) value, (long) value);
+    }
+
+    private static Range multiply(Range left, Range right) {
+        // a zero times a negative number is -0 in f32
+        if ((left.contains(0) && right.low < 0) || (right.contains(0) && left.low < 0)) {
+            return null;
+        }
+        long a = left.low * right.low;
+        long b = left.low * right.high;
+        long c = left.high * right.low;
+        long d = left.high * right.high;
+        return range(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+    }
+
+    private static Range range(long low, long high) {
+        return low < -LIMIT || high > LIMIT ? null : new Range(low, high);
+    }
+
+    // The state in which condition evaluates to outcome, or null when it never can. Only
+    // comparisons between a variable and an integer narrow anything, and those under an &&
+    // that holds, one after the other from the left.
+    private State refine(State state, int condition, boolean outcome) {
+        if (state == null) {
+            return null;
+        }
+        State refined = new State(state);
+        if (!outcome) {
+            return cfg.op(condition) == Cfg.Op.and ? refined : compare(refined, condition, false);
+        }
+        ArrayDeque<Integer> conditions = new ArrayDeque<>();
+        conditions.push(condition);
+        while (!conditions.isEmpty() && refined != null) {
+            int register = conditions.pop();
+            if (cfg.op(register) == Cfg.Op.and) {
+                conditions.push(cfg.b(register));
+                conditions.push(cfg.a(register));
+            } else {
+                refined = compare(refined, register, true);
+            }
+        }
+        return refined;
+    }
+    private State compare(State refined, int comparison, boolean outcome) {
+        Cfg.Op op = cfg.op(comparison);
+        if (op != Cfg.Op.lt && op != Cfg.Op.gt && op != Cfg.Op.eq) {
+            return refined;
+        }
+        Range left = evaluate(cfg.a(comparison), refined);
+        Range right = evaluate(cfg.b(comparison), refined);
+        if (left == null || right == null) {
+            return refined;
+        }
+        Range newLeft;
+        Range newRight;
+        switch (op) {
+            case lt:
+                newLeft = outcome ? new Range(left.low, Math.min(left.high, right.high - 1)) : new Range(Math.max(left.low, right.low), left.high);
+                newRight = outcome ? new Range(Math.max(right.low, left.low + 1), right.high) : new Range(right.low, Math.min(right.high, left.high));
+                break;
+            case gt:
+                newLeft = outcome ? new Range(Math.max(left.low, right.low + 1), left.high) : new Range(left.low, Math.min(left.high, right.high));
+                newRight = outcome ? new Range(right.low, Math.min(right.high, left.high - 1)) : new Range(Math.max(right.low, left.low), right.high);
+                break;
+            default:
+                if (!outcome) {
+                    return refined;
+                }
+                newLeft = new Range(Math.max(left.low, right.low), Math.min(left.high, right.high));
+                newRight = newLeft;
+                break;
+        }
+        if (newLeft.low > newLeft.high || newRight.low > newRight.high) {
+            return null;
+        }
+        if (cfg.op(cfg.a(comparison)) == Cfg.Op.get) {
+            refined.set(cfg.a(cfg.a(comparison)), newLeft);
+        }
+        if (cfg.op(cfg.b(comparison)) == Cfg.Op.get) {
+            refined.set(cfg.a(cfg.b(comparison)), newRight);
+        }
+        return refined;
+    }
+
+    private static State join(State a, State b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        State joined = new State(a.low.length);
+        for (int i = 0; i < a.low.length; i++) {
+            if (a.low[i] > a.high[i] || b.low[i] > b.high[i]) {
+                joined.set(i, null);
+            } else {
+                joined.low[i] = Math.min(a.low[i], b.low[i]);
+                joined.high[i] = Math.max(a.high[i], b.high[i]);
+            }
+        }
+        return joined;
+    }
+
+    // bounds still moving after a few iterations go straight to the limit, which no stored
+    // value can pass
+    private static State widen(State previous, State next) {
+        State widened = new State(next);
+        for (int i = 0; i < next.low.length; i++) {
+            if (next.low[i] <= next.high[i] && previous.low[i] <= previous.high[i]) {
+                if (next.low[i] < previous.low[i]) {
+                    widened.low[i] = -LIMIT;
+                }
+                if (next.high[i] > previous.high[i]) {
+                    widened.high[i] = LIMIT;
+                }
+            }
+        }
+        return widened;
+    }
+}
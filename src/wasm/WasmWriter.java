@@ -0,0 +1,108 @@
+package wasm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A single growable buffer that a whole module is written into. Section and function body
+// sizes are not known up front, so a fixed-width LEB128 slot is reserved for them and
+// patched in place once the contents are written, every byte is written exactly once.
+public class WasmWriter {
+
+    // a u32 never needs more than 5 bytes of LEB128
+    public static final int LENGTH_SLOT_SIZE = 5;
+
+    private byte[] buffer;
+    private int position;
+
+    public WasmWriter() {
+        this(1024);
+    }
+    public WasmWriter(int capacity) {
+        this.buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = position + extra;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length << 1));
+        }
+    }
+    public int position() {
+        return position;
+    }
+    public void reset() {
+        position = 0;
+    }
+    public void write(byte b) {
+        ensureCapacity(1);
+        buffer[position++] = b;
+    }
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+    public void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+    public void writeUnsignedLeb128(int value) {
+        ensureCapacity(5);
+        position = Leb128.writeUnsignedLeb128(buffer, position, value);
+    }
+    public void writeSignedLeb128(int value) {
+        ensureCapacity(5);
+        position = Leb128.writeSignedLeb128(buffer, position, value);
+    }
+    // https://webassembly.github.io/spec/core/binary/values.html#floating-point
+    // little endian IEEE-754 bits
+    public void writeFloat(float value) {
+        ensureCapacity(4);
+        int bits = Float.floatToIntBits(value);
+        buffer[position++] = (byte) bits;
+        buffer[position++] = (byte) (bits >>> 8);
+        buffer[position++] = (byte) (bits >>> 16);
+        buffer[position++] = (byte) (bits >>> 24);
+    }
+    // https://webassembly.github.io/spec/core/binary/values.html#names
+    public void writeString(String str) {
+        writeUnsignedLeb128(str.length());
+        ensureCapacity(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            buffer[position++] = (byte) str.charAt(i);
+        }
+    }
+    /**
+     * Reserves a fixed-width slot for a length that is only known once the bytes
+     * following it have been written.
+     *
+     * @return the slot position to hand to {@link #patchLength(int)}
+     */
+    public int reserveLength() {
+        ensureCapacity(LENGTH_SLOT_SIZE);
+        int slot = position;
+        position += LENGTH_SLOT_SIZE;
+        return slot;
+    }
+    /**
+     * Fills a reserved slot with the number of bytes written after it, as a padded
+     * LEB128 that still occupies the whole slot.
+     */
+    public void patchLength(int slot) {
+        Leb128.writeUnsignedLeb128Padded(buffer, slot, position - slot - LENGTH_SLOT_SIZE, LENGTH_SLOT_SIZE);
+    }
+    /**
+     * Writes a length known up front in the same fixed-width form as a reserved slot, so a
+     * module written in pieces comes out the same as one patched in place.
+     */
+    public void writeLength(int length) {
+        int slot = reserveLength();
+        Leb128.writeUnsignedLeb128Padded(buffer, slot, length, LENGTH_SLOT_SIZE);
+    }
+    // a read-only view of the bytes written so far
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, position).asReadOnlyBuffer();
+    }
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+}